@@ -0,0 +1,104 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import net.isammoc.zooviewer.model.ZVModelConfig;
+import net.isammoc.zooviewer.model.ZVModelImpl;
+import net.isammoc.zooviewer.node.ZVNode;
+import net.isammoc.zooviewer.tree.ZVTreeModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of the model events to tree models, which queue them for the
+ * next delivery on the EDT.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Dlog4j.configuration=log4j-cli.properties" })
+public class EventBenchmark {
+
+    /** Number of tree models listening to the model. */
+    @Param({ "1", "4", "16" })
+    public int listeners;
+
+    private ZooKeeperFixture fixture;
+    private FiringModel model;
+    private ZVNode node;
+
+    /**
+     * Model whose events can be fired at will.
+     */
+    static final class FiringModel extends ZVModelImpl {
+        FiringModel(String connectString, ZVModelConfig config) throws IOException {
+            super(connectString, config);
+        }
+
+        void created(ZVNode newNode) {
+            fireNodeCreated(newNode);
+        }
+
+        void dataChanged(ZVNode changed) {
+            fireNodeDataChanged(changed);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = ZooKeeperFixture.start();
+        fixture.createTree("/events", 100, 1, 16);
+        ZVModelConfig config = new ZVModelConfig();
+        config.setCacheDir(null);
+        model = new FiringModel(fixture.getConnectString(), config);
+        ZooKeeperFixture.awaitPopulated(model);
+        for (int i = 0; i < listeners; i++) {
+            new ZVTreeModel(model);
+        }
+        node = model.getNode("/events/n42");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        model.close();
+        fixture.close();
+    }
+
+    @Benchmark
+    public void nodeCreated() {
+        model.created(node);
+    }
+
+    @Benchmark
+    public void nodeDataChanged() {
+        model.dataChanged(node);
+    }
+}
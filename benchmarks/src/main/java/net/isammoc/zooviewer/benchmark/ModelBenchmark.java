@@ -0,0 +1,132 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import net.isammoc.zooviewer.model.ZVModel;
+import net.isammoc.zooviewer.model.ZVModelConfig;
+import net.isammoc.zooviewer.model.ZVModelImpl;
+import net.isammoc.zooviewer.node.ZVNode;
+import net.isammoc.zooviewer.tree.ZVTreeModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.tree.TreePath;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of the model and of the tree model on a populated tree: children
+ * of a wide parent, and paths of a deep node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Dlog4j.configuration=log4j-cli.properties" })
+public class ModelBenchmark {
+
+    /** Children of the wide parent. */
+    @Param({ "1000", "10000" })
+    public int width;
+
+    /** Depth of the deep node. */
+    @Param({ "100" })
+    public int depth;
+
+    private ZooKeeperFixture fixture;
+    private ZVModel model;
+    private ZVTreeModel treeModel;
+    private ZVNode wide;
+    private ZVNode[] children;
+    private int next;
+    private String deepPath;
+    private ZVNode deep;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = ZooKeeperFixture.start();
+        fixture.createTree("/wide", width, 1, 16);
+        deepPath = fixture.createChain("/deep", depth);
+        ZVModelConfig config = new ZVModelConfig();
+        config.setCacheDir(null);
+        model = new ZVModelImpl(fixture.getConnectString(), config);
+        ZooKeeperFixture.awaitPopulated(model);
+        wide = model.getNode("/wide");
+        children = model.getChildren(wide).toArray(new ZVNode[0]);
+        deep = model.getNode(deepPath);
+        treeModel = new ZVTreeModel(model);
+        // Children captured by the tree model, as when expanded
+        treeModel.getChildCount(wide);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        model.close();
+        fixture.close();
+    }
+
+    private int nextIndex() {
+        int index = next;
+        next = index + 1 == children.length ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public List<ZVNode> getChildren() {
+        return model.getChildren(wide);
+    }
+
+    @Benchmark
+    public int getIndexOfChild() {
+        return model.getIndexOfChild(wide, children[nextIndex()]);
+    }
+
+    @Benchmark
+    public int treeGetIndexOfChild() {
+        return treeModel.getIndexOfChild(wide, children[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object treeGetChild() {
+        return treeModel.getChild(wide, nextIndex());
+    }
+
+    @Benchmark
+    public ZVNode getNodeDeep() {
+        return model.getNode(deepPath);
+    }
+
+    @Benchmark
+    public TreePath getTreePathDeep() {
+        return treeModel.getTreePath(deep);
+    }
+
+    @Benchmark
+    public String getPathDeep() {
+        return deep.getPath();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import net.isammoc.zooviewer.model.ZVModelConfig;
+import net.isammoc.zooviewer.node.ZVArenaPayloadStore;
+import net.isammoc.zooviewer.node.ZVHeapPayloadStore;
+import net.isammoc.zooviewer.node.ZVNodeImpl;
+import net.isammoc.zooviewer.node.ZVPayloadStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of the node data, as done when a node is displayed, for each
+ * payload storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Dlog4j.configuration=log4j-cli.properties" })
+public class PayloadBenchmark {
+
+    private static final int NODES = 1024;
+
+    @Param({ "HEAP", "DIRECT", "MAPPED" })
+    public ZVModelConfig.PayloadStorage storage;
+
+    /** Data size of each node. */
+    @Param({ "64", "4096" })
+    public int size;
+
+    private ZVPayloadStore store;
+    private ZVNodeImpl[] nodes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        long limit = new ZVModelConfig().getPayloadLimit();
+        switch (storage) {
+            case DIRECT:
+                store = new ZVArenaPayloadStore(false, limit);
+                break;
+            case MAPPED:
+                store = new ZVArenaPayloadStore(true, limit);
+                break;
+            default:
+                store = new ZVHeapPayloadStore();
+        }
+        ZVNodeImpl root = new ZVNodeImpl(store, null);
+        Random random = new Random(42);
+        List<ZVNodeImpl> children = new ArrayList<>(NODES);
+        for (int i = 0; i < NODES; i++) {
+            byte[] data = new byte[size];
+            for (int j = 0; j < size; j++) {
+                data[j] = (byte) (' ' + random.nextInt(95));
+            }
+            children.add(new ZVNodeImpl(root, String.format("node%04d", i), data));
+        }
+        root.addChildren(children);
+        nodes = root.getChildren();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+    }
+
+    private ZVNodeImpl nextNode() {
+        int index = next;
+        next = (index + 1) % NODES;
+        return nodes[index];
+    }
+
+    @Benchmark
+    public byte[] getData() {
+        return nextNode().getData();
+    }
+
+    @Benchmark
+    public ByteBuffer getDataBuffer() {
+        return nextNode().getDataBuffer();
+    }
+
+    /** Decoding of the data, as shown by the node panel. */
+    @Benchmark
+    public String render() {
+        ByteBuffer data = nextNode().getDataBuffer();
+        return data == null ? null : Charset.defaultCharset().decode(data).toString();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import net.isammoc.zooviewer.model.ZVModel;
+import net.isammoc.zooviewer.model.ZVModelConfig;
+import net.isammoc.zooviewer.model.ZVModelImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full population of an eager model, from the connection to the listing of
+ * the last node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Dlog4j.configuration=log4j-cli.properties" })
+public class PopulateBenchmark {
+
+    /** Children per node, on two levels. */
+    @Param({ "100" })
+    public int fanout;
+
+    /** Data size of each node. */
+    @Param({ "64" })
+    public int size;
+
+    @Param({ "HEAP", "DIRECT" })
+    public ZVModelConfig.PayloadStorage storage;
+
+    private ZooKeeperFixture fixture;
+    private ZVModel model;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = ZooKeeperFixture.start();
+        fixture.createTree("/bench", fanout, 2, size);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeModel() throws InterruptedException {
+        model.close();
+        model = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public ZVModel populate() throws Exception {
+        ZVModelConfig config = new ZVModelConfig();
+        config.setPayloadStorage(storage);
+        config.setCacheDir(null);
+        model = new ZVModelImpl(fixture.getConnectString(), config);
+        ZooKeeperFixture.awaitPopulated(model);
+        return model;
+    }
+}
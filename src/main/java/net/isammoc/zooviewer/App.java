@@ -16,8 +16,10 @@ package net.isammoc.zooviewer;
 
 import net.isammoc.zooviewer.model.ZVModel;
 import net.isammoc.zooviewer.model.ZVModelImpl;
+import net.isammoc.zooviewer.model.ZVSnapshotModel;
 import net.isammoc.zooviewer.node.JZVNode;
 import net.isammoc.zooviewer.node.ZVNode;
+import net.isammoc.zooviewer.tree.JZVSearch;
 import net.isammoc.zooviewer.tree.JZVTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +31,10 @@ import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.ResourceBundle;
 import java.util.Set;
@@ -37,6 +43,9 @@ public class App {
 
     private static final String DEFAULT_CONNECTION_STRING = "127.0.0.1:2181";
 
+    /** Maximum number of data bytes rendered in a tree row. */
+    private static final int MAX_RENDERED_DATA = 256;
+
     private static ResourceBundle bundle = ResourceBundle.getBundle(App.class.getCanonicalName());
 
     private static Logger log = LoggerFactory.getLogger(App.class);
@@ -63,10 +72,14 @@ public class App {
         } catch (Exception e) {
             log.error("=====> Cannot set platform default look and feel.", e);
         }
+        final ZVStallDetector stallDetector = ZVStallDetector.startFromSystemProperties();
 
-        final ZVModel model = new ZVModelImpl(zkHost);
+        // A snapshot file is browsed offline
+        File snapshot = new File(zkHost);
+        final ZVModel model = snapshot.isFile() ? new ZVSnapshotModel(snapshot) : new ZVModelImpl(zkHost);
         final JZVNode nodeView = new JZVNode(model);
         final JZVTree tree = new JZVTree(model);
+        final JZVSearch search = new JZVSearch(model, tree);
 
         //If we could connect to zk and host is not in set of saved - update it
         if (!savedHosts.contains(zkHost)) {
@@ -74,14 +87,21 @@ public class App {
             updateSavedHosts(savedHosts);
         }
 
-        String editorViewtitle = String.format("%s - Editor View - ZooViewer", zkHost);
+        String editorViewtitle = String.format(model.isReadOnly() ? "%s - Snapshot View - ZooViewer"
+                : "%s - Editor View - ZooViewer", zkHost);
 
         final JFrame jfEditor = new JFrame(editorViewtitle);
         jfEditor.setName("zv_editor");
-        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, new JScrollPane(tree), nodeView);
+        JPanel treePanel = new JPanel(new BorderLayout());
+        treePanel.add(search, BorderLayout.NORTH);
+        treePanel.add(new JScrollPane(tree), BorderLayout.CENTER);
+        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, treePanel, nodeView);
         split.setDividerLocation(0.4);
 
         jfEditor.getContentPane().add(split);
+        if (stallDetector != null) {
+            jfEditor.setJMenuBar(createMenuBar(jfEditor, stallDetector));
+        }
         jfEditor.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         jfEditor.setSize(1024, 768);
         jfEditor.setLocationRelativeTo(null);
@@ -92,17 +112,24 @@ public class App {
             if (selPaths == null) {
                 return;
             }
-            ZVNode[] nodes = new ZVNode[selPaths.length];
-            for (int i = 0; i < selPaths.length; i++) {
-                nodes[i] = (ZVNode) selPaths[i].getLastPathComponent();
+            // 'loading' placeholders are not nodes
+            java.util.List<ZVNode> nodes = new ArrayList<>(selPaths.length);
+            for (TreePath selPath : selPaths) {
+                if (selPath.getLastPathComponent() instanceof ZVNode) {
+                    nodes.add((ZVNode) selPath.getLastPathComponent());
+                }
             }
-            nodeView.setNodes(nodes);
+            nodeView.setNodes(nodes.isEmpty() ? null : nodes.toArray(new ZVNode[nodes.size()]));
         });
 
         jfEditor.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
                 jfEditor.dispose();
+                search.close();
+                if (stallDetector != null) {
+                    stallDetector.close();
+                }
                 try {
                     model.close();
                 } catch (InterruptedException e1) {
@@ -130,9 +157,13 @@ public class App {
                 if ((comp instanceof JLabel) && (value instanceof ZVNode)) {
                     ZVNode node = (ZVNode) value;
                     String text = node.getName();
-                    byte[] data = node.getData();
-                    if ((data != null) && (data.length > 0)) {
-                        text += "=" + new String(data);
+                    // Reads the data in place, and only what fits in a row
+                    ByteBuffer data = node.getDataBuffer();
+                    if ((data != null) && data.hasRemaining()) {
+                        if (data.remaining() > MAX_RENDERED_DATA) {
+                            ((Buffer) data).limit(MAX_RENDERED_DATA);
+                        }
+                        text += "=" + Charset.defaultCharset().decode(data);
                     }
                     ((JLabel) comp).setText(text);
                     comp.validate();
@@ -145,6 +176,27 @@ public class App {
         jfEditor.setVisible(true);
     }
 
+    /**
+     * Creates the menu bar, with the report of the EDT stalls.
+     */
+    private static JMenuBar createMenuBar(JFrame owner, ZVStallDetector stallDetector) {
+        JMenu diagnostics = new JMenu(bundle.getString("menu.diagnostics"));
+        JMenuItem stalls = new JMenuItem(bundle.getString("menu.diagnostics.stalls"));
+        JZVStallReport report = new JZVStallReport(stallDetector);
+        JDialog dialog = new JDialog(owner, bundle.getString("dlg.stalls.title"), false);
+        dialog.getContentPane().add(report);
+        dialog.pack();
+        dialog.setLocationRelativeTo(owner);
+        stalls.addActionListener(e -> {
+            report.refresh();
+            dialog.setVisible(true);
+        });
+        diagnostics.add(stalls);
+        JMenuBar menuBar = new JMenuBar();
+        menuBar.add(diagnostics);
+        return menuBar;
+    }
+
     private static String inputConnectionString(String[] possibilities) {
 //        String[] possibilities = {"192.168.1.200:2181", "127.0.0.1:2181"};
 
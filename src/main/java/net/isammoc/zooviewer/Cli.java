@@ -0,0 +1,448 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer;
+
+import net.isammoc.zooviewer.model.ZVDeletion;
+import net.isammoc.zooviewer.model.ZVModel;
+import net.isammoc.zooviewer.model.ZVModelConfig;
+import net.isammoc.zooviewer.model.ZVModelImpl;
+import net.isammoc.zooviewer.model.ZVModelListener;
+import net.isammoc.zooviewer.model.ZVSnapshotModel;
+import net.isammoc.zooviewer.node.ZVNode;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Command-line entry point, for headless servers and scripts.
+ * <p>
+ * The commands run on the same {@link ZVModel} as the viewer, in lazy mode
+ * and with the payloads fetched on demand, so only the nodes they visit are
+ * loaded. Subtrees are listed ahead of the output, and each node is printed
+ * as soon as the nodes before it are known, without waiting for the whole
+ * crawl. No AWT nor Swing class is loaded.
+ * </p>
+ * <pre>
+ * Cli &lt;connection string | snapshot file&gt; &lt;command&gt; [path] [arguments]
+ * </pre>
+ */
+public final class Cli {
+
+    /** Maximum time in ms spent waiting for the children or the data of a node. */
+    private static final long NODE_TIMEOUT = 30000;
+
+    /** Minimum time in ms between two progress lines of a deletion. */
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    private static final List<String> COMMANDS = Arrays.asList("ls", "get", "tree", "find", "stat", "rm");
+
+    private static final ResourceBundle bundle = ResourceBundle.getBundle(Cli.class.getCanonicalName());
+
+    private final ZVModel model;
+    private final PrintStream out;
+
+    /** Notified on every model event. */
+    private final Object lock = new Object();
+
+    /** Path of the subtree being walked, whose listings are prefetched. */
+    private volatile String prefetched;
+
+    /**
+     * Visits the nodes of a subtree.
+     */
+    private interface Visitor {
+        /**
+         * Called for each node, parents before their children.
+         * @param node the node
+         * @param depth the depth of the node below the walked one
+         */
+        void visit(ZVNode node, int depth);
+    }
+
+    private Cli(ZVModel model, PrintStream out) {
+        this.model = model;
+        this.out = out;
+        model.addModelListener(new ZVModelListener() {
+            @Override
+            public void nodeCreated(ZVNode newNode) {
+                // Nothing waits for it: the listing is complete afterwards
+            }
+
+            @Override
+            public void nodeDeleted(ZVNode oldNode, int oldIndex) {
+                changed();
+            }
+
+            @Override
+            public void nodeDataChanged(ZVNode node) {
+                changed();
+            }
+
+            @Override
+            public void childrenLoaded(ZVNode parent) {
+                String root = prefetched;
+                if (root != null && isInSubtree(parent.getPath(), root)) {
+                    for (ZVNode child : model.getChildren(parent)) {
+                        model.loadChildren(child);
+                    }
+                }
+                changed();
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println(bundle.getString("usage"));
+            System.exit(2);
+        }
+        // Logs go to the standard error, before the first logger is created
+        if (System.getProperty("log4j.configuration") == null) {
+            System.setProperty("log4j.configuration", "log4j-cli.properties");
+        }
+
+        ZVModel model;
+        File snapshot = new File(args[0]);
+        if (snapshot.isFile()) {
+            model = new ZVSnapshotModel(snapshot);
+        } else {
+            ZVModelConfig config = ZVModelConfig.fromSystemProperties();
+            config.setLazy(true);
+            config.setPayloadOnDemand(true);
+            // Scripts need the current tree, not the one of the last run
+            config.setCacheDir(null);
+            model = new ZVModelImpl(args[0], config);
+        }
+
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024),
+                false);
+        int status;
+        try {
+            status = new Cli(model, out).run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            status = 2;
+        } finally {
+            out.flush();
+            model.close();
+        }
+        System.exit(status);
+    }
+
+    /**
+     * Runs a command.
+     * @param args the command-line arguments
+     * @return the exit status
+     * @throws InterruptedException if interrupted while waiting for the model
+     */
+    private int run(String[] args) throws InterruptedException {
+        String command = args[1];
+        String path = args.length > 2 ? args[2] : "/";
+        if (!COMMANDS.contains(command)) {
+            throw new IllegalArgumentException(message("error.command", command) + System.lineSeparator()
+                    + bundle.getString("usage"));
+        }
+        if (!path.startsWith("/") || path.length() > 1 && path.endsWith("/")) {
+            throw new IllegalArgumentException(message("error.path", path));
+        }
+        ZVNode node = resolve(path);
+        if (node == null) {
+            System.err.println(message("error.noNode", path));
+            return 1;
+        }
+        switch (command) {
+            case "ls":
+                return list(node);
+            case "get":
+                return get(node);
+            case "tree":
+                return walk(node, (n, depth) -> {
+                    for (int i = 0; i < depth; i++) {
+                        out.print("  ");
+                    }
+                    out.println(depth == 0 ? n.getPath() : n.getName());
+                });
+            case "find":
+                Pattern pattern = args.length > 3 ? Pattern.compile(args[3]) : null;
+                return walk(node, (n, depth) -> {
+                    String p = n.getPath();
+                    if (pattern == null || pattern.matcher(p).find()) {
+                        out.println(p);
+                    }
+                });
+            case "stat":
+                return stat(node);
+            case "rm":
+                return delete(node);
+            default:
+                throw new IllegalStateException(command);
+        }
+    }
+
+    /**
+     * Resolves a path, listing its ancestors as needed.
+     * @param path the path
+     * @return the node, or <code>null</code> if it does not exist
+     * @throws InterruptedException if interrupted while waiting for the model
+     */
+    private ZVNode resolve(String path) throws InterruptedException {
+        ZVNode node = model.getNode("/");
+        int start = 1;
+        while (node != null && start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (!awaitChildren(node)) {
+                return null;
+            }
+            node = model.getNode(path.substring(0, end));
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private int list(ZVNode node) throws InterruptedException {
+        if (!awaitChildren(node)) {
+            return 1;
+        }
+        for (ZVNode child : model.getChildren(node)) {
+            out.println(child.getName());
+        }
+        return 0;
+    }
+
+    private int get(ZVNode node) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NODE_TIMEOUT);
+        synchronized (lock) {
+            while (!node.isDataLoaded()) {
+                if (!node.exists()) {
+                    System.err.println(message("error.noNode", node.getPath()));
+                    return 1;
+                }
+                model.loadData(node);
+                if (!await(deadline)) {
+                    System.err.println(message("error.data", node.getPath()));
+                    return 1;
+                }
+            }
+        }
+        ByteBuffer data = node.getDataBuffer();
+        if (data != null) {
+            // Raw bytes, straight from the payload store
+            WritableByteChannel channel = Channels.newChannel(out);
+            try {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    private int stat(ZVNode node) throws InterruptedException {
+        long[] totals = new long[4];
+        ZVNode[] extremes = new ZVNode[3];
+        int status = walk(node, (n, depth) -> {
+            totals[0]++;
+            totals[1] += n.getDataLength();
+            if (n.getEphemeralOwner() != 0) {
+                totals[2]++;
+            }
+            totals[3] = Math.max(totals[3], depth);
+            if (extremes[0] == null || n.getDataLength() > extremes[0].getDataLength()) {
+                extremes[0] = n;
+            }
+            if (extremes[1] == null || n.getNumChildren() > extremes[1].getNumChildren()) {
+                extremes[1] = n;
+            }
+            if (extremes[2] == null || n.getMtime() > extremes[2].getMtime()) {
+                extremes[2] = n;
+            }
+        });
+        if (totals[0] == 0) {
+            return status;
+        }
+        out.println(message("stat.nodes", totals[0]));
+        out.println(message("stat.data", totals[1]));
+        out.println(message("stat.ephemeral", totals[2]));
+        out.println(message("stat.depth", totals[3]));
+        out.println(message("stat.largest", extremes[0].getPath(), extremes[0].getDataLength()));
+        out.println(message("stat.widest", extremes[1].getPath(), extremes[1].getNumChildren()));
+        out.println(message("stat.newest", extremes[2].getPath(), Instant.ofEpochMilli(extremes[2].getMtime())));
+        return status;
+    }
+
+    private int delete(ZVNode node) throws InterruptedException {
+        if (model.isReadOnly()) {
+            System.err.println(message("error.readOnly", node.getPath()));
+            return 1;
+        }
+        if ("/".equals(node.getPath())) {
+            System.err.println(message("error.deleteRoot"));
+            return 1;
+        }
+        long[] lastProgress = new long[1];
+        ZVDeletion deletion = model.deleteNodes(new ZVNode[] { node }, new ZVDeletion.Listener() {
+            @Override
+            public void progress(ZVDeletion d) {
+                long now = System.nanoTime();
+                if (now - lastProgress[0] > TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL)) {
+                    lastProgress[0] = now;
+                    System.err.println(message(d.isListing() ? "rm.listing" : "rm.progress", d.getDeleted(),
+                            d.getTotal()));
+                }
+            }
+
+            @Override
+            public void done(ZVDeletion d) {
+                changed();
+            }
+        });
+        synchronized (lock) {
+            while (!deletion.isDone()) {
+                lock.wait(PROGRESS_INTERVAL);
+            }
+        }
+        if (deletion.getError() != null) {
+            System.err.println(message("rm.error", deletion.getError().getMessage()));
+            return 1;
+        }
+        out.println(message("rm.done", deletion.getDeleted()));
+        if (deletion.getFailed() > 0) {
+            System.err.println(message("rm.failed", deletion.getFailed()));
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Walks a subtree depth first, children in name order. The listings of
+     * the whole subtree are requested ahead, and the walk only waits for the
+     * next node to visit.
+     * @param start the root of the subtree
+     * @param visitor the visitor
+     * @return the exit status
+     * @throws InterruptedException if interrupted while waiting for the model
+     */
+    private int walk(ZVNode start, Visitor visitor) throws InterruptedException {
+        prefetched = start.getPath();
+        int status = 0;
+        Deque<ZVNode> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        nodes.push(start);
+        depths.push(0);
+        model.loadChildren(start);
+        while (!nodes.isEmpty()) {
+            ZVNode node = nodes.pop();
+            int depth = depths.pop();
+            if (!awaitChildren(node)) {
+                if (node.exists()) {
+                    status = 1;
+                }
+                continue;
+            }
+            visitor.visit(node, depth);
+            List<ZVNode> children = model.getChildren(node);
+            for (int i = children.size() - 1; i >= 0; i--) {
+                ZVNode child = children.get(i);
+                // Already listed nodes (snapshot, root) send no event
+                model.loadChildren(child);
+                nodes.push(child);
+                depths.push(depth + 1);
+            }
+        }
+        prefetched = null;
+        return status;
+    }
+
+    /**
+     * Waits until the children of a node are listed.
+     * @param node the node
+     * @return <code>false</code> if the node was deleted or cannot be listed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private boolean awaitChildren(ZVNode node) throws InterruptedException {
+        if (model.isChildrenLoaded(node)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(NODE_TIMEOUT);
+        synchronized (lock) {
+            while (!model.isChildrenLoaded(node)) {
+                if (!node.exists()) {
+                    return false;
+                }
+                // Starts the listing, or starts it again if it failed
+                model.loadChildren(node);
+                if (!await(deadline)) {
+                    System.err.println(message("error.list", node.getPath()));
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the next model event, flushing the output first. Must be
+     * called under {@link #lock}.
+     * @param deadline the deadline, in {@link System#nanoTime()} time
+     * @return <code>false</code> if the deadline is passed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private boolean await(long deadline) throws InterruptedException {
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left <= 0) {
+            return false;
+        }
+        out.flush();
+        // Bounded, in case a failed request sends no event
+        lock.wait(Math.min(left, 100));
+        return true;
+    }
+
+    private void changed() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private static boolean isInSubtree(String path, String root) {
+        return "/".equals(root) || path.equals(root) || path.startsWith(root + "/");
+    }
+
+    private static String message(String key, Object... arguments) {
+        return MessageFormat.format(bundle.getString(key), arguments);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import java.util.ResourceBundle;
+
+/**
+ * Panel showing the report of a {@link ZVStallDetector}, which can be
+ * refreshed, cleared and saved to a file.
+ */
+public class JZVStallReport extends JPanel {
+
+    /** */
+    private static final long serialVersionUID = 1L;
+
+    private static final ResourceBundle bundle = ResourceBundle.getBundle(JZVStallReport.class.getCanonicalName());
+
+    private final ZVStallDetector detector;
+
+    private final JTextArea taReport = new JTextArea(30, 100);
+
+    private JFileChooser fileChooser = null;
+
+    /**
+     * Creates the report panel.
+     *
+     * @param detector
+     *            the detector
+     */
+    public JZVStallReport(ZVStallDetector detector) {
+        super(new BorderLayout());
+        this.detector = detector;
+
+        this.taReport.setEditable(false);
+        this.taReport.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        this.add(new JScrollPane(this.taReport), BorderLayout.CENTER);
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        JButton jbRefresh = new JButton(bundle.getString("btn.refresh"));
+        jbRefresh.addActionListener(e -> refresh());
+        JButton jbClear = new JButton(bundle.getString("btn.clear"));
+        jbClear.addActionListener(e -> {
+            this.detector.clear();
+            refresh();
+        });
+        JButton jbSave = new JButton(bundle.getString("btn.save"));
+        jbSave.addActionListener(e -> save());
+        buttons.add(jbRefresh);
+        buttons.add(jbClear);
+        buttons.add(jbSave);
+        this.add(buttons, BorderLayout.SOUTH);
+
+        refresh();
+    }
+
+    /**
+     * Shows the current report.
+     */
+    public void refresh() {
+        StringWriter out = new StringWriter();
+        try {
+            this.detector.writeReport(out);
+        } catch (IOException e) {
+            // Not thrown by a StringWriter
+            throw new IllegalStateException(e);
+        }
+        this.taReport.setText(out.toString());
+        this.taReport.setCaretPosition(0);
+    }
+
+    private void save() {
+        if (this.fileChooser == null) {
+            this.fileChooser = new JFileChooser();
+            this.fileChooser.setSelectedFile(new File("zooviewer-stalls.txt"));
+        }
+        if (this.fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = this.fileChooser.getSelectedFile();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            this.detector.writeReport(out);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this,
+                    MessageFormat.format(bundle.getString("dlg.error.save"), file, e.getMessage()),
+                    bundle.getString("dlg.error.title"), JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer;
+
+import net.isammoc.zooviewer.model.ZVModelListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.EventQueue;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watchdog of the event dispatch thread, reporting the stalls over a
+ * threshold and what caused them.
+ * <p>
+ * A daemon thread posts a ping to the EDT and waits for it to run. While a
+ * ping is late by more than the threshold, the stack of the EDT is sampled,
+ * and each sample blamed on the method of a frame: the innermost
+ * {@link ZVModelListener} call or <code>actionPerformed</code>, else the
+ * outermost frame of ZooViewer, else the top frame. The stall is blamed on
+ * the method of most samples. Pings also run in the nested event loops of
+ * modal dialogs, so an open dialog is not a stall.
+ * </p>
+ * <p>
+ * The report keeps the last {@value #MAX_RECENT} stalls, and the count and
+ * durations of the stalls of each blamed method.
+ * </p>
+ */
+public final class ZVStallDetector {
+
+    /** System property defining the duration in ms over which the EDT is stalled, <code>0</code> to disable. */
+    public static final String PROPERTY_THRESHOLD = "zooviewer.edt.stallThreshold";
+
+    /** Maximum number of stalls kept. */
+    static final int MAX_RECENT = 100;
+
+    /** Maximum number of blamed methods kept, the least recent dropped first. */
+    private static final int MAX_BLAMED = 200;
+
+    /** Maximum number of frames written for each stall. */
+    private static final int MAX_FRAMES = 40;
+
+    private static final String APP_PACKAGE = "net.isammoc.zooviewer.";
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final long thresholdNanos;
+    private final long intervalMillis;
+    private final long startTime = System.currentTimeMillis();
+    private final Thread watchdog;
+    private volatile boolean closed;
+
+    /** The EDT, as seen by the last ping. */
+    private volatile Thread edt;
+    /** Ping posted and not run yet, <code>null</code> if none. */
+    private volatile Ping pending;
+
+    /** Whether each class is a model listener or an action listener, watchdog thread only. */
+    private final Map<String, Boolean> listenerClasses = new HashMap<>();
+
+    private final ArrayDeque<Stall> recent = new ArrayDeque<>();
+    private final LinkedHashMap<String, Summary> summaries = new LinkedHashMap<String, Summary>(16, 0.75f, true) {
+        /** */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Summary> eldest) {
+            return size() > MAX_BLAMED;
+        }
+    };
+
+    /**
+     * A stall of the EDT.
+     */
+    public static final class Stall {
+        private final long time;
+        private final long durationMillis;
+        private final String blame;
+        private final StackTraceElement[] stack;
+
+        Stall(long time, long durationMillis, String blame, StackTraceElement[] stack) {
+            this.time = time;
+            this.durationMillis = durationMillis;
+            this.blame = blame;
+            this.stack = stack;
+        }
+
+        /**
+         * Returns when the stall was detected.
+         * @return the time in ms since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * Returns the method the stall is blamed on.
+         * @return the class and method
+         */
+        public String getBlame() {
+            return blame;
+        }
+
+        /**
+         * Returns the first stack sampled in the blamed method.
+         * @return the stack, innermost frame first
+         */
+        public StackTraceElement[] getStack() {
+            return stack.clone();
+        }
+    }
+
+    /**
+     * Stalls blamed on a same method.
+     */
+    public static final class Summary {
+        private final String blame;
+        private int count;
+        private long totalMillis;
+        private long maxMillis;
+
+        Summary(String blame) {
+            this.blame = blame;
+        }
+
+        public String getBlame() {
+            return blame;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    /**
+     * Runnable posted to the EDT, collecting the samples while it is late.
+     */
+    private final class Ping implements Runnable {
+        private final long posted = System.nanoTime();
+        private long detected;
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final Map<String, StackTraceElement[]> stacks = new HashMap<>();
+
+        /**
+         * Adds a sample.
+         * @return <code>true</code> for the first sample
+         */
+        synchronized boolean sample(String blame, StackTraceElement[] stack) {
+            counts.merge(blame, 1, Integer::sum);
+            stacks.putIfAbsent(blame, stack);
+            if (detected != 0) {
+                return false;
+            }
+            detected = System.currentTimeMillis();
+            return true;
+        }
+
+        @Override
+        public void run() {
+            edt = Thread.currentThread();
+            pending = null;
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - posted);
+            synchronized (this) {
+                if (counts.isEmpty()) {
+                    return;
+                }
+                String blame = null;
+                for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                    if (blame == null || entry.getValue() > counts.get(blame)) {
+                        blame = entry.getKey();
+                    }
+                }
+                record(new Stall(detected, duration, blame, stacks.get(blame)));
+            }
+        }
+    }
+
+    /**
+     * Creates a detector, not started.
+     * @param thresholdMillis the duration over which the EDT is stalled
+     */
+    public ZVStallDetector(long thresholdMillis) {
+        if (thresholdMillis <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive: " + thresholdMillis);
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.intervalMillis = Math.max(10, thresholdMillis / 5);
+        this.watchdog = new Thread(this::watch, "zooviewer-edt-watchdog");
+        this.watchdog.setDaemon(true);
+    }
+
+    /**
+     * Starts a detector with the threshold of {@link #PROPERTY_THRESHOLD},
+     * 500 ms by default.
+     * @return the detector, or <code>null</code> if disabled
+     */
+    public static ZVStallDetector startFromSystemProperties() {
+        long threshold = Long.getLong(PROPERTY_THRESHOLD, 500);
+        if (threshold <= 0) {
+            return null;
+        }
+        ZVStallDetector detector = new ZVStallDetector(threshold);
+        detector.start();
+        return detector;
+    }
+
+    public void start() {
+        watchdog.start();
+    }
+
+    /**
+     * Stops the watchdog. The report is kept.
+     */
+    public void close() {
+        closed = true;
+        watchdog.interrupt();
+    }
+
+    public long getThresholdMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+    }
+
+    private void watch() {
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Ping ping = pending;
+            if (ping == null) {
+                ping = new Ping();
+                pending = ping;
+                EventQueue.invokeLater(ping);
+            } else if (System.nanoTime() - ping.posted >= thresholdNanos) {
+                Thread thread = edt;
+                if (thread == null) {
+                    continue;
+                }
+                StackTraceElement[] stack = thread.getStackTrace();
+                String blame = blame(stack);
+                if (ping.sample(blame, stack)) {
+                    log.warn("UI not responding for {} ms, in {}", getThresholdMillis(), blame);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the method a stack is blamed on.
+     * @param stack the stack, innermost frame first
+     * @return the class and method of the frame
+     */
+    private String blame(StackTraceElement[] stack) {
+        if (stack.length == 0) {
+            return "?";
+        }
+        for (StackTraceElement frame : stack) {
+            if (isListenerCall(frame)) {
+                return frame.getClassName() + "." + frame.getMethodName();
+            }
+        }
+        for (int i = stack.length - 1; i >= 0; i--) {
+            if (stack[i].getClassName().startsWith(APP_PACKAGE)) {
+                // Skips the lambdas run by the EDT, to their body
+                while (i > 0 && isLambda(stack[i]) && stack[i - 1].getClassName().startsWith(APP_PACKAGE)) {
+                    i--;
+                }
+                return stack[i].getClassName() + "." + stack[i].getMethodName();
+            }
+        }
+        return stack[0].getClassName() + "." + stack[0].getMethodName();
+    }
+
+    private static boolean isLambda(StackTraceElement frame) {
+        return frame.getClassName().contains("$$Lambda") || frame.getMethodName().startsWith("lambda$");
+    }
+
+    /**
+     * Formats a frame without its class loader and module, which
+     * {@link StackTraceElement#toString()} adds on recent JVMs.
+     * @param frame the frame
+     * @return the class, method, file and line
+     */
+    private static String format(StackTraceElement frame) {
+        return frame.getClassName() + "." + frame.getMethodName() + "("
+                + (frame.getFileName() == null ? "Unknown Source" : frame.getFileName() + ":" + frame.getLineNumber())
+                + ")";
+    }
+
+    private boolean isListenerCall(StackTraceElement frame) {
+        String className = frame.getClassName();
+        if (!className.startsWith(APP_PACKAGE)) {
+            return false;
+        }
+        Boolean listener = listenerClasses.get(className);
+        if (listener == null) {
+            try {
+                Class<?> type = Class.forName(className, false, getClass().getClassLoader());
+                listener = ZVModelListener.class.isAssignableFrom(type) || ActionListener.class.isAssignableFrom(type);
+            } catch (ClassNotFoundException | LinkageError e) {
+                listener = false;
+            }
+            listenerClasses.put(className, listener);
+        }
+        if (!listener) {
+            return false;
+        }
+        String method = frame.getMethodName();
+        return "actionPerformed".equals(method) || "nodeCreated".equals(method) || "nodeDeleted".equals(method)
+                || "nodeDataChanged".equals(method) || "childrenLoaded".equals(method);
+    }
+
+    private synchronized void record(Stall stall) {
+        log.warn("UI stalled {} ms in {}", stall.getDurationMillis(), stall.getBlame());
+        if (recent.size() == MAX_RECENT) {
+            recent.removeLast();
+        }
+        recent.addFirst(stall);
+        Summary summary = summaries.computeIfAbsent(stall.getBlame(), Summary::new);
+        summary.count++;
+        summary.totalMillis += stall.getDurationMillis();
+        summary.maxMillis = Math.max(summary.maxMillis, stall.getDurationMillis());
+    }
+
+    /**
+     * Returns the last stalls.
+     * @return the stalls, last first
+     */
+    public synchronized List<Stall> getRecentStalls() {
+        return new ArrayList<>(recent);
+    }
+
+    /**
+     * Returns the stalls of each blamed method.
+     * @return the summaries, longest total first
+     */
+    public synchronized List<Summary> getSummaries() {
+        List<Summary> result = new ArrayList<>();
+        for (Summary summary : summaries.values()) {
+            Summary copy = new Summary(summary.blame);
+            copy.count = summary.count;
+            copy.totalMillis = summary.totalMillis;
+            copy.maxMillis = summary.maxMillis;
+            result.add(copy);
+        }
+        result.sort((a, b) -> Long.compare(b.totalMillis, a.totalMillis));
+        return result;
+    }
+
+    /**
+     * Forgets the recorded stalls.
+     */
+    public synchronized void clear() {
+        recent.clear();
+        summaries.clear();
+    }
+
+    /**
+     * Writes the report as text: the summaries, then the last stalls with
+     * their stack.
+     * @param out the writer
+     * @throws IOException if the report cannot be written
+     */
+    public void writeReport(Writer out) throws IOException {
+        List<Summary> blamed = getSummaries();
+        List<Stall> stalls = getRecentStalls();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        out.write(String.format("UI stalls over %d ms since %s%n%n", getThresholdMillis(),
+                format.format(new Date(startTime))));
+        out.write(String.format("%8s %10s %8s  %s%n", "Count", "Total ms", "Max ms", "Blamed on"));
+        for (Summary summary : blamed) {
+            out.write(String.format("%8d %10d %8d  %s%n", summary.count, summary.totalMillis, summary.maxMillis,
+                    summary.blame));
+        }
+        out.write(String.format("%nLast %d stalls, last first%n", stalls.size()));
+        for (Stall stall : stalls) {
+            out.write(String.format("%n%s  %d ms  %s%n", format.format(new Date(stall.time)), stall.durationMillis,
+                    stall.blame));
+            for (int i = 0; i < Math.min(stall.stack.length, MAX_FRAMES); i++) {
+                out.write(String.format("    at %s%n", format(stall.stack[i])));
+            }
+            if (stall.stack.length > MAX_FRAMES) {
+                out.write(String.format("    ... %d more%n", stall.stack.length - MAX_FRAMES));
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import java.util.List;
+
+/**
+ * A running change of the data of many nodes.
+ * <p>
+ * The nodes are written in <code>multi</code> transactions checking the
+ * version of each node against the one the change was computed from: a
+ * node written by someone else in the meantime is not overwritten, but
+ * reported as a conflict. The counters can be read from any thread.
+ * </p>
+ * @see ZVModel#editNodes(net.isammoc.zooviewer.node.ZVNode[], ZVDataChange, Listener)
+ * @see ZVModel#editSubtrees(net.isammoc.zooviewer.node.ZVNode[], java.util.regex.Pattern, ZVDataChange, Listener)
+ */
+public interface ZVBulkEdit extends ZVTask {
+
+    /**
+     * Receives the progress of a bulk edit, on the edit thread or on the
+     * ZooKeeper event thread.
+     */
+    interface Listener {
+        /**
+         * Called when more nodes have been written.
+         * @param edit the bulk edit
+         */
+        void progress(ZVBulkEdit edit);
+
+        /**
+         * Called once, when the bulk edit is complete, cancelled or failed.
+         * @param edit the bulk edit
+         */
+        void done(ZVBulkEdit edit);
+    }
+
+    /**
+     * Returns the number of nodes the change is applied to.
+     * @return the number of nodes, or <code>-1</code> until they are listed
+     */
+    int getTotal();
+
+    /**
+     * Returns the number of nodes written so far.
+     * @return the number of updated nodes
+     */
+    int getUpdated();
+
+    /**
+     * Returns the number of nodes the change left as they were.
+     * @return the number of unchanged nodes
+     */
+    int getUnchanged();
+
+    /**
+     * Returns the nodes which were not written because they changed, or
+     * were deleted, since their version was read.
+     * @return the paths of the conflicting nodes
+     */
+    List<String> getConflicts();
+
+    /**
+     * Returns the number of nodes which could not be written for another
+     * reason, such as data the change cannot apply to.
+     * @return the number of failures
+     */
+    int getFailed();
+
+    /**
+     * Returns the error which stopped the bulk edit.
+     * @return the error, or <code>null</code>
+     */
+    Exception getError();
+
+    /**
+     * Stops the bulk edit: no more transactions are sent, and the nodes
+     * already written keep their new data.
+     */
+    void cancel();
+
+    /**
+     * Checks if the bulk edit has been cancelled.
+     * @return <code>true</code> if cancelled
+     */
+    boolean isCancelled();
+
+    /**
+     * Checks if the bulk edit is over.
+     * @return <code>true</code> once complete, cancelled or failed
+     */
+    boolean isDone();
+}
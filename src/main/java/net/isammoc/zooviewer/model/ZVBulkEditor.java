@@ -0,0 +1,521 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.node.ZVNode;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Bulk edit, running on its own thread.
+ * <p>
+ * When editing subtrees, they are first listed from the server with
+ * pipelined <code>getChildren</code> calls (at most
+ * {@link ZVModelConfig#getCrawlWindow()} outstanding), whatever the model
+ * has loaded. A subtree which cannot be listed stops the edit before any
+ * node is written.
+ * </p>
+ * <p>
+ * The change is computed from the data and version known by the model,
+ * or fetched with pipelined <code>getData</code> calls (at most
+ * {@link ZVModelConfig#getCrawlWindow()} outstanding) for the nodes whose
+ * data is not loaded. The changed nodes are written in <code>multi</code>
+ * batches of {@link ZVModelConfig#getEditBatchSize()} nodes, each
+ * <code>setData</code> checking the version read, with at most
+ * {@link ZVModelConfig#getEditWindow()} batches in flight.
+ * </p>
+ * <p>
+ * A batch is atomic: when one of its nodes has changed or was deleted, the
+ * server rejects the whole batch and reports the culprit. The culprit is
+ * counted as a conflict, and the other nodes are sent again in two halves,
+ * so that a batch holding several conflicts takes a few more transactions
+ * rather than one per node.
+ * </p>
+ */
+class ZVBulkEditor implements ZVBulkEdit, Runnable {
+
+    /**
+     * Receives the nodes written, on the ZooKeeper event thread.
+     */
+    interface Sink {
+        /**
+         * Called when a node has been written.
+         * @param path the node path
+         * @param data the new data
+         * @param stat the new stat
+         */
+        void written(String path, byte[] data, Stat stat);
+    }
+
+    /**
+     * Data of a node at a version: read, then to be written.
+     */
+    private static final class Write {
+        private final String path;
+        private final byte[] data;
+        private final int version;
+
+        Write(String path, byte[] data, int version) {
+            this.path = path;
+            this.data = data;
+            this.version = version;
+        }
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ZooKeeper zk;
+    private final List<String> paths;
+    private final boolean subtrees;
+    private final Pattern pattern;
+    private final Function<String, ZVNode> nodes;
+    private final ZVDataChange change;
+    private final Listener listener;
+    private final Sink sink;
+    private final int batchSize;
+    private final int window;
+    private final int maxBatchBytes;
+    private final int fetchWindow;
+    private final Semaphore fetchPermits;
+
+    /** Nodes fetched, with their current data. */
+    private final Queue<Write> fetched = new ConcurrentLinkedQueue<>();
+
+    /** Nodes to list, guarded by this. */
+    private final Deque<String> toList = new ArrayDeque<>();
+    /** Listings sent and not answered, guarded by this. */
+    private int listing;
+
+    /** Batches sent and not answered, guarded by this. */
+    private int inFlight;
+    /** Remains of the rejected batches, guarded by this. */
+    private final Deque<List<Write>> retries = new ArrayDeque<>();
+    private final List<String> conflicts = new ArrayList<>();
+
+    private volatile int total = -1;
+    private volatile int updated;
+    private volatile int unchanged;
+    private volatile int failed;
+    private volatile Exception error;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+
+    private final ChildrenCallback listCallback = this::processChildren;
+    private final DataCallback fetchCallback = this::processData;
+    private final MultiCallback multiCallback = this::processMulti;
+
+    /**
+     * Creates a bulk edit.
+     * @param zk the ZooKeeper client
+     * @param paths the nodes to change, or the roots of the subtrees
+     * @param subtrees <code>true</code> to change the nodes of the subtrees
+     * @param pattern found in the paths of the nodes of the subtrees to
+     *            change, or <code>null</code> for all of them
+     * @param nodes gives the node of a path loaded in the model, or
+     *            <code>null</code>
+     * @param change the change
+     * @param config the settings
+     * @param listener notified of the progress, may be <code>null</code>
+     * @param sink receives the nodes written
+     */
+    ZVBulkEditor(ZooKeeper zk, List<String> paths, boolean subtrees, Pattern pattern,
+            Function<String, ZVNode> nodes, ZVDataChange change, ZVModelConfig config, Listener listener, Sink sink) {
+        this.zk = zk;
+        this.paths = paths;
+        this.subtrees = subtrees;
+        this.pattern = pattern;
+        this.nodes = nodes;
+        this.change = change;
+        this.listener = listener;
+        this.sink = sink;
+        this.batchSize = Math.max(1, config.getEditBatchSize());
+        this.window = Math.max(1, config.getEditWindow());
+        this.maxBatchBytes = Math.max(1, config.getBatchBytes());
+        this.fetchWindow = Math.max(1, config.getCrawlWindow());
+        this.fetchPermits = new Semaphore(fetchWindow);
+    }
+
+    /**
+     * Starts the bulk edit on a new thread.
+     */
+    void start() {
+        new Thread(this, "zooviewer-bulk-edit").start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            edit();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e;
+        } catch (KeeperException e) {
+            log.error("Bulk edit failed", e);
+            error = e;
+        } catch (RuntimeException e) {
+            log.error("Bulk edit failed", e);
+            error = e;
+        } finally {
+            done = true;
+            log.info("Bulk edit {}: {} nodes updated, {} unchanged, {} conflicts, {} failed",
+                    cancelled ? "cancelled" : "done", updated, unchanged, getConflicts().size(), failed);
+            if (listener != null) {
+                listener.done(this);
+            }
+        }
+    }
+
+    private void edit() throws InterruptedException, KeeperException {
+        List<String> targets = subtrees ? listSubtrees() : paths;
+        if (cancelled) {
+            return;
+        }
+        total = targets.size();
+        fireProgress();
+        Set<String> seen = new HashSet<>();
+        List<Write> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for (int i = 0; i <= targets.size() && !cancelled; i++) {
+            if (i < targets.size()) {
+                String path = targets.get(i);
+                if (!seen.add(path)) {
+                    total--;
+                    continue;
+                }
+                read(path);
+            } else {
+                // Waits for the data being fetched
+                fetchPermits.acquire(fetchWindow);
+                fetchPermits.release(fetchWindow);
+            }
+            Write read;
+            while ((read = fetched.poll()) != null) {
+                Write write = prepare(read);
+                if (write == null) {
+                    continue;
+                }
+                int size = write.path.length() + (write.data == null ? 0 : write.data.length);
+                if (!batch.isEmpty() && (batch.size() >= batchSize || batchBytes + size > maxBatchBytes)) {
+                    send(batch);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                batch.add(write);
+                batchBytes += size;
+            }
+        }
+        if (!batch.isEmpty() && !cancelled) {
+            send(batch);
+        }
+        // Sends the remains of the rejected batches, until all are answered
+        while (true) {
+            List<Write> retry;
+            synchronized (this) {
+                while (inFlight > 0 && (retries.isEmpty() || cancelled)) {
+                    wait();
+                }
+                retry = cancelled ? null : retries.poll();
+                if (retry == null) {
+                    return;
+                }
+            }
+            send(retry);
+        }
+    }
+
+    /**
+     * Lists the subtrees from the server.
+     * @return the paths of the nodes matching the pattern, parents first
+     * @throws KeeperException if a subtree cannot be listed
+     */
+    private List<String> listSubtrees() throws InterruptedException, KeeperException {
+        List<String> matched = new ArrayList<>();
+        synchronized (this) {
+            toList.addAll(paths);
+        }
+        while (true) {
+            String path;
+            synchronized (this) {
+                while (!cancelled && error == null && (toList.isEmpty() ? listing > 0 : listing >= fetchWindow)) {
+                    wait();
+                }
+                if (cancelled || error != null || toList.isEmpty()) {
+                    break;
+                }
+                path = toList.poll();
+                listing++;
+            }
+            if (pattern == null || pattern.matcher(path).find()) {
+                matched.add(path);
+            }
+            try {
+                zk.getChildren(path, false, listCallback, null);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    listing--;
+                }
+                throw e;
+            }
+        }
+        if (error instanceof KeeperException) {
+            throw (KeeperException) error;
+        }
+        return matched;
+    }
+
+    private void processChildren(int rc, String path, Object ctx, List<String> names) {
+        synchronized (this) {
+            listing--;
+            if (rc == Code.OK.intValue()) {
+                String prefix = "/".equals(path) ? "/" : path + "/";
+                for (String name : names) {
+                    toList.add(prefix + name);
+                }
+            } else if (rc != Code.NONODE.intValue()) {
+                // Deleted nodes are simply not edited
+                log.error("Cannot list children of {} : {}", path, Code.get(rc));
+                error = KeeperException.create(Code.get(rc), path);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reads the data of a node and its version, from the model if loaded.
+     * @param path the node path
+     */
+    private void read(String path) throws InterruptedException {
+        ZVNode node = nodes.apply(path);
+        if (node != null && node.isDataLoaded() && node.hasStat()) {
+            // The version is read first: data refreshed in between then
+            // fails the version check rather than being overwritten
+            int version = node.getVersion();
+            byte[] data = node.getData();
+            if (node.isDataLoaded()) {
+                fetched.add(new Write(path, data, version));
+                return;
+            }
+        }
+        fetchPermits.acquire();
+        try {
+            zk.getData(path, false, fetchCallback, null);
+        } catch (RuntimeException e) {
+            fetchPermits.release();
+            throw e;
+        }
+    }
+
+    private void processData(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        try {
+            if (rc == Code.OK.intValue()) {
+                fetched.add(new Write(path, data, stat.getVersion()));
+            } else if (rc == Code.NONODE.intValue()) {
+                conflict(path);
+            } else {
+                log.warn("Cannot read {} : {}", path, Code.get(rc));
+                failed(1);
+            }
+        } finally {
+            fetchPermits.release();
+        }
+    }
+
+    /**
+     * Applies the change to the data read.
+     * @param read the current data of a node
+     * @return the data to write, or <code>null</code> if none
+     */
+    private Write prepare(Write read) {
+        byte[] data;
+        try {
+            data = change.apply(read.path, read.data);
+        } catch (IllegalArgumentException e) {
+            log.warn("Cannot change {} : {}", read.path, e.getMessage());
+            failed(1);
+            return null;
+        }
+        if (data == null) {
+            synchronized (this) {
+                unchanged++;
+            }
+            return null;
+        }
+        return new Write(read.path, data, read.version);
+    }
+
+    private void send(List<Write> batch) throws InterruptedException {
+        List<Op> ops = new ArrayList<>(batch.size());
+        for (Write write : batch) {
+            ops.add(Op.setData(write.path, write.data, write.version));
+        }
+        synchronized (this) {
+            while (inFlight >= window) {
+                wait();
+            }
+            inFlight++;
+        }
+        try {
+            zk.multi(ops, multiCallback, batch);
+        } catch (RuntimeException e) {
+            completed(null);
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processMulti(int rc, String path, Object ctx, List<OpResult> results) {
+        List<Write> batch = (List<Write>) ctx;
+        List<Write> retry = null;
+        try {
+            if (rc == Code.OK.intValue()) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Write write = batch.get(i);
+                    sink.written(write.path, write.data, ((OpResult.SetDataResult) results.get(i)).getStat());
+                }
+                synchronized (this) {
+                    updated += batch.size();
+                }
+            } else if (results == null) {
+                log.warn("Cannot write {} nodes : {}", batch.size(), Code.get(rc));
+                failed(batch.size());
+            } else {
+                retry = new ArrayList<>(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    int err = ((OpResult.ErrorResult) results.get(i)).getErr();
+                    if (err == Code.OK.intValue() || err == Code.RUNTIMEINCONSISTENCY.intValue()) {
+                        retry.add(batch.get(i));
+                    } else if (err == Code.BADVERSION.intValue() || err == Code.NONODE.intValue()) {
+                        conflict(batch.get(i).path);
+                    } else {
+                        log.warn("Cannot write {} : {}", batch.get(i).path, Code.get(err));
+                        failed(1);
+                    }
+                }
+                if (retry.size() == batch.size()) {
+                    // No culprit reported
+                    log.warn("Cannot write {} nodes : {}", batch.size(), Code.get(rc));
+                    failed(batch.size());
+                    retry = null;
+                } else {
+                    log.debug("Batch of {} nodes rejected ({}), sending {} again", batch.size(), Code.get(rc),
+                            retry.size());
+                }
+            }
+            fireProgress();
+        } catch (RuntimeException e) {
+            log.error("Error handling edit batch", e);
+        } finally {
+            completed(retry);
+        }
+    }
+
+    /**
+     * Releases the window slot of an answered batch.
+     * @param retry the nodes to send again, may be <code>null</code>
+     */
+    private synchronized void completed(List<Write> retry) {
+        inFlight--;
+        if (retry != null && !retry.isEmpty()) {
+            int half = (retry.size() + 1) / 2;
+            retries.add(retry.subList(0, half));
+            if (half < retry.size()) {
+                retries.add(retry.subList(half, retry.size()));
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized void conflict(String path) {
+        log.debug("Conflict on {}", path);
+        conflicts.add(path);
+    }
+
+    private synchronized void failed(int count) {
+        failed += count;
+    }
+
+    private void fireProgress() {
+        if (listener != null) {
+            listener.progress(this);
+        }
+    }
+
+    @Override
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public int getUpdated() {
+        return updated;
+    }
+
+    @Override
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    @Override
+    public synchronized List<String> getConflicts() {
+        return new ArrayList<>(conflicts);
+    }
+
+    @Override
+    public int getFailed() {
+        return failed;
+    }
+
+    @Override
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+}
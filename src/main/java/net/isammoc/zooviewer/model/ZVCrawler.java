@@ -0,0 +1,360 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Pipelined asynchronous crawler.
+ * <p>
+ * Children are listed with <code>getChildren2</code> (which also returns the
+ * parent {@link Stat}) and their data is fetched with asynchronous
+ * <code>getData</code> calls, or only their stat with <code>exists</code>
+ * calls when the payloads are fetched on demand. At most
+ * {@link ZVModelConfig#getCrawlWindow()} requests are outstanding at a time,
+ * the others are queued. Data requests are issued before pending list
+ * requests so that started listings complete first, and stat checks come
+ * last so that they do not delay the listings triggered by watches.
+ * </p>
+ * <p>
+ * Requests are queued in order but may be sent out of order, since several
+ * threads drain the queues. Each data request therefore carries the
+ * position of its child, and a listing is handed to the {@link Sink} with
+ * its children in listing order once all of them are answered.
+ * </p>
+ */
+class ZVCrawler {
+
+    /**
+     * Receives the results of the crawler, on the ZooKeeper event thread.
+     */
+    interface Sink {
+        /**
+         * Called when the children of a node have been listed.
+         * @param parentPath the parent path
+         * @param parentStat the parent stat
+         * @param names the children names
+         * @return the names whose data must be fetched
+         */
+        List<String> childrenListed(String parentPath, Stat parentStat, List<String> names);
+
+        /**
+         * Called once the data of the children returned by
+         * {@link #childrenListed(String, Stat, List)} have been fetched.
+         * @param parentPath the parent path
+         * @param names the children names, in listing order
+         * @param data the children data, <code>null</code> if not fetched
+         * @param stats the children stats, <code>null</code> for children
+         *            deleted in the meantime
+         */
+        void childrenFetched(String parentPath, List<String> names, byte[][] data, Stat[] stats);
+
+        /**
+         * Called when the children of a node cannot be listed.
+         * @param parentPath the parent path
+         * @param code the error code
+         */
+        void listFailed(String parentPath, Code code);
+
+        /**
+         * Called when the stat of a node has been read by
+         * {@link ZVCrawler#check(String)}.
+         * @param path the node path
+         * @param stat the node stat, <code>null</code> if the node does not
+         *            exist anymore
+         */
+        void nodeChecked(String path, Stat stat);
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ZooKeeper zk;
+    private final Function<String, Watcher> watchers;
+    private final Sink sink;
+    private final int window;
+    private final boolean fetchData;
+
+    private final Deque<Runnable> dataQueue = new ArrayDeque<>();
+    private final Deque<Runnable> listQueue = new ArrayDeque<>();
+    private final Deque<Runnable> checkQueue = new ArrayDeque<>();
+    private int inFlight;
+    private volatile boolean closed;
+
+    private final DataCallback dataCallback = this::processData;
+    private final StatCallback statCallback = this::processStat;
+    private final StatCallback checkCallback = this::processCheck;
+    private final Children2Callback listCallback = this::processChildren;
+
+    /**
+     * Children of a node whose data is being fetched.
+     */
+    private static final class Batch {
+        private final String parentPath;
+        private final List<String> names;
+        private final byte[][] data;
+        private final Stat[] stats;
+        private final Runnable done;
+        private int remaining;
+
+        Batch(String parentPath, List<String> names, Runnable done) {
+            this.parentPath = parentPath;
+            this.names = names;
+            this.done = done;
+            this.data = new byte[names.size()][];
+            this.stats = new Stat[names.size()];
+            this.remaining = names.size();
+        }
+    }
+
+    /**
+     * Context of a data request: the child at a position of a batch.
+     */
+    private static final class Child {
+        private final Batch batch;
+        private final int index;
+
+        Child(Batch batch, int index) {
+            this.batch = batch;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Creates a crawler.
+     * @param zk the ZooKeeper client
+     * @param watchers gives the watcher to set on a path, or <code>null</code>
+     *            if the path needs no watch
+     * @param sink the receiver of the results
+     * @param window the maximum number of outstanding requests
+     * @param fetchData <code>true</code> to fetch the children data,
+     *            <code>false</code> for their stat only
+     */
+    ZVCrawler(ZooKeeper zk, Function<String, Watcher> watchers, Sink sink, int window, boolean fetchData) {
+        this.zk = zk;
+        this.watchers = watchers;
+        this.sink = sink;
+        this.window = Math.max(1, window);
+        this.fetchData = fetchData;
+    }
+
+    /**
+     * Lists the children of the specified node and fetches their data.
+     * @param path the parent path
+     */
+    void list(String path) {
+        list(path, null);
+    }
+
+    /**
+     * Lists the children of the specified node and fetches their data.
+     * @param path the parent path
+     * @param done called once the results are handed to the sink, may be
+     *            <code>null</code>
+     */
+    void list(String path, Runnable done) {
+        submit(listQueue, () -> {
+            try {
+                zk.getChildren(path, watchers.apply(path), listCallback, done);
+            } catch (RuntimeException e) {
+                done(done);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Reads the stat of the specified node, and sets its watch.
+     * @param path the node path
+     */
+    void check(String path) {
+        submit(checkQueue, () -> zk.exists(path, watchers.apply(path), checkCallback, null));
+    }
+
+    /**
+     * Returns the number of requests sent and not answered yet.
+     * @return the number of outstanding requests
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Drops the pending requests, and the answers to the outstanding ones.
+     */
+    synchronized void close() {
+        closed = true;
+        dataQueue.clear();
+        listQueue.clear();
+        checkQueue.clear();
+    }
+
+    private void processData(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        if (closed) {
+            return;
+        }
+        Child child = (Child) ctx;
+        Batch batch = child.batch;
+        boolean complete = --batch.remaining == 0;
+        try {
+            if (rc == Code.OK.intValue()) {
+                batch.data[child.index] = data;
+                batch.stats[child.index] = stat;
+            } else if (rc != Code.NONODE.intValue()) {
+                log.warn("Cannot get data of {} : {}", path, Code.get(rc));
+            }
+            if (complete) {
+                sink.childrenFetched(batch.parentPath, batch.names, batch.data, batch.stats);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error handling data of " + path, e);
+        } finally {
+            if (complete) {
+                // Even if a listener failed, as it lets the path be refreshed again
+                done(batch.done);
+            }
+            completed();
+        }
+    }
+
+    private void processStat(int rc, String path, Object ctx, Stat stat) {
+        processData(rc, path, ctx, null, stat);
+    }
+
+    private void processCheck(int rc, String path, Object ctx, Stat stat) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (rc == Code.OK.intValue() || rc == Code.NONODE.intValue()) {
+                sink.nodeChecked(path, stat);
+            } else {
+                log.warn("Cannot check {} : {}", path, Code.get(rc));
+            }
+        } catch (RuntimeException e) {
+            log.error("Error handling stat of " + path, e);
+        } finally {
+            completed();
+        }
+    }
+
+    private void processChildren(int rc, String path, Object ctx, List<String> names, Stat stat) {
+        if (closed) {
+            return;
+        }
+        // Run here unless handed to a batch being fetched
+        Runnable done = (Runnable) ctx;
+        try {
+            if (rc != Code.OK.intValue()) {
+                sink.listFailed(path, Code.get(rc));
+                return;
+            }
+            List<String> toFetch = sink.childrenListed(path, stat, names);
+            Batch batch = new Batch(path, toFetch, done);
+            if (toFetch.isEmpty()) {
+                sink.childrenFetched(path, toFetch, batch.data, batch.stats);
+                return;
+            }
+            done = null;
+            for (int i = 0; i < toFetch.size(); i++) {
+                String childPath = ("/".equals(path) ? "/" : path + "/") + toFetch.get(i);
+                Child child = new Child(batch, i);
+                submit(dataQueue, () -> {
+                    try {
+                        if (fetchData) {
+                            zk.getData(childPath, watchers.apply(childPath), dataCallback, child);
+                        } else {
+                            zk.exists(childPath, watchers.apply(childPath), statCallback, child);
+                        }
+                    } catch (RuntimeException e) {
+                        // Answered as failed, so that the batch completes
+                        log.error("Cannot fetch " + childPath, e);
+                        processData(Code.SYSTEMERROR.intValue(), childPath, child, null, null);
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            log.error("Error handling children of " + path, e);
+        } finally {
+            done(done);
+            completed();
+        }
+    }
+
+    private static void done(Runnable done) {
+        if (done != null) {
+            done.run();
+        }
+    }
+
+    private void submit(Deque<Runnable> queue, Runnable request) {
+        synchronized (this) {
+            queue.add(request);
+        }
+        drain();
+    }
+
+    private void completed() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * Sends queued requests while the window is not full.
+     */
+    private void drain() {
+        while (true) {
+            Runnable request;
+            synchronized (this) {
+                if (inFlight >= window) {
+                    return;
+                }
+                request = dataQueue.poll();
+                if (request == null) {
+                    request = listQueue.poll();
+                }
+                if (request == null) {
+                    request = checkQueue.poll();
+                }
+                if (request == null) {
+                    return;
+                }
+                inFlight++;
+            }
+            try {
+                request.run();
+            } catch (RuntimeException e) {
+                log.error("Cannot send request", e);
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A change of the data of a node, applied by a bulk edit.
+ * <p>
+ * Text is read and written as UTF-8.
+ * </p>
+ * @see ZVModel#editNodes(net.isammoc.zooviewer.node.ZVNode[], ZVDataChange, ZVBulkEdit.Listener)
+ */
+public interface ZVDataChange {
+
+    /**
+     * Computes the new data of a node.
+     * @param path the node path
+     * @param data the current data, may be <code>null</code>
+     * @return the new data, or <code>null</code> to leave the node unchanged
+     * @throws IllegalArgumentException if the change cannot apply to this data
+     */
+    byte[] apply(String path, byte[] data);
+
+    /**
+     * Returns a change replacing the data.
+     * @param value the new data
+     * @return the change
+     */
+    static ZVDataChange setValue(byte[] value) {
+        byte[] copy = value.clone();
+        return (path, data) -> Arrays.equals(data, copy) ? null : copy.clone();
+    }
+
+    /**
+     * Returns a change replacing every occurrence of a text. Nodes whose
+     * data is not UTF-8 text, or does not contain the text, are left
+     * unchanged.
+     * @param find the text to find, or a regular expression
+     * @param replacement the replacement, which may refer to the groups as
+     *            <code>$1</code> when <code>find</code> is a regular
+     *            expression
+     * @param regex <code>true</code> if <code>find</code> is a regular
+     *            expression
+     * @return the change
+     * @throws java.util.regex.PatternSyntaxException if the regular
+     *             expression is invalid
+     */
+    static ZVDataChange replace(String find, String replacement, boolean regex) {
+        Pattern pattern = regex ? Pattern.compile(find) : Pattern.compile(find, Pattern.LITERAL);
+        String replaced = regex ? replacement : Matcher.quoteReplacement(replacement);
+        return (path, data) -> {
+            if (data == null) {
+                return null;
+            }
+            CharBuffer text;
+            try {
+                text = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT).decode(ByteBuffer.wrap(data));
+            } catch (CharacterCodingException e) {
+                // Binary data
+                return null;
+            }
+            Matcher matcher = pattern.matcher(text);
+            if (!matcher.find()) {
+                return null;
+            }
+            byte[] result = matcher.replaceAll(replaced).getBytes(StandardCharsets.UTF_8);
+            return Arrays.equals(data, result) ? null : result;
+        };
+    }
+
+    /**
+     * Returns a change setting a field of JSON objects, created with its
+     * missing parents. A node whose data is not a JSON object cannot be
+     * changed.
+     * @param pointer the JSON pointer of the field, such as
+     *            <code>/db/timeout</code>
+     * @param value the JSON value of the field, such as <code>30</code> or
+     *            <code>"text"</code>
+     * @return the change
+     * @throws IllegalArgumentException if the pointer or the value is invalid
+     */
+    static ZVDataChange setJsonField(String pointer, String value) {
+        return new ZVJsonPatch(pointer, value);
+    }
+}
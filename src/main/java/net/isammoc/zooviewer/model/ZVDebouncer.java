@@ -0,0 +1,117 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces the refreshes triggered by watch events.
+ * <p>
+ * Refreshes are keyed (by event type and path). A refresh starts
+ * {@link ZVModelConfig#getDebounceMillis()} ms after the first request, and
+ * requests received meanwhile are dropped. At most one refresh per key is in
+ * flight: a request received while it runs schedules exactly one more
+ * refresh once it completes, so the final state is always fetched.
+ * </p>
+ */
+class ZVDebouncer {
+
+    private enum State {
+        SCHEDULED, RUNNING, RUNNING_DIRTY
+    }
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ScheduledExecutorService executor;
+    private final long delay;
+
+    /** State of the keys with a pending refresh, guarded by this. */
+    private final Map<String, State> states = new HashMap<>();
+    private long collapsed;
+
+    ZVDebouncer(ScheduledExecutorService executor, long delay) {
+        this.executor = executor;
+        this.delay = delay;
+    }
+
+    /**
+     * Requests a refresh.
+     * @param key the key of the refresh
+     * @param task the refresh, which must run the given callback once complete
+     */
+    void submit(String key, Consumer<Runnable> task) {
+        synchronized (this) {
+            State state = states.get(key);
+            if (state != null) {
+                if (state == State.RUNNING) {
+                    states.put(key, State.RUNNING_DIRTY);
+                }
+                collapsed++;
+                return;
+            }
+            states.put(key, State.SCHEDULED);
+        }
+        schedule(key, task);
+    }
+
+    /**
+     * Returns the number of requests merged into another refresh.
+     * @return the number of requests saved
+     */
+    synchronized long getCollapsedCount() {
+        return collapsed;
+    }
+
+    private void schedule(String key, Consumer<Runnable> task) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.schedule(() -> run(key, task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(String key, Consumer<Runnable> task) {
+        synchronized (this) {
+            states.put(key, State.RUNNING);
+        }
+        try {
+            task.accept(() -> completed(key, task));
+        } catch (RuntimeException e) {
+            log.error("Error refreshing " + key, e);
+            completed(key, task);
+        }
+    }
+
+    private void completed(String key, Consumer<Runnable> task) {
+        boolean again;
+        synchronized (this) {
+            again = states.get(key) == State.RUNNING_DIRTY;
+            if (again) {
+                states.put(key, State.SCHEDULED);
+            } else {
+                states.remove(key);
+            }
+        }
+        if (again) {
+            schedule(key, task);
+        }
+    }
+}
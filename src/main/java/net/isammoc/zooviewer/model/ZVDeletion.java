@@ -0,0 +1,96 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+/**
+ * A running deletion of subtrees.
+ * <p>
+ * The subtrees are first listed, then deleted leaves first. The counters
+ * can be read from any thread.
+ * </p>
+ * @see ZVModel#deleteNodes(net.isammoc.zooviewer.node.ZVNode[], Listener)
+ */
+public interface ZVDeletion extends ZVTask {
+
+    /**
+     * Receives the progress of a deletion, on the ZooKeeper event thread.
+     */
+    interface Listener {
+        /**
+         * Called when more nodes have been listed or deleted.
+         * @param deletion the deletion
+         */
+        void progress(ZVDeletion deletion);
+
+        /**
+         * Called once, when the deletion is complete, cancelled or failed.
+         * @param deletion the deletion
+         */
+        void done(ZVDeletion deletion);
+    }
+
+    /**
+     * Returns the number of nodes to delete.
+     * <p>
+     * Grows while the subtrees are being listed.
+     * </p>
+     * @return the number of listed nodes
+     */
+    int getTotal();
+
+    /**
+     * Checks if the subtrees are still being listed.
+     * @return <code>true</code> until {@link #getTotal()} is final
+     */
+    boolean isListing();
+
+    /**
+     * Returns the number of nodes deleted so far.
+     * @return the number of deleted nodes
+     */
+    int getDeleted();
+
+    /**
+     * Returns the number of nodes which could not be deleted.
+     * @return the number of failures
+     */
+    int getFailed();
+
+    /**
+     * Returns the error which stopped the deletion, such as a subtree which
+     * could not be listed. The nodes are only deleted once all the subtrees
+     * are listed, so none is deleted then.
+     * @return the error, or <code>null</code>
+     */
+    Exception getError();
+
+    /**
+     * Stops the deletion: no more requests are sent, and the nodes already
+     * deleted stay deleted.
+     */
+    void cancel();
+
+    /**
+     * Checks if the deletion has been cancelled.
+     * @return <code>true</code> if cancelled
+     */
+    boolean isCancelled();
+
+    /**
+     * Checks if the deletion is over.
+     * @return <code>true</code> once no request is outstanding anymore
+     */
+    boolean isDone();
+}
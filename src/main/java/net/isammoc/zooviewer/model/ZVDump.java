@@ -0,0 +1,274 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.data.Stat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * File format of the subtree dumps.
+ * <p>
+ * A dump is a GZIP stream written sequentially:
+ * </p>
+ * <ul>
+ * <li>a header: the magic number, the absolute path of the dumped node and
+ * the expected number of records (<code>-1</code> if unknown);</li>
+ * <li>one record per node, parents before their children: the path relative
+ * to the dumped node (empty for the node itself), <code>ctime</code>,
+ * <code>mtime</code>, <code>version</code>, the ephemeral flag, and the data
+ * (length then bytes, length <code>-1</code> for no data);</li>
+ * <li>a trailer: the number of records, the highest zxid seen among the
+ * dumped nodes, and whether the dump is fuzzy: the subtree changed while
+ * it was dumped, so that the dump may mix states older and newer than
+ * that zxid. A dump without trailer is truncated.</li>
+ * </ul>
+ * <p>
+ * The first version of the format, without the fuzzy flag, is still read.
+ * </p>
+ */
+final class ZVDump {
+
+    private static final int MAGIC = 0x5A564432;
+    private static final int MAGIC_V1 = 0x5A564431;
+    private static final byte RECORD = 1;
+    private static final byte END = 0;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Name of the child of the root holding the quotas and the
+     * configuration of the server, which is neither exported nor imported.
+     */
+    static final String SYSTEM_NODE = "zookeeper";
+
+    private ZVDump() {
+    }
+
+    /**
+     * A dumped node.
+     */
+    static final class Record {
+        String path;
+        long ctime;
+        long mtime;
+        int version;
+        boolean ephemeral;
+        byte[] data;
+    }
+
+    /**
+     * Writes a dump.
+     */
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private long count;
+        private long zxid;
+
+        /**
+         * Creates a dump file and writes its header.
+         * @param file the file
+         * @param rootPath the absolute path of the dumped node
+         * @param expected the expected number of records, <code>-1</code>
+         *            if unknown
+         * @throws IOException if the file cannot be written
+         */
+        Writer(File file, String rootPath, long expected) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeUTF(rootPath);
+            out.writeLong(expected);
+        }
+
+        /**
+         * Writes a record.
+         * @param relativePath the path relative to the dumped node
+         * @param data the node data, may be <code>null</code>
+         * @param stat the node stat
+         * @throws IOException if the file cannot be written
+         */
+        void write(String relativePath, byte[] data, Stat stat) throws IOException {
+            out.writeByte(RECORD);
+            out.writeUTF(relativePath);
+            out.writeLong(stat.getCtime());
+            out.writeLong(stat.getMtime());
+            out.writeInt(stat.getVersion());
+            out.writeBoolean(stat.getEphemeralOwner() != 0);
+            if (data == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            count++;
+            zxid = Math.max(zxid, Math.max(stat.getMzxid(), Math.max(stat.getCzxid(), stat.getPzxid())));
+        }
+
+        /**
+         * Returns the highest zxid among the written records.
+         * @return the zxid
+         */
+        long getZxid() {
+            return zxid;
+        }
+
+        /**
+         * Writes the trailer, marking the dump as complete.
+         * @param fuzzy <code>true</code> if the subtree changed while dumped
+         * @throws IOException if the file cannot be written
+         */
+        void finish(boolean fuzzy) throws IOException {
+            out.writeByte(END);
+            out.writeLong(count);
+            out.writeLong(zxid);
+            out.writeBoolean(fuzzy);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a dump.
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private final String rootPath;
+        private final long expected;
+        private final boolean withFuzzy;
+        private long count;
+        private long zxid = -1;
+        private boolean fuzzy;
+
+        /**
+         * Opens a dump file and reads its header.
+         * @param file the file
+         * @throws IOException if the file cannot be read, or is not a dump
+         */
+        Reader(File file) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+            try {
+                int magic = in.readInt();
+                if (magic != MAGIC && magic != MAGIC_V1) {
+                    throw new IOException(file + " is not a ZooViewer dump");
+                }
+                this.withFuzzy = magic == MAGIC;
+                this.rootPath = in.readUTF();
+                this.expected = in.readLong();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the absolute path of the dumped node.
+         * @return the path
+         */
+        String getRootPath() {
+            return rootPath;
+        }
+
+        /**
+         * Returns the number of records announced by the header.
+         * @return the number of records, <code>-1</code> if unknown
+         */
+        long getExpected() {
+            return expected;
+        }
+
+        /**
+         * Returns the highest zxid among the dumped nodes, once the trailer
+         * has been read.
+         * @return the zxid, or <code>-1</code> before the end of the dump
+         */
+        long getZxid() {
+            return zxid;
+        }
+
+        /**
+         * Checks if the subtree changed while it was dumped, once the trailer
+         * has been read.
+         * @return <code>true</code> for a fuzzy dump
+         */
+        boolean isFuzzy() {
+            return fuzzy;
+        }
+
+        /**
+         * Reads the next record.
+         * @return the record, or <code>null</code> at the end of the dump
+         * @throws IOException if the file cannot be read, or is truncated
+         */
+        Record next() throws IOException {
+            if (zxid >= 0) {
+                return null;
+            }
+            try {
+                return read();
+            } catch (EOFException e) {
+                throw new IOException("Truncated dump after " + count + " records", e);
+            }
+        }
+
+        private Record read() throws IOException {
+            byte type = in.readByte();
+            if (type == END) {
+                long written = in.readLong();
+                zxid = in.readLong();
+                fuzzy = withFuzzy && in.readBoolean();
+                if (written != count) {
+                    throw new IOException("Corrupted dump: " + count + " records read, " + written + " written");
+                }
+                return null;
+            }
+            if (type != RECORD) {
+                throw new IOException("Corrupted dump: unknown record type " + type);
+            }
+            Record record = new Record();
+            record.path = in.readUTF();
+            record.ctime = in.readLong();
+            record.mtime = in.readLong();
+            record.version = in.readInt();
+            record.ephemeral = in.readBoolean();
+            int length = in.readInt();
+            if (length >= 0) {
+                record.data = new byte[length];
+                in.readFully(record.data);
+            }
+            count++;
+            return record;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Streams a subtree to a dump file.
+ * <p>
+ * The nodes are written depth first, parents before their children. For
+ * each node, the data and the children of the following siblings are
+ * fetched ahead with asynchronous calls, at most
+ * {@link ZVModelConfig#getCrawlWindow()} siblings at a time, so the memory
+ * used depends on the depth and width of the tree, not on its size.
+ * </p>
+ * <p>
+ * The <code>/zookeeper</code> node, holding the quotas and the
+ * configuration of the server, is not exported with the root.
+ * </p>
+ * <p>
+ * The nodes are read one by one, not from a snapshot: the dump records the
+ * highest zxid seen, which is the state it reflects if the subtree is not
+ * modified during the export. The last zxid of the ensemble is read with a
+ * <code>sync</code> before the walk, and the dump is marked as fuzzy if a
+ * node was created, changed or deleted after it: a node or a list of
+ * children newer than that zxid, a listed node gone when read, or a newer
+ * list of children of the root at the end.
+ * </p>
+ * @see ZVDump
+ */
+class ZVExporter extends ZVTransferTask {
+
+    private final ZVMeteredZooKeeper zk;
+    private final String rootPath;
+    private final File file;
+    private final int window;
+
+    private final DataCallback dataCallback = this::processData;
+    private final ChildrenCallback childrenCallback = this::processChildren;
+
+    /**
+     * A node being fetched.
+     */
+    private final class Fetch {
+        private final String path;
+        private final String relativePath;
+        private final CountDownLatch latch = new CountDownLatch(2);
+        private volatile int rc = Code.OK.intValue();
+        private byte[] data;
+        private Stat stat;
+        private List<String> children = Collections.emptyList();
+
+        Fetch(String path, String relativePath) {
+            this.path = path;
+            this.relativePath = relativePath;
+            zk.getData(path, false, dataCallback, this);
+            zk.getChildren(path, false, childrenCallback, this);
+        }
+
+        /**
+         * Waits for the node.
+         * @return <code>false</code> if the node has been deleted meanwhile
+         */
+        boolean await() throws InterruptedException, KeeperException {
+            latch.await();
+            if (rc == Code.NONODE.intValue()) {
+                return false;
+            }
+            if (rc != Code.OK.intValue()) {
+                throw KeeperException.create(Code.get(rc), path);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The children of a written node, fetched ahead.
+     */
+    private final class Level {
+        private final String path;
+        private final String relativePath;
+        private final List<String> names;
+        private final Deque<Fetch> fetches = new ArrayDeque<>();
+        private int next;
+
+        Level(Fetch parent) {
+            this.path = parent.path;
+            this.relativePath = parent.relativePath;
+            this.names = new ArrayList<>(parent.children);
+            if ("/".equals(path)) {
+                names.remove(ZVDump.SYSTEM_NODE);
+            }
+            Collections.sort(this.names);
+        }
+
+        /**
+         * Returns the next child, and fetches the following ones.
+         * @return the child, or <code>null</code> if none left
+         */
+        Fetch next() {
+            while (fetches.size() < window && next < names.size()) {
+                String name = names.get(next++);
+                fetches.add(new Fetch(("/".equals(path) ? "/" : path + "/") + name,
+                        relativePath.isEmpty() ? name : relativePath + "/" + name));
+            }
+            return fetches.poll();
+        }
+    }
+
+    /** Last zxid of the ensemble when the walk started. */
+    private long startZxid;
+
+    ZVExporter(ZVMeteredZooKeeper zk, String rootPath, File file, ZVModelConfig config, Listener listener) {
+        super(listener);
+        this.zk = zk;
+        this.rootPath = rootPath;
+        this.file = file;
+        this.window = Math.max(1, config.getCrawlWindow());
+    }
+
+    @Override
+    protected void transfer() throws IOException, KeeperException, InterruptedException {
+        total = countNodes();
+        boolean complete = false;
+        try (ZVDump.Writer writer = new ZVDump.Writer(file, rootPath, total)) {
+            startZxid = sync();
+            Fetch root = new Fetch(rootPath, "");
+            if (!root.await()) {
+                throw KeeperException.create(Code.NONODE, rootPath);
+            }
+            write(writer, root);
+            Deque<Level> stack = new ArrayDeque<>();
+            stack.push(new Level(root));
+            while (!stack.isEmpty() && !isCancelled()) {
+                Fetch fetch = stack.peek().next();
+                if (fetch == null) {
+                    stack.pop();
+                } else if (fetch.await()) {
+                    write(writer, fetch);
+                    if (!fetch.children.isEmpty()) {
+                        stack.push(new Level(fetch));
+                    }
+                } else {
+                    // Deleted since listed
+                    fuzzy = true;
+                }
+            }
+            if (!isCancelled()) {
+                Stat end = zk.exists(rootPath, false);
+                if (end == null || end.getPzxid() > startZxid) {
+                    fuzzy = true;
+                }
+                writer.finish(fuzzy);
+                zxid = writer.getZxid();
+                complete = true;
+                log.info("Exported {} nodes of {} to {} (zxid 0x{}{})", nodes, rootPath, file,
+                        Long.toHexString(zxid), fuzzy ? ", fuzzy: changed during the export" : "");
+            }
+        } finally {
+            if (!complete && !file.delete()) {
+                log.warn("Cannot delete the incomplete dump {}", file);
+            }
+        }
+    }
+
+    /**
+     * Waits for the server to catch up with the leader.
+     * @return the last zxid of the ensemble
+     */
+    private long sync() throws InterruptedException, KeeperException {
+        CountDownLatch latch = new CountDownLatch(1);
+        int[] result = new int[1];
+        VoidCallback callback = (rc, path, ctx) -> {
+            result[0] = rc;
+            latch.countDown();
+        };
+        zk.sync(rootPath, callback, null);
+        latch.await();
+        if (result[0] != Code.OK.intValue()) {
+            throw KeeperException.create(Code.get(result[0]), rootPath);
+        }
+        return zk.getLastZxid();
+    }
+
+    /**
+     * Returns the number of nodes to export, if the server can count them
+     * (ZooKeeper 3.6+).
+     * @return the number of nodes, or <code>-1</code> if unknown
+     */
+    private long countNodes() throws InterruptedException {
+        try {
+            if ("/".equals(rootPath)) {
+                String systemPath = "/" + ZVDump.SYSTEM_NODE;
+                return zk.getAllChildrenNumber(rootPath) + 1L
+                        - (zk.exists(systemPath, false) == null ? 0 : zk.getAllChildrenNumber(systemPath) + 1L);
+            }
+            return zk.getAllChildrenNumber(rootPath) + 1L;
+        } catch (KeeperException e) {
+            log.debug("Cannot count the nodes under {} : {}", rootPath, e.code());
+            return -1;
+        }
+    }
+
+    private void write(ZVDump.Writer writer, Fetch fetch) throws IOException {
+        Stat stat = fetch.stat;
+        if (Math.max(stat.getMzxid(), stat.getPzxid()) > startZxid) {
+            fuzzy = true;
+        }
+        writer.write(fetch.relativePath, fetch.data, stat);
+        transferred(1);
+        fireProgress();
+    }
+
+    private void processData(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        Fetch fetch = (Fetch) ctx;
+        if (rc == Code.OK.intValue()) {
+            fetch.data = data;
+            fetch.stat = stat;
+        } else {
+            fetch.rc = rc;
+        }
+        fetch.latch.countDown();
+    }
+
+    private void processChildren(int rc, String path, Object ctx, List<String> children) {
+        Fetch fetch = (Fetch) ctx;
+        if (rc == Code.OK.intValue()) {
+            fetch.children = children;
+        } else if (fetch.rc == Code.OK.intValue()) {
+            fetch.rc = rc;
+        }
+        fetch.latch.countDown();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.StringCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import static org.apache.zookeeper.ZooDefs.Ids.OPEN_ACL_UNSAFE;
+
+/**
+ * Replays a dump file under a node.
+ * <p>
+ * The dumped node is created under the target parent with its original
+ * name, along with its subtree (the children of a dumped root go directly
+ * under the target). The records are read sequentially and created in
+ * <code>multi</code> batches of {@link ZVModelConfig#getImportBatchSize()}
+ * nodes, with at most {@link ZVModelConfig#getImportWindow()} batches in
+ * flight: reading waits for the window, so the memory used does not depend
+ * on the size of the dump. ZooKeeper applies the requests of a session in
+ * order, so parents are always created before their children.
+ * </p>
+ * <p>
+ * A batch is atomic: if any of its nodes cannot be created (typically
+ * because it already exists, when restoring over the subtree), its nodes
+ * are written again one by one, with pipelined asynchronous creates in the
+ * same window, and the data of the existing nodes is replaced. Ephemeral
+ * nodes are skipped, and the nodes are created with an open ACL. The
+ * <code>/zookeeper</code> node of a dump of the root is skipped too.
+ * </p>
+ * @see ZVDump
+ */
+class ZVImporter extends ZVTransferTask {
+
+    private final ZooKeeper zk;
+    private final File file;
+    private final String parentPath;
+    private final int batchSize;
+    private final int window;
+    private final int maxBatchBytes;
+    private final Semaphore permits;
+
+    /** Batches rejected by the server, to be written one by one. */
+    private final Queue<List<ZVDump.Record>> rejected = new ConcurrentLinkedQueue<>();
+
+    /** Error of the server ending the replay of the rejected batches. */
+    private volatile KeeperException replayError;
+
+    private final MultiCallback multiCallback = this::processMulti;
+    private final StringCallback createCallback = this::processCreate;
+    private final StatCallback setDataCallback = this::processSetData;
+
+    ZVImporter(ZooKeeper zk, File file, String parentPath, ZVModelConfig config, Listener listener) {
+        super(listener);
+        this.zk = zk;
+        this.file = file;
+        this.parentPath = parentPath;
+        this.batchSize = Math.max(1, config.getImportBatchSize());
+        this.window = Math.max(1, config.getImportWindow());
+        this.maxBatchBytes = Math.max(1, config.getBatchBytes());
+        this.permits = new Semaphore(window);
+    }
+
+    @Override
+    protected void transfer() throws IOException, KeeperException, InterruptedException {
+        try (ZVDump.Reader reader = new ZVDump.Reader(file)) {
+            total = reader.getExpected();
+            String dumpRoot = reader.getRootPath();
+            String base = "/".equals(dumpRoot) ? parentPath
+                    : ("/".equals(parentPath) ? "" : parentPath) + dumpRoot.substring(dumpRoot.lastIndexOf('/'));
+            List<ZVDump.Record> batch = new ArrayList<>();
+            int batchBytes = 0;
+            int skipped = 0;
+            ZVDump.Record record;
+            while (!isCancelled() && (record = reader.next()) != null) {
+                if ("/".equals(dumpRoot) && (record.path.isEmpty() || record.path.equals(ZVDump.SYSTEM_NODE)
+                        || record.path.startsWith(ZVDump.SYSTEM_NODE + "/"))) {
+                    continue;
+                }
+                if (record.ephemeral) {
+                    skipped++;
+                    continue;
+                }
+                record.path = record.path.isEmpty() ? base : ("/".equals(base) ? "/" : base + "/") + record.path;
+                int size = record.path.length() + (record.data == null ? 0 : record.data.length);
+                if (!batch.isEmpty() && (batch.size() >= batchSize || batchBytes + size > maxBatchBytes)) {
+                    send(batch);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+                batch.add(record);
+                batchBytes += size;
+            }
+            if (!batch.isEmpty() && !isCancelled()) {
+                send(batch);
+            }
+            // Waits for the batches in flight, then for their replays
+            awaitWindow();
+            writeRejected();
+            awaitWindow();
+            if (replayError != null) {
+                throw replayError;
+            }
+            if (!isCancelled()) {
+                zxid = reader.getZxid();
+                fuzzy = reader.isFuzzy();
+            }
+            log.info("Imported {} nodes from {} under {}, {} failed, {} skipped{}", nodes, file, parentPath,
+                    failed, skipped, fuzzy ? ", from a fuzzy dump" : "");
+        }
+    }
+
+    private void awaitWindow() throws InterruptedException {
+        permits.acquire(window);
+        permits.release(window);
+    }
+
+    private void send(List<ZVDump.Record> batch) throws InterruptedException, KeeperException {
+        writeRejected();
+        List<Op> ops = new ArrayList<>(batch.size());
+        for (ZVDump.Record record : batch) {
+            ops.add(Op.create(record.path, record.data, OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        }
+        permits.acquire();
+        zk.multi(ops, multiCallback, batch);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processMulti(int rc, String path, Object ctx, List<OpResult> results) {
+        List<ZVDump.Record> batch = (List<ZVDump.Record>) ctx;
+        try {
+            if (rc == Code.OK.intValue()) {
+                transferred(batch.size());
+                fireProgress();
+            } else {
+                log.debug("Batch of {} nodes failed ({}), writing them one by one", batch.size(), Code.get(rc));
+                rejected.add(batch);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Sends the nodes of the rejected batches one by one, each taking a
+     * slot of the window until created, or until its data is replaced.
+     */
+    private void writeRejected() throws InterruptedException, KeeperException {
+        List<ZVDump.Record> batch;
+        while (!isCancelled() && (batch = rejected.poll()) != null) {
+            for (ZVDump.Record record : batch) {
+                if (replayError != null) {
+                    throw replayError;
+                }
+                permits.acquire();
+                try {
+                    zk.create(record.path, record.data, OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, createCallback,
+                            record);
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void processCreate(int rc, String path, Object ctx, String name) {
+        boolean replacing = false;
+        try {
+            if (rc == Code.OK.intValue()) {
+                transferred(1);
+                fireProgress();
+            } else if (rc == Code.NODEEXISTS.intValue()) {
+                ZVDump.Record record = (ZVDump.Record) ctx;
+                zk.setData(path, record.data, -1, setDataCallback, record);
+                replacing = true;
+            } else {
+                replayFailed(rc, path);
+            }
+        } catch (RuntimeException e) {
+            log.error("Cannot import " + path, e);
+            failed(1);
+        } finally {
+            if (!replacing) {
+                permits.release();
+            }
+        }
+    }
+
+    private void processSetData(int rc, String path, Object ctx, Stat stat) {
+        try {
+            if (rc == Code.OK.intValue()) {
+                transferred(1);
+                fireProgress();
+            } else {
+                replayFailed(rc, path);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void replayFailed(int rc, String path) {
+        if (rc == Code.CONNECTIONLOSS.intValue() || rc == Code.SESSIONEXPIRED.intValue()) {
+            if (replayError == null) {
+                replayError = KeeperException.create(Code.get(rc), path);
+            }
+        } else {
+            log.warn("Cannot import {} : {}", path, Code.get(rc));
+            failed(1);
+        }
+    }
+}
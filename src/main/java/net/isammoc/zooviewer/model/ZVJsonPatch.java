@@ -0,0 +1,102 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Change setting a field of the JSON object held by a node.
+ * <p>
+ * The other fields are kept, but not the formatting: the data is written
+ * back compact, or indented if it spanned several lines.
+ * </p>
+ * @see ZVDataChange#setJsonField(String, String)
+ */
+final class ZVJsonPatch implements ZVDataChange {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final List<String> parents = new ArrayList<>();
+    private final String field;
+    private final JsonNode value;
+
+    ZVJsonPatch(String pointer, String value) {
+        JsonPointer remaining = JsonPointer.compile(pointer);
+        if (remaining.matches()) {
+            throw new IllegalArgumentException("No field in pointer '" + pointer + "'");
+        }
+        while (!remaining.tail().matches()) {
+            parents.add(remaining.getMatchingProperty());
+            remaining = remaining.tail();
+        }
+        this.field = remaining.getMatchingProperty();
+        try {
+            this.value = MAPPER.readTree(value);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid JSON value: " + e.getMessage(), e);
+        }
+        if (this.value == null) {
+            throw new IllegalArgumentException("No JSON value");
+        }
+    }
+
+    @Override
+    public byte[] apply(String path, byte[] data) {
+        JsonNode tree;
+        try {
+            tree = data == null ? null : MAPPER.readTree(data);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Not JSON: " + e.getMessage(), e);
+        }
+        if (!(tree instanceof ObjectNode)) {
+            throw new IllegalArgumentException("Not a JSON object");
+        }
+        ObjectNode object = (ObjectNode) tree;
+        for (String parent : parents) {
+            JsonNode child = object.get(parent);
+            if (child == null || child.isNull()) {
+                child = object.putObject(parent);
+            } else if (!child.isObject()) {
+                throw new IllegalArgumentException("Field '" + parent + "' is not an object");
+            }
+            object = (ObjectNode) child;
+        }
+        if (value.equals(object.get(field))) {
+            return null;
+        }
+        object.set(field, value.deepCopy());
+        try {
+            boolean indented = false;
+            for (byte b : data) {
+                if (b == '\n') {
+                    indented = true;
+                    break;
+                }
+            }
+            return indented ? MAPPER.writerWithDefaultPrettyPrinter().writeValueAsBytes(tree)
+                    : MAPPER.writeValueAsBytes(tree);
+        } catch (IOException e) {
+            // Not thrown when writing to memory
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Summary of a latency distribution, in microseconds.
+ * <p>
+ * The percentiles are the upper bounds of histogram buckets, within 1/8 of
+ * the actual value.
+ * </p>
+ */
+public final class ZVLatency {
+
+    private final long count;
+    private final double meanMicros;
+    private final long p50Micros;
+    private final long p90Micros;
+    private final long p99Micros;
+    private final long maxMicros;
+
+    @ConstructorProperties({ "count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros" })
+    public ZVLatency(long count, double meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+        this.count = count;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    /**
+     * Returns the number of measures.
+     * @return the count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP90Micros() {
+        return p90Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ZVLatency[count=%d, mean=%.1fus, p50=%dus, p90=%dus, p99=%dus, max=%dus]", count,
+                meanMicros, p50Micros, p90Micros, p99Micros, maxMicros);
+    }
+}
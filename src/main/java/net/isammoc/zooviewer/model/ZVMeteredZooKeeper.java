@@ -0,0 +1,306 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.model.ZVMetrics.Request;
+import org.apache.zookeeper.AsyncCallback.Children2Callback;
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.Create2Callback;
+import org.apache.zookeeper.AsyncCallback.DataCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.StatCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.MultiOperationRecord;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * ZooKeeper client recording the latency of each request in
+ * {@link ZVMetrics}.
+ * <p>
+ * Only the methods the others delegate to are overridden: the variants
+ * taking a <code>boolean</code> watch call those taking a {@link Watcher},
+ * and both <code>multi</code> go through <code>multiInternal</code>. The
+ * latency of an asynchronous request is recorded before its callback runs.
+ * </p>
+ */
+final class ZVMeteredZooKeeper extends ZooKeeper {
+
+    /** Minimum time between two counts of the watches, which copy the watched paths. */
+    private static final long WATCH_COUNT_PERIOD_MILLIS = 10000;
+
+    private final ZVMetrics metrics;
+
+    private volatile int watchCount;
+    /** Time of the last count of the watches, from {@link System#currentTimeMillis()}. */
+    private volatile long watchCountTime;
+    private final Object watchCountLock = new Object();
+
+    ZVMeteredZooKeeper(String connectString, int sessionTimeout, Watcher watcher, ZVMetrics metrics)
+            throws IOException {
+        super(connectString, sessionTimeout, watcher);
+        this.metrics = metrics;
+        metrics.attach(this);
+    }
+
+    /**
+     * Returns the last zxid seen by the client: after a <code>sync</code>,
+     * the last transaction of the ensemble at that time.
+     * @return the zxid
+     */
+    long getLastZxid() {
+        return cnxn.getLastZxid();
+    }
+
+    /**
+     * Returns the number of watches of the client, counted at most every
+     * {@value #WATCH_COUNT_PERIOD_MILLIS} ms: each count copies the watched
+     * paths, hundreds of thousands on a large tree.
+     * @return the watch count, up to that period old
+     */
+    int getWatchCount() {
+        long now = System.currentTimeMillis();
+        if (now - watchCountTime >= WATCH_COUNT_PERIOD_MILLIS) {
+            synchronized (watchCountLock) {
+                if (now - watchCountTime >= WATCH_COUNT_PERIOD_MILLIS) {
+                    watchCount = getDataWatches().size() + getExistWatches().size() + getChildWatches().size()
+                            + getPersistentWatches().size() + getPersistentRecursiveWatches().size();
+                    watchCountTime = now;
+                }
+            }
+        }
+        return watchCount;
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws KeeperException, InterruptedException {
+        long start = metrics.requestStarted();
+        try {
+            return super.getData(path, watcher, stat);
+        } finally {
+            metrics.requestCompleted(Request.GET_DATA, start);
+        }
+    }
+
+    @Override
+    public void getData(String path, Watcher watcher, DataCallback cb, Object ctx) {
+        long start = metrics.requestStarted();
+        try {
+            super.getData(path, watcher, (rc, path1, ctx1, data, stat) -> {
+                metrics.requestCompleted(Request.GET_DATA, start);
+                if (cb != null) {
+                    cb.processResult(rc, path1, ctx1, data, stat);
+                }
+            }, ctx);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.GET_DATA, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        long start = metrics.requestStarted();
+        try {
+            return super.getChildren(path, watcher);
+        } finally {
+            metrics.requestCompleted(Request.GET_CHILDREN, start);
+        }
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher, Stat stat)
+            throws KeeperException, InterruptedException {
+        long start = metrics.requestStarted();
+        try {
+            return super.getChildren(path, watcher, stat);
+        } finally {
+            metrics.requestCompleted(Request.GET_CHILDREN, start);
+        }
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, ChildrenCallback cb, Object ctx) {
+        long start = metrics.requestStarted();
+        try {
+            super.getChildren(path, watcher, (ChildrenCallback) (rc, path1, ctx1, children) -> {
+                metrics.requestCompleted(Request.GET_CHILDREN, start);
+                if (cb != null) {
+                    cb.processResult(rc, path1, ctx1, children);
+                }
+            }, ctx);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.GET_CHILDREN, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void getChildren(String path, Watcher watcher, Children2Callback cb, Object ctx) {
+        long start = metrics.requestStarted();
+        try {
+            super.getChildren(path, watcher, (Children2Callback) (rc, path1, ctx1, children, stat) -> {
+                metrics.requestCompleted(Request.GET_CHILDREN, start);
+                if (cb != null) {
+                    cb.processResult(rc, path1, ctx1, children, stat);
+                }
+            }, ctx);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.GET_CHILDREN, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Stat exists(String path, Watcher watcher) throws KeeperException, InterruptedException {
+        long start = metrics.requestStarted();
+        try {
+            return super.exists(path, watcher);
+        } finally {
+            metrics.requestCompleted(Request.EXISTS, start);
+        }
+    }
+
+    @Override
+    public void exists(String path, Watcher watcher, StatCallback cb, Object ctx) {
+        long start = metrics.requestStarted();
+        try {
+            super.exists(path, watcher, (rc, path1, ctx1, stat) -> {
+                metrics.requestCompleted(Request.EXISTS, start);
+                if (cb != null) {
+                    cb.processResult(rc, path1, ctx1, stat);
+                }
+            }, ctx);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.EXISTS, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data, int version) throws KeeperException, InterruptedException {
+        long start = metrics.requestStarted();
+        try {
+            return super.setData(path, data, version);
+        } finally {
+            metrics.requestCompleted(Request.SET_DATA, start);
+        }
+    }
+
+    @Override
+    public void setData(String path, byte[] data, int version, StatCallback cb, Object ctx) {
+        long start = metrics.requestStarted();
+        try {
+            super.setData(path, data, version, (rc, path1, ctx1, stat) -> {
+                metrics.requestCompleted(Request.SET_DATA, start);
+                if (cb != null) {
+                    cb.processResult(rc, path1, ctx1, stat);
+                }
+            }, ctx);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.SET_DATA, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public String create(String path, byte[] data, List<ACL> acl, CreateMode createMode)
+            throws KeeperException, InterruptedException {
+        long start = metrics.requestStarted();
+        try {
+            return super.create(path, data, acl, createMode);
+        } finally {
+            metrics.requestCompleted(Request.CREATE, start);
+        }
+    }
+
+    @Override
+    public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode, Create2Callback cb,
+            Object ctx, long ttl) {
+        long start = metrics.requestStarted();
+        try {
+            super.create(path, data, acl, createMode, (rc, path1, ctx1, name, stat) -> {
+                metrics.requestCompleted(Request.CREATE, start);
+                if (cb != null) {
+                    cb.processResult(rc, path1, ctx1, name, stat);
+                }
+            }, ctx, ttl);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.CREATE, start);
+            throw e;
+        }
+    }
+
+    @Override
+    public void delete(String path, int version) throws InterruptedException, KeeperException {
+        long start = metrics.requestStarted();
+        try {
+            super.delete(path, version);
+        } finally {
+            metrics.requestCompleted(Request.DELETE, start);
+        }
+    }
+
+    @Override
+    public void delete(String path, int version, VoidCallback cb, Object ctx) {
+        long start = metrics.requestStarted();
+        try {
+            super.delete(path, version, (rc, path1, ctx1) -> {
+                metrics.requestCompleted(Request.DELETE, start);
+                if (cb != null) {
+                    cb.processResult(rc, path1, ctx1);
+                }
+            }, ctx);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.DELETE, start);
+            throw e;
+        }
+    }
+
+    @Override
+    protected List<OpResult> multiInternal(MultiOperationRecord request)
+            throws InterruptedException, KeeperException {
+        long start = metrics.requestStarted();
+        try {
+            return super.multiInternal(request);
+        } finally {
+            metrics.requestCompleted(Request.MULTI, start);
+        }
+    }
+
+    @Override
+    protected void multiInternal(MultiOperationRecord request, MultiCallback cb, Object ctx) {
+        long start = metrics.requestStarted();
+        try {
+            super.multiInternal(request, (rc, path, ctx1, results) -> {
+                metrics.requestCompleted(Request.MULTI, start);
+                if (cb != null) {
+                    cb.processResult(rc, path, ctx1, results);
+                }
+            }, ctx);
+        } catch (RuntimeException e) {
+            metrics.requestCompleted(Request.MULTI, start);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of a {@link ZVModelImpl}, fed by the model and by its
+ * {@link ZVMeteredZooKeeper}.
+ * <p>
+ * Recording never locks: counters are adders, and latencies go to
+ * log-linear histograms of atomic buckets. A read of the percentiles may
+ * miss the measures recorded meanwhile.
+ * </p>
+ */
+final class ZVMetrics implements ZVModelMetricsMXBean {
+
+    /** JMX domain of the metrics. */
+    static final String DOMAIN = "net.isammoc.zooviewer";
+
+    /** ZooKeeper requests, named after the client methods. */
+    enum Request {
+        GET_DATA("getData"),
+        GET_CHILDREN("getChildren"),
+        EXISTS("exists"),
+        SET_DATA("setData"),
+        CREATE("create"),
+        DELETE("delete"),
+        MULTI("multi");
+
+        private final String method;
+
+        Request(String method) {
+            this.method = method;
+        }
+    }
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final String connectString;
+    private final LongSupplier payloadBytes;
+    private volatile ZVMeteredZooKeeper zk;
+    private ObjectName name;
+
+    private final LongAdder nodes = new LongAdder();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final Map<Request, Histogram> latencies = new EnumMap<>(Request.class);
+    private final Histogram dispatch = new Histogram();
+    private final Map<EventType, LongAdder> eventCounts = new EnumMap<>(EventType.class);
+    private final Map<EventType, Rate> eventRates = new EnumMap<>(EventType.class);
+
+    /**
+     * Creates the metrics of a model.
+     * @param connectString the connect string of the model
+     * @param payloadBytes the total length of the payloads of the model
+     */
+    ZVMetrics(String connectString, LongSupplier payloadBytes) {
+        this.connectString = connectString;
+        this.payloadBytes = payloadBytes;
+        for (Request request : Request.values()) {
+            latencies.put(request, new Histogram());
+        }
+        for (EventType type : EventType.values()) {
+            eventCounts.put(type, new LongAdder());
+            eventRates.put(type, new Rate());
+        }
+    }
+
+    /**
+     * Sets the client whose watches are counted.
+     * @param zk the client
+     */
+    void attach(ZVMeteredZooKeeper zk) {
+        this.zk = zk;
+    }
+
+    /**
+     * Publishes the metrics in the platform MBean server. Failures are only
+     * logged.
+     */
+    synchronized void register() {
+        try {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Model,id=" + SEQUENCE.incrementAndGet()
+                    + ",connectString=" + ObjectName.quote(connectString));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            name = objectName;
+            log.info("Metrics published as {}", objectName);
+        } catch (JMException e) {
+            log.warn("Cannot publish the metrics", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the MBean server, if published.
+     */
+    synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(name);
+        } catch (JMException e) {
+            log.warn("Cannot remove the metrics " + name, e);
+        }
+        name = null;
+    }
+
+    void nodesAdded(int count) {
+        nodes.add(count);
+    }
+
+    void nodesRemoved(int count) {
+        nodes.add(-count);
+    }
+
+    /**
+     * Records the sending of a request.
+     * @return the start time, to give to {@link #requestCompleted}
+     */
+    long requestStarted() {
+        outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the answer of a request.
+     * @param request the request
+     * @param start the start time returned by {@link #requestStarted()}
+     */
+    void requestCompleted(Request request, long start) {
+        latencies.get(request).record(System.nanoTime() - start);
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Records a watch event.
+     * @param type the event type
+     */
+    void watchEvent(EventType type) {
+        eventCounts.get(type).increment();
+        eventRates.get(type).mark(System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Records a call of the model listeners.
+     * @param start the time before the first listener, from {@link System#nanoTime()}
+     */
+    void listenersCalled(long start) {
+        dispatch.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public String getConnectString() {
+        return connectString;
+    }
+
+    @Override
+    public long getNodeCount() {
+        return nodes.sum();
+    }
+
+    @Override
+    public long getPayloadBytes() {
+        return payloadBytes.getAsLong();
+    }
+
+    @Override
+    public int getWatchCount() {
+        ZVMeteredZooKeeper client = zk;
+        return client == null ? 0 : client.getWatchCount();
+    }
+
+    @Override
+    public long getOutstandingRequests() {
+        return outstanding.get();
+    }
+
+    @Override
+    public Map<String, ZVLatency> getRequestLatencies() {
+        Map<String, ZVLatency> result = new LinkedHashMap<>();
+        for (Map.Entry<Request, Histogram> entry : latencies.entrySet()) {
+            result.put(entry.getKey().method, entry.getValue().snapshot());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getWatchEventCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<EventType, LongAdder> entry : eventCounts.entrySet()) {
+            result.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getWatchEventRates() {
+        long second = System.currentTimeMillis() / 1000;
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (Map.Entry<EventType, Rate> entry : eventRates.entrySet()) {
+            result.put(entry.getKey().name(), entry.getValue().perSecond(second));
+        }
+        return result;
+    }
+
+    @Override
+    public ZVLatency getListenerDispatchLatency() {
+        return dispatch.snapshot();
+    }
+
+    @Override
+    public void resetLatencies() {
+        for (Histogram histogram : latencies.values()) {
+            histogram.reset();
+        }
+        dispatch.reset();
+    }
+
+    /**
+     * Log-linear histogram of durations: the values under 8 us have their
+     * own bucket, and each power of two above is split in 8 buckets.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (Long.SIZE - SUB_BITS + 1) << SUB_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        /**
+         * Records a duration.
+         * @param nanos the duration in ns
+         */
+        void record(long nanos) {
+            long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+            buckets.incrementAndGet(bucket(micros));
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_COUNT) {
+                return (int) micros;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS)
+                    + (int) ((micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1));
+        }
+
+        /**
+         * Returns the highest value of a bucket.
+         * @param bucket the bucket
+         * @return the value in us
+         */
+        static long highestValue(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int shift = (bucket >> SUB_BITS) - 1;
+            long lowest = (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        ZVLatency snapshot() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                count += counts[i];
+            }
+            if (count == 0) {
+                return new ZVLatency(0, 0, 0, 0, 0, 0);
+            }
+            long max = maxMicros.get();
+            return new ZVLatency(count, (double) totalMicros.sum() / count, percentile(counts, count, 0.5, max),
+                    percentile(counts, count, 0.9, max), percentile(counts, count, 0.99, max), max);
+        }
+
+        private static long percentile(long[] counts, long count, double fraction, long max) {
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            totalMicros.reset();
+            maxMicros.set(0);
+        }
+    }
+
+    /**
+     * Event counts of the last minute, in one slot per second.
+     * <p>
+     * A slot is cleared by the first event of a new second. Watch events
+     * are delivered by the single event thread of the client, so the clear
+     * does not race with another increment.
+     * </p>
+     */
+    static final class Rate {
+        private static final int SLOTS = 60;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+        void mark(long second) {
+            int slot = (int) (second % SLOTS);
+            if (seconds.get(slot) != second) {
+                counts.set(slot, 0);
+                seconds.set(slot, second);
+            }
+            counts.incrementAndGet(slot);
+        }
+
+        double perSecond(long second) {
+            long total = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                long stamp = seconds.get(i);
+                if (stamp > second - SLOTS && stamp <= second) {
+                    total += counts.get(i);
+                }
+            }
+            return (double) total / SLOTS;
+        }
+    }
+}
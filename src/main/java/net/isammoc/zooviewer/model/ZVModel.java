@@ -14,9 +14,14 @@
  */
 package net.isammoc.zooviewer.model;
 
+import java.io.File;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 
 import net.isammoc.zooviewer.node.ZVNode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
 
 /**
  * Interface to the ZooViewer model.
@@ -38,6 +43,19 @@ public interface ZVModel {
      */
     void removeModelListener(ZVModelListener listener);
 
+    /**
+     * Checks if this model can be modified.
+     * <p>
+     * When <code>true</code>, the methods adding, updating, deleting or
+     * importing nodes throw an {@link UnsupportedOperationException}; the
+     * asynchronous ones return a future failed with it.
+     * </p>
+     * @return <code>true</code> for a read-only model
+     */
+    default boolean isReadOnly() {
+        return false;
+    }
+
     /**
      * Adds a node to the ZooKeeper model.
      * @param path the node path
@@ -53,16 +71,88 @@ public interface ZVModel {
     void updateData(String path, byte[] data);
 
     /**
-     * Deletes a node and his children.
-     * @param node the node to be deleted
+     * Asynchronously adds a node to the ZooKeeper model.
+     * <p>
+     * The future is completed on the ZooKeeper event thread, with the stat
+     * of the new node, or with the {@link KeeperException} of the server. It
+     * fails at once if the node is already known, or its parent is not.
+     * </p>
+     * @param path the node path
+     * @param data the node data
+     * @return the stat of the new node
      */
-    void deleteNode(ZVNode node);
+    CompletableFuture<Stat> addNodeAsync(String path, byte[] data);
 
     /**
-     * Deletes a list of nodes and their children.
-     * @param paths the nodes to be deleted
+     * Asynchronously updates a node's data in the ZooKeeper model.
+     * <p>
+     * The future is completed on the ZooKeeper event thread, with the new
+     * stat of the node, or with the {@link KeeperException} of the server.
+     * </p>
+     * @param path the node path
+     * @param data the node data
+     * @return the new stat of the node
      */
-    void deleteNodes(ZVNode[] nodes);
+    CompletableFuture<Stat> updateDataAsync(String path, byte[] data);
+
+    /**
+     * Asynchronously deletes a list of nodes and their children, reporting
+     * the progress.
+     * @param nodes the nodes to be deleted
+     * @param listener notified of the progress, may be <code>null</code>
+     * @return the running deletion, which can be cancelled
+     */
+    ZVDeletion deleteNodes(ZVNode[] nodes, ZVDeletion.Listener listener);
+
+    /**
+     * Asynchronously changes the data of a list of nodes.
+     * <p>
+     * The change is computed from the data and version known by the model,
+     * and the nodes are written in <code>multi</code> transactions checking
+     * these versions: the nodes changed in the meantime are reported as
+     * conflicts instead of being overwritten.
+     * </p>
+     * @param nodes the nodes to change
+     * @param change the change
+     * @param listener notified of the progress, may be <code>null</code>
+     * @return the running bulk edit, which can be cancelled
+     */
+    ZVBulkEdit editNodes(ZVNode[] nodes, ZVDataChange change, ZVBulkEdit.Listener listener);
+
+    /**
+     * Asynchronously changes the data of the nodes of subtrees whose path
+     * matches a pattern, like {@link #editNodes(ZVNode[], ZVDataChange, ZVBulkEdit.Listener)}.
+     * <p>
+     * The subtrees are listed from the server, so the nodes not loaded in
+     * the model are changed as well.
+     * </p>
+     * @param roots the roots of the subtrees, included
+     * @param pattern found in the path of the nodes to change, or
+     *            <code>null</code> for all the nodes
+     * @param change the change
+     * @param listener notified of the progress, may be <code>null</code>
+     * @return the running bulk edit, which can be cancelled
+     */
+    ZVBulkEdit editSubtrees(ZVNode[] roots, Pattern pattern, ZVDataChange change, ZVBulkEdit.Listener listener);
+
+    /**
+     * Asynchronously exports a node and its subtree to a dump file.
+     * @param node the node to export
+     * @param file the file to write
+     * @param listener notified of the progress, may be <code>null</code>
+     * @return the running export, which can be cancelled
+     */
+    ZVTransfer exportSubtree(ZVNode node, File file, ZVTransfer.Listener listener);
+
+    /**
+     * Asynchronously imports a dump file: the dumped node is created under
+     * the specified parent, along with its subtree.
+     * @param file the file to read
+     * @param parent the parent node
+     * @param listener notified of the progress, may be <code>null</code>
+     * @return the running import, which can be cancelled
+     */
+    ZVTransfer importSubtree(File file, ZVNode parent, ZVTransfer.Listener listener);
 
     /**
      * Returns a {@link ZVNode} corresponding to the specified path.
@@ -81,10 +171,61 @@ public interface ZVModel {
     /**
      * Returns the list of child nodes under the specified parent.
      * @param parent the parent node 
-     * @return the list of child nodes, or an empty list if parent has no children
+     * @return the list of child nodes sorted by name, or an empty list if parent has no children
      */
     List<ZVNode> getChildren(ZVNode parent);
 
+    /**
+     * Returns the number of children of the specified node.
+     * @param parent the parent node
+     * @return the number of children
+     */
+    int getChildCount(ZVNode parent);
+
+    /**
+     * Returns the child of the specified node at the given position.
+     * @param parent the parent node
+     * @param index the position of the child, in name order
+     * @return the child node
+     */
+    ZVNode getChild(ZVNode parent, int index);
+
+    /**
+     * Returns the position of a child under its parent.
+     * @param parent the parent node
+     * @param child the child node
+     * @return the position, or <code>-1</code> if not a child of this parent
+     */
+    int getIndexOfChild(ZVNode parent, ZVNode child);
+
+    /**
+     * Checks if the children of the specified node have been fetched.
+     * @param parent the parent node
+     * @return <code>true</code> if {@link #getChildren(ZVNode)} is complete
+     */
+    boolean isChildrenLoaded(ZVNode parent);
+
+    /**
+     * Asynchronously fetches the children of the specified node, if not
+     * already done or in progress.
+     * <p>
+     * {@link ZVModelListener#childrenLoaded(ZVNode)} is fired once done.
+     * </p>
+     * @param parent the parent node
+     */
+    void loadChildren(ZVNode parent);
+
+    /**
+     * Asynchronously fetches the data of the specified node, if not already
+     * known.
+     * <p>
+     * {@link ZVModelListener#nodeDataChanged(ZVNode)} is fired once done.
+     * </p>
+     * @param node the node
+     * @see ZVModelConfig#isPayloadOnDemand()
+     */
+    void loadData(ZVNode node);
+
     /**
      * Returns a full path from a parent node and name of child.
      * 
@@ -0,0 +1,394 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Settings of a {@link ZVModelImpl}.
+ * <p>
+ * Every setting can be given on the command line as a system property
+ * (<code>-Dzooviewer.lazy=true</code> for example), see
+ * {@link #fromSystemProperties()}.
+ * </p>
+ */
+public class ZVModelConfig {
+
+    /**
+     * Where the node payloads are stored.
+     */
+    public enum PayloadStorage {
+        /** On the Java heap. */
+        HEAP,
+        /** In direct buffers, outside of the Java heap. */
+        DIRECT,
+        /** In memory-mapped temporary files. */
+        MAPPED
+    }
+
+    /** System property enabling the lazy loading of children. */
+    public static final String PROPERTY_LAZY = "zooviewer.lazy";
+
+    /** System property defining the maximum number of outstanding crawl requests. */
+    public static final String PROPERTY_CRAWL_WINDOW = "zooviewer.crawl.window";
+
+    /** System property defining the delay applied to the refreshes triggered by watch events. */
+    public static final String PROPERTY_DEBOUNCE = "zooviewer.watch.debounce";
+
+    /** System property selecting the storage of the payloads (<code>heap</code>, <code>direct</code> or <code>mapped</code>). */
+    public static final String PROPERTY_PAYLOAD_STORAGE = "zooviewer.payload.storage";
+
+    /** System property defining the maximum size of the payloads stored outside of the heap. */
+    public static final String PROPERTY_PAYLOAD_LIMIT = "zooviewer.payload.limit";
+
+    /** System property enabling the fetch of the payloads on demand only. */
+    public static final String PROPERTY_PAYLOAD_ON_DEMAND = "zooviewer.payload.onDemand";
+
+    /** System property defining the maximum size of the payloads kept when fetched on demand. */
+    public static final String PROPERTY_PAYLOAD_CACHE = "zooviewer.payload.cache";
+
+    /** System property defining the path of a persistent recursive watch, replacing the watches set on each node below it. */
+    public static final String PROPERTY_RECURSIVE_WATCH = "zooviewer.watch.recursive";
+
+    /** System property defining the number of nodes deleted by each <code>multi</code> request. */
+    public static final String PROPERTY_DELETE_BATCH = "zooviewer.delete.batch";
+
+    /** System property defining the maximum number of outstanding delete batches. */
+    public static final String PROPERTY_DELETE_WINDOW = "zooviewer.delete.window";
+
+    /** System property defining the number of nodes created by each <code>multi</code> request of an import. */
+    public static final String PROPERTY_IMPORT_BATCH = "zooviewer.import.batch";
+
+    /** System property defining the maximum number of outstanding import batches. */
+    public static final String PROPERTY_IMPORT_WINDOW = "zooviewer.import.window";
+
+    /** System property defining the maximum number of nodes written by each <code>multi</code> request of a bulk edit. */
+    public static final String PROPERTY_EDIT_BATCH = "zooviewer.edit.batch";
+
+    /** System property defining the maximum number of outstanding bulk edit batches. */
+    public static final String PROPERTY_EDIT_WINDOW = "zooviewer.edit.window";
+
+    /** System property defining the maximum size of the data of the <code>multi</code> requests of imports and bulk edits. */
+    public static final String PROPERTY_BATCH_BYTES = "zooviewer.batch.bytes";
+
+    /** System property defining the directory of the local tree caches, empty to disable them. */
+    public static final String PROPERTY_CACHE_DIR = "zooviewer.cache.dir";
+
+    /** System property enabling the publication of the model metrics through JMX. */
+    public static final String PROPERTY_JMX = "zooviewer.jmx";
+
+    private boolean lazy;
+    private int crawlWindow = 64;
+    private long debounceMillis = 50;
+    private PayloadStorage payloadStorage = PayloadStorage.HEAP;
+    private long payloadLimit = 1024L * 1024 * 1024;
+    private boolean payloadOnDemand;
+    private long payloadCacheSize = 64L * 1024 * 1024;
+    private String recursiveWatchPath;
+    private int deleteBatchSize = 500;
+    private int deleteWindow = 8;
+    private int importBatchSize = 500;
+    private int importWindow = 8;
+    private int editBatchSize = 500;
+    private int editWindow = 8;
+    private int batchBytes = 512 * 1024;
+    private File cacheDir = new File("cache");
+    private boolean jmxEnabled = true;
+
+    /**
+     * Returns a configuration initialized from the system properties.
+     * @return the configuration
+     */
+    public static ZVModelConfig fromSystemProperties() {
+        ZVModelConfig config = new ZVModelConfig();
+        config.setLazy(Boolean.getBoolean(PROPERTY_LAZY));
+        config.setCrawlWindow(Integer.getInteger(PROPERTY_CRAWL_WINDOW, config.getCrawlWindow()));
+        config.setDebounceMillis(Long.getLong(PROPERTY_DEBOUNCE, config.getDebounceMillis()));
+        String storage = System.getProperty(PROPERTY_PAYLOAD_STORAGE);
+        if (storage != null) {
+            config.setPayloadStorage(PayloadStorage.valueOf(storage.trim().toUpperCase(Locale.ROOT)));
+        }
+        config.setPayloadLimit(Long.getLong(PROPERTY_PAYLOAD_LIMIT, config.getPayloadLimit()));
+        config.setPayloadOnDemand(Boolean.getBoolean(PROPERTY_PAYLOAD_ON_DEMAND));
+        config.setPayloadCacheSize(Long.getLong(PROPERTY_PAYLOAD_CACHE, config.getPayloadCacheSize()));
+        config.setRecursiveWatchPath(System.getProperty(PROPERTY_RECURSIVE_WATCH));
+        config.setDeleteBatchSize(Integer.getInteger(PROPERTY_DELETE_BATCH, config.getDeleteBatchSize()));
+        config.setDeleteWindow(Integer.getInteger(PROPERTY_DELETE_WINDOW, config.getDeleteWindow()));
+        config.setImportBatchSize(Integer.getInteger(PROPERTY_IMPORT_BATCH, config.getImportBatchSize()));
+        config.setImportWindow(Integer.getInteger(PROPERTY_IMPORT_WINDOW, config.getImportWindow()));
+        config.setEditBatchSize(Integer.getInteger(PROPERTY_EDIT_BATCH, config.getEditBatchSize()));
+        config.setEditWindow(Integer.getInteger(PROPERTY_EDIT_WINDOW, config.getEditWindow()));
+        config.setBatchBytes(Integer.getInteger(PROPERTY_BATCH_BYTES, config.getBatchBytes()));
+        String cacheDir = System.getProperty(PROPERTY_CACHE_DIR);
+        if (cacheDir != null) {
+            config.setCacheDir(cacheDir.trim().isEmpty() ? null : new File(cacheDir.trim()));
+        }
+        config.setJmxEnabled(Boolean.parseBoolean(System.getProperty(PROPERTY_JMX, "true")));
+        return config;
+    }
+
+    /**
+     * Checks if children are only fetched when they are first needed.
+     * <p>
+     * When <code>false</code>, the whole tree is loaded at startup.
+     * </p>
+     * @return <code>true</code> in lazy mode
+     */
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Returns the maximum number of ZooKeeper requests the crawler keeps
+     * outstanding while loading the tree.
+     * @return the window size
+     */
+    public int getCrawlWindow() {
+        return crawlWindow;
+    }
+
+    public void setCrawlWindow(int crawlWindow) {
+        this.crawlWindow = crawlWindow;
+    }
+
+    /**
+     * Returns the delay between a watch event and the refresh it triggers.
+     * <p>
+     * Events received meanwhile on the same path are merged into this
+     * refresh.
+     * </p>
+     * @return the delay in ms
+     */
+    public long getDebounceMillis() {
+        return debounceMillis;
+    }
+
+    public void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Returns where the node payloads are stored.
+     * <p>
+     * Outside of the heap, the heap usage depends on the number of nodes
+     * only, whatever the volume of the payloads.
+     * </p>
+     * @return the payload storage
+     */
+    public PayloadStorage getPayloadStorage() {
+        return payloadStorage;
+    }
+
+    public void setPayloadStorage(PayloadStorage payloadStorage) {
+        this.payloadStorage = payloadStorage;
+    }
+
+    /**
+     * Returns the maximum number of bytes allocated for the payloads stored
+     * outside of the heap. Payloads over this limit are kept on the heap.
+     * @return the limit in bytes
+     */
+    public long getPayloadLimit() {
+        return payloadLimit;
+    }
+
+    public void setPayloadLimit(long payloadLimit) {
+        this.payloadLimit = payloadLimit;
+    }
+
+    /**
+     * Checks if the payloads are only fetched when a node is selected.
+     * <p>
+     * When <code>true</code>, loading the tree only fetches the names and
+     * stats of the nodes.
+     * </p>
+     * @return <code>true</code> to fetch the payloads on demand
+     * @see ZVModel#loadData(net.isammoc.zooviewer.node.ZVNode)
+     */
+    public boolean isPayloadOnDemand() {
+        return payloadOnDemand;
+    }
+
+    public void setPayloadOnDemand(boolean payloadOnDemand) {
+        this.payloadOnDemand = payloadOnDemand;
+    }
+
+    /**
+     * Returns the maximum total size of the payloads fetched on demand. The
+     * least recently used ones are dropped beyond it.
+     * @return the size in bytes
+     */
+    public long getPayloadCacheSize() {
+        return payloadCacheSize;
+    }
+
+    public void setPayloadCacheSize(long payloadCacheSize) {
+        this.payloadCacheSize = payloadCacheSize;
+    }
+
+    /**
+     * Returns the path of the subtree watched with a single persistent
+     * recursive watch (ZooKeeper 3.6+ servers).
+     * <p>
+     * The nodes of this subtree get no watch of their own, so the server
+     * does not hold (nor replay on reconnection) two watches per node. On
+     * older servers, a watch is set on each node instead.
+     * </p>
+     * @return the path, or <code>null</code> to watch each node
+     */
+    public String getRecursiveWatchPath() {
+        return recursiveWatchPath;
+    }
+
+    public void setRecursiveWatchPath(String recursiveWatchPath) {
+        this.recursiveWatchPath = recursiveWatchPath == null || recursiveWatchPath.trim().isEmpty() ? null
+                : recursiveWatchPath.trim();
+    }
+
+    /**
+     * Returns the number of nodes deleted by each <code>multi</code> request
+     * when deleting subtrees.
+     * <p>
+     * A request must fit in the server <code>jute.maxbuffer</code> (1 MB by
+     * default), so long paths call for smaller batches.
+     * </p>
+     * @return the batch size
+     */
+    public int getDeleteBatchSize() {
+        return deleteBatchSize;
+    }
+
+    public void setDeleteBatchSize(int deleteBatchSize) {
+        this.deleteBatchSize = deleteBatchSize;
+    }
+
+    /**
+     * Returns the maximum number of delete batches in flight when deleting
+     * subtrees.
+     * @return the window size
+     */
+    public int getDeleteWindow() {
+        return deleteWindow;
+    }
+
+    public void setDeleteWindow(int deleteWindow) {
+        this.deleteWindow = deleteWindow;
+    }
+
+    /**
+     * Returns the maximum number of nodes created by each <code>multi</code>
+     * request when importing a dump. Batches are also cut at
+     * {@link #getBatchBytes()}.
+     * @return the batch size
+     */
+    public int getImportBatchSize() {
+        return importBatchSize;
+    }
+
+    public void setImportBatchSize(int importBatchSize) {
+        this.importBatchSize = importBatchSize;
+    }
+
+    /**
+     * Returns the maximum number of create batches in flight when importing
+     * a dump.
+     * @return the window size
+     */
+    public int getImportWindow() {
+        return importWindow;
+    }
+
+    public void setImportWindow(int importWindow) {
+        this.importWindow = importWindow;
+    }
+
+    /**
+     * Returns the maximum number of nodes written by each <code>multi</code>
+     * request of a bulk edit. Batches are also cut at
+     * {@link #getBatchBytes()}.
+     * @return the batch size
+     */
+    public int getEditBatchSize() {
+        return editBatchSize;
+    }
+
+    public void setEditBatchSize(int editBatchSize) {
+        this.editBatchSize = editBatchSize;
+    }
+
+    /**
+     * Returns the maximum number of write batches in flight during a bulk
+     * edit.
+     * @return the window size
+     */
+    public int getEditWindow() {
+        return editWindow;
+    }
+
+    public void setEditWindow(int editWindow) {
+        this.editWindow = editWindow;
+    }
+
+    /**
+     * Returns the maximum size of the paths and data of the
+     * <code>multi</code> requests of imports and bulk edits. The default,
+     * 512 KB, is well under the 1 MB default of the server
+     * <code>jute.maxbuffer</code>.
+     * @return the size in bytes
+     */
+    public int getBatchBytes() {
+        return batchBytes;
+    }
+
+    public void setBatchBytes(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+    /**
+     * Returns the directory where the tree of each connect string is saved
+     * on close, and read back on the next start.
+     * <p>
+     * The cached tree is shown at once, then checked against the server:
+     * only the nodes whose <code>mzxid</code> or <code>pzxid</code> changed
+     * are fetched again.
+     * </p>
+     * @return the directory, or <code>null</code> if there is no cache
+     */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    public void setCacheDir(File cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    /**
+     * Checks if the metrics of the model are published through JMX, as a
+     * {@link ZVModelMetricsMXBean}.
+     * @return <code>true</code> if published
+     */
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    public void setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+    }
+}
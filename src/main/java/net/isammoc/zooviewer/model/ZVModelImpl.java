@@ -15,28 +15,67 @@
 package net.isammoc.zooviewer.model;
 
 import net.isammoc.zooviewer.node.ZVNode;
+import net.isammoc.zooviewer.node.ZVArenaPayloadStore;
+import net.isammoc.zooviewer.node.ZVHeapPayloadStore;
 import net.isammoc.zooviewer.node.ZVNodeImpl;
-import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import net.isammoc.zooviewer.node.ZVPayloadStore;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.common.PathUtils;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.swing.event.EventListenerList;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.regex.Pattern;
 
 import static org.apache.zookeeper.ZooDefs.Ids.OPEN_ACL_UNSAFE;
 
 /**
  * Implementation of the ZooViewer model.
+ * <p>
+ * The state is held in concurrent structures so that readers (typically the
+ * EDT) never wait on ZooKeeper. Network calls are asynchronous and issued
+ * outside of any lock. Their results are applied under the monitor of the
+ * parent node only, and events are fired once the lock is released.
+ * </p>
+ * <p>
+ * Changes are tracked either with a data and a child watch set on each node,
+ * or with a single persistent recursive watch (ZooKeeper 3.6+, see
+ * {@link ZVModelConfig#getRecursiveWatchPath()}) whose events are mapped to
+ * the same refreshes.
+ * </p>
+ * <p>
+ * The live nodes form a tree rooted at {@link #root}: each node holds its
+ * existing children, and paths are resolved by walking down from the root.
+ * </p>
+ * <p>
+ * When a cache directory is configured (see
+ * {@link ZVModelConfig#getCacheDir()}), the tree is saved on close and read
+ * back on the next start. The cached nodes are then checked against the
+ * server with one <code>exists</code> each: data and children are fetched
+ * again only where <code>mzxid</code> or <code>pzxid</code> changed. The
+ * cached tree is published at once: the constructor returns without waiting
+ * for the connection, and the check starts once connected.
+ * </p>
+ * <p>
+ * Every ZooKeeper request, watch event and listener call is measured in a
+ * {@link ZVModelMetricsMXBean}, published through JMX unless disabled (see
+ * {@link ZVModelConfig#isJmxEnabled()}).
+ * </p>
  * 
  * @author franck
  */
@@ -44,18 +83,45 @@ public class ZVModelImpl implements ZVModel {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
-    protected final EventListenerList listenerList = new EventListenerList();
+    /** Model listeners, kept out of Swing so that the model runs headless. */
+    protected final List<ZVModelListener> listenerList = new CopyOnWriteArrayList<>();
 
-    private final ZooKeeper zk;
+    private final ZVMeteredZooKeeper zk;
 
-    private final ExecutorService watcherExecutor = Executors.newSingleThreadExecutor();
+    private final ZVMetrics metrics;
 
-    private final Map<String, ZVNodeImpl> nodes = new HashMap<>();
+    private final ZVModelConfig config;
 
-    private final Map<ZVNodeImpl, List<ZVNodeImpl>> children = new HashMap<>();
+    private final ScheduledExecutorService watcherExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "zooviewer-watcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ZVPayloadStore payloads;
+
+    private volatile ZVNodeImpl root;
 
     private final ZkWatcher watcher;
 
+    private final ZVCrawler crawler;
+
+    private final ZVDebouncer debouncer;
+
+    /** Path of the persistent recursive watch, <code>null</code> if none. */
+    private volatile String recursiveWatchPath;
+
+    /** Payloads fetched on demand, <code>null</code> if all payloads are fetched. */
+    private final ZVPayloadCache payloadCache;
+
+    /** Nodes whose payload is being fetched on demand. */
+    private final Set<ZVNode> dataLoading = ConcurrentHashMap.newKeySet();
+
+    /** Local copy of the tree, <code>null</code> if disabled. */
+    private final ZVTreeCache cache;
+
+    private volatile boolean closed;
+
     private final class ZkWatcher implements Watcher {
         private final Object lock = new Object();
         private volatile boolean dead = true;
@@ -63,6 +129,7 @@ public class ZVModelImpl implements ZVModel {
         @Override
         public void process(WatchedEvent event) {
             log.info("[{}] event : {}", Thread.currentThread(), event);
+            metrics.watchEvent(event.getType());
             switch (event.getType()) {
                 case None:
                     switch (event.getState()) {
@@ -86,10 +153,11 @@ public class ZVModelImpl implements ZVModel {
                     break;
                 case NodeCreated:
                     log.info("Node {} created", event.getPath());
+                    nodeCreated(event.getPath());
                     break;
                 case NodeChildrenChanged:
                     log.info("Children changed for node {}", event.getPath());
-                    populateChildren(event.getPath());
+                    debouncer.submit("children:" + event.getPath(), done -> crawler.list(event.getPath(), done));
                     break;
                 case NodeDeleted:
                     log.info("Node {} deleted", event.getPath());
@@ -97,20 +165,58 @@ public class ZVModelImpl implements ZVModel {
                     break;
                 case NodeDataChanged:
                     log.info("Data changed for node {}", event.getPath());
-                    nodeDataChanged(event.getPath());
+                    debouncer.submit("data:" + event.getPath(), done -> nodeDataChanged(event.getPath(), done));
                     break;
             }
         }
     }
 
     public ZVModelImpl(String connectString) throws IOException {
+        this(connectString, ZVModelConfig.fromSystemProperties());
+    }
+
+    public ZVModelImpl(String connectString, ZVModelConfig config) throws IOException {
+        this.config = config;
+        this.payloads = createPayloadStore(config);
+        this.metrics = new ZVMetrics(connectString, payloads::getStoredBytes);
         this.watcher = new ZkWatcher();
-        this.zk = new ZooKeeper(connectString, 3000, this.watcher);
+        this.zk = new ZVMeteredZooKeeper(connectString, 3000, this.watcher, metrics);
+        if (config.isJmxEnabled()) {
+            metrics.register();
+        }
+        this.crawler = new ZVCrawler(zk, this::watcherFor, new CrawlSink(), config.getCrawlWindow(),
+                !config.isPayloadOnDemand());
+        this.payloadCache = config.isPayloadOnDemand() ? new ZVPayloadCache(config.getPayloadCacheSize()) : null;
+        this.debouncer = new ZVDebouncer(watcherExecutor, config.getDebounceMillis());
+        this.cache = config.getCacheDir() == null ? null : new ZVTreeCache(config.getCacheDir(), connectString);
+        this.root = readCache();
         // s this.watcherExecutor.execute(this.watcher);
 
         log.info("[{}] AFTER ZK INIT", Thread.currentThread());
+        if (root != null) {
+            // Shown before the connection, checked once connected
+            fireNodeCreated(root);
+            new Thread(() -> {
+                if (awaitConnection()) {
+                    addRecursiveWatch();
+                    crawler.check("/");
+                }
+            }, "zooviewer-cache-check").start();
+        } else {
+            awaitConnection();
+            addRecursiveWatch();
+            populateRoot();
+        }
+
+    }
+
+    /**
+     * Waits for the first connection to the server.
+     * @return <code>false</code> if the model was closed meanwhile
+     */
+    private boolean awaitConnection() {
         synchronized (watcher.lock) {
-            while (watcher.dead) {
+            while (watcher.dead && !closed) {
                 try {
                     log.info("[{}] Awaiting lock notification", Thread.currentThread());
                     watcher.lock.wait();
@@ -120,8 +226,7 @@ public class ZVModelImpl implements ZVModel {
                 }
             }
         }
-        populateRoot();
-
+        return !closed;
     }
 
     /*
@@ -132,70 +237,314 @@ public class ZVModelImpl implements ZVModel {
     @Override
     public void close() throws InterruptedException {
         log.info("Closing ZooKeeper client...");
+        crawler.close();
         zk.close();
         synchronized (watcher.lock) {
+            closed = true;
             watcher.dead = true;
             watcher.lock.notifyAll();
         }
         log.info("Shutting down watcher...");
         watcherExecutor.shutdown();
         log.info("Removing listeners...");
-        ZVModelListener[] listeners = listenerList.getListeners(ZVModelListener.class);
-        for (ZVModelListener listener : listeners) {
-            listenerList.remove(ZVModelListener.class, listener);
-        }
+        listenerList.clear();
 
+        writeCache();
         log.info("Resetting models...");
-        nodes.clear();
-        children.clear();
+        root = null;
+        payloads.close();
+        metrics.unregister();
         log.info("Close done.");
     }
 
+    private static ZVPayloadStore createPayloadStore(ZVModelConfig config) {
+        switch (config.getPayloadStorage()) {
+            case DIRECT:
+                return new ZVArenaPayloadStore(false, config.getPayloadLimit());
+            case MAPPED:
+                return new ZVArenaPayloadStore(true, config.getPayloadLimit());
+            default:
+                return new ZVHeapPayloadStore();
+        }
+    }
+
+    /**
+     * Reads the cached tree of the connect string, if any.
+     * @return the cached root, or <code>null</code>
+     */
+    private ZVNodeImpl readCache() {
+        if (cache == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            ZVNodeImpl cached = cache.read(payloads, payloadCache == null);
+            if (cached != null) {
+                metrics.nodesAdded(countNodes(cached));
+                log.info("Read cached tree {} in {} ms", cache.getFile(), (System.nanoTime() - start) / 1000000);
+            }
+            return cached;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable cached tree " + cache.getFile(), e);
+            return null;
+        }
+    }
+
+    private static int countNodes(ZVNodeImpl root) {
+        int count = 0;
+        Deque<ZVNodeImpl> toCount = new ArrayDeque<>();
+        toCount.push(root);
+        while (!toCount.isEmpty()) {
+            count++;
+            for (ZVNodeImpl child : toCount.pop().getChildren()) {
+                toCount.push(child);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Saves the tree for the next start, if a cache is configured.
+     */
+    private void writeCache() {
+        ZVNodeImpl current = root;
+        if (cache == null || current == null) {
+            return;
+        }
+        log.info("Saving tree to {}...", cache.getFile());
+        try {
+            // Payloads fetched on demand are not worth keeping
+            cache.write(current, payloadCache == null);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cannot save tree to " + cache.getFile(), e);
+        }
+    }
+
+    /**
+     * Sets the persistent recursive watch, if configured. Falls back to a
+     * watch per node if the server does not support it: it answers
+     * <code>UNIMPLEMENTED</code>, or closes the connection again when the
+     * request is sent after a reconnection, as servers older than 3.6 do on
+     * unknown requests. Other errors are retried once too.
+     */
+    private void addRecursiveWatch() {
+        String path = config.getRecursiveWatchPath();
+        if (path == null) {
+            return;
+        }
+        for (int attempt = 1;; attempt++) {
+            try {
+                zk.addWatch(path, watcher, AddWatchMode.PERSISTENT_RECURSIVE);
+                recursiveWatchPath = path;
+                log.info("Watching {} with a persistent recursive watch", path);
+                return;
+            } catch (KeeperException e) {
+                if (e.code() == KeeperException.Code.UNIMPLEMENTED
+                        || (e.code() == KeeperException.Code.CONNECTIONLOSS && attempt > 1)) {
+                    log.warn("Persistent recursive watches not supported by the server ({}), watching each node instead",
+                            e.code());
+                    awaitReconnection();
+                    return;
+                }
+                if (attempt > 1) {
+                    log.error("Cannot set a persistent recursive watch on {} ({}), watching each node instead", path,
+                            e.code());
+                    return;
+                }
+                log.warn("Cannot set a persistent recursive watch on {} ({}), retrying", path, e.code());
+                awaitReconnection();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits (a bounded time) for the client to reconnect.
+     */
+    private void awaitReconnection() {
+        for (int i = 0; i < 50; i++) {
+            try {
+                zk.exists("/", false);
+                return;
+            } catch (KeeperException.ConnectionLossException e) {
+                log.debug("Waiting for the reconnection");
+            } catch (KeeperException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the watcher to set when reading the specified path.
+     * @param path the path
+     * @return the watcher, or <code>null</code> if the path is covered by
+     *         the recursive watch
+     */
+    private Watcher watcherFor(String path) {
+        String recursive = recursiveWatchPath;
+        if (recursive != null && ("/".equals(recursive) || path.equals(recursive)
+                || path.startsWith(recursive + "/"))) {
+            return null;
+        }
+        return watcher;
+    }
+
+    /**
+     * Called when a node has been created in the ZooKeeper model.
+     * <p>
+     * Only sent by the recursive watch (or an <code>exists</code> watch on a
+     * vanished node): the parent is listed again, if already listed.
+     * </p>
+     * @param path the node path
+     */
+    private void nodeCreated(String path) {
+        String parentPath = getParent(path);
+        ZVNodeImpl parent = parentPath == null ? null : findNode(parentPath);
+        if (parent != null && parent.isChildrenLoaded()) {
+            debouncer.submit("children:" + parentPath, done -> crawler.list(parentPath, done));
+        }
+    }
+
     /**
      * Called when a node has been deleted in the ZooKeeper model.
      * @param path the node path
      */
-    private synchronized void nodeDeleted(String path) {
-        ZVNodeImpl oldNode = nodes.get(path);
-        if (oldNode != null) {
-            oldNode.setExists(false);
-            oldNode.setStat(null);
-            ZVNodeImpl parent = nodes.get(getParent(path));
-            int oldIndex = children.get(parent).indexOf(oldNode);
-            children.get(parent).remove(oldNode);
-            fireNodeDeleted(oldNode, oldIndex);
+    private void nodeDeleted(String path) {
+        ZVNodeImpl oldNode = findNode(path);
+        if (oldNode == null || oldNode.getParent() == null) {
+            return;
+        }
+        removeChildren(oldNode.getParent(), Collections.singletonList(oldNode));
+    }
+
+    /**
+     * Removes deleted children from their parent, along with their subtrees.
+     * @param parent the parent node
+     * @param oldNodes the deleted children
+     */
+    private void removeChildren(ZVNodeImpl parent, List<ZVNodeImpl> oldNodes) {
+        int[] oldIndexes;
+        synchronized (parent) {
+            oldIndexes = parent.removeChildren(oldNodes);
+            for (int i = 0; i < oldIndexes.length; i++) {
+                if (oldIndexes[i] >= 0) {
+                    forget(oldNodes.get(i));
+                }
+            }
+        }
+        // Highest positions first, so that each one is still valid
+        Integer[] order = new Integer[oldIndexes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i, j) -> Integer.compare(oldIndexes[j], oldIndexes[i]));
+        for (int i : order) {
+            if (oldIndexes[i] >= 0) {
+                fireNodeDeleted(oldNodes.get(i), oldIndexes[i]);
+            }
+        }
+    }
+
+    /**
+     * Marks a removed node and its descendants as deleted.
+     * @param node the removed node
+     */
+    private void forget(ZVNodeImpl node) {
+        node.setExists(false);
+        metrics.nodesRemoved(1);
+        node.setStat(null);
+        node.releaseData();
+        if (payloadCache != null) {
+            payloadCache.remove(node);
+        }
+        synchronized (node) {
+            node.resetChildrenLoaded();
+            for (ZVNodeImpl child : node.getChildren()) {
+                forget(child);
+            }
+            node.clearChildren();
         }
     }
 
     /**
      * Called when a node has been updated in the ZooKeeper model.
      * @param path the node path
+     * @param done called once the new data has been applied
      */
-    private synchronized void nodeDataChanged(String path) {
-        ZVNodeImpl node = nodes.get(path);
-        try {
-            Stat stat = new Stat();
-            node.setData(zk.getData(path, watcher, stat));
-            node.setStat(stat);
-            fireNodeDataChanged(node);
-        } catch (KeeperException | InterruptedException e) {
-            log.error("Error getting new node data.", e);
+    private void nodeDataChanged(String path, Runnable done) {
+        ZVNodeImpl current = findNode(path);
+        if (current == null) {
+            // Not loaded, may come from the recursive watch
+            done.run();
+            return;
+        }
+        if (payloadCache != null && !current.isDataLoaded()) {
+            // Payload not fetched: only refreshes the stat, and the watch
+            zk.exists(path, watcherFor(path), (rc, path1, ctx, stat) -> {
+                try {
+                    if (rc == KeeperException.Code.OK.intValue()) {
+                        if (current.exists()) {
+                            current.setStat(stat);
+                            fireNodeDataChanged(current);
+                        }
+                    } else if (rc != KeeperException.Code.NONODE.intValue()) {
+                        log.error("Error getting new node stat of {} : {}", path1, KeeperException.Code.get(rc));
+                    }
+                } finally {
+                    done.run();
+                }
+            }, null);
+            return;
         }
+        zk.getData(path, watcherFor(path), (rc, path1, ctx, data, stat) -> {
+            try {
+                ZVNodeImpl node = findNode(path1);
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    if (rc != KeeperException.Code.NONODE.intValue()) {
+                        log.error("Error getting new node data of {} : {}", path1, KeeperException.Code.get(rc));
+                    }
+                    return;
+                }
+                if (node != null && node.exists()) {
+                    node.setData(data);
+                    node.setStat(stat);
+                    if (payloadCache != null) {
+                        payloadCache.put(node, data == null ? 0 : data.length);
+                    }
+                    fireNodeDataChanged(node);
+                }
+            } finally {
+                done.run();
+            }
+        }, null);
     }
 
     /**
      * Populates the root in this model.
      */
-    private synchronized void populateRoot() {
-        if (nodes.get("/") == null) {
+    private void populateRoot() {
+        if (root == null) {
             try {
                 log.info("[{}] Populating root..", Thread.currentThread());
                 Stat stat = new Stat();
-                ZVNodeImpl root = new ZVNodeImpl("/", zk.getData("/", watcher, stat));
-                root.setStat(stat);
-                nodes.put("/", root);
-                children.put(root, new ArrayList<>());
-                fireNodeCreated(root);
+                byte[] data = zk.getData("/", watcherFor("/"), stat);
+                ZVNodeImpl newRoot = new ZVNodeImpl(payloads, data);
+                newRoot.setStat(stat);
+                synchronized (this) {
+                    if (root != null) {
+                        newRoot.releaseData();
+                        return;
+                    }
+                    root = newRoot;
+                }
+                metrics.nodesAdded(1);
+                fireNodeCreated(newRoot);
+                newRoot.startLoadingChildren();
                 populateChildren("/");
             } catch (KeeperException | InterruptedException e) {
                 log.error("Error populating root.", e);
@@ -203,50 +552,222 @@ public class ZVModelImpl implements ZVModel {
         }
     }
 
+    /**
+     * Resolves a path by walking down the tree from the root, one segment
+     * at a time, without extracting the segments.
+     * @param path the node path
+     * @return the live node, or <code>null</code> if unknown
+     */
+    private ZVNodeImpl findNode(String path) {
+        ZVNodeImpl node = root;
+        if (node == null || path == null || !path.startsWith("/")) {
+            return null;
+        }
+        int start = 1;
+        while (node != null && start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.getChild(path, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
     /**
      * Populates the children of the specified path.
+     * <p>
+     * In lazy mode, only the direct children are fetched. Otherwise the
+     * whole subtree is populated recursively.
+     * </p>
      * @param path path
      */
-    private synchronized void populateChildren(String path) {
-        ChildrenCallback cb = (rc, path1, ctx, childrenNames) -> {
-            ZVNodeImpl parent = nodes.get(path1);
-            Stat stat = new Stat();
-            try {
-                parent.setStat(zk.exists(path1, false));
-            } catch (Exception ignore) {
-                ignore.printStackTrace();
+    private void populateChildren(String path) {
+        crawler.list(path);
+    }
+
+    /**
+     * Applies the results of the crawler to the model.
+     */
+    private final class CrawlSink implements ZVCrawler.Sink {
+        @Override
+        public List<String> childrenListed(String parentPath, Stat parentStat, List<String> names) {
+            ZVNodeImpl parent = findNode(parentPath);
+            if (parent == null) {
+                return Collections.emptyList();
             }
-            for (String childName : childrenNames) {
-                try {
-                    String childPath = getFullPath(path1, childName);
-                    ZVNodeImpl child = nodes.get(childPath);
-                    if (child != null) {
-                        if (!child.exists()) {
-                            child.setData(zk.getData(childPath, watcher,
-                                    stat));
-                            child.setStat(stat);
-                            child.setExists(true);
-                            children.put(child, new ArrayList<>());
-                            children.get(parent).add(child);
-                            fireNodeCreated(child);
-                            populateChildren(childPath);
-                        }
-                    } else {
-                        child = new ZVNodeImpl(childPath, zk.getData(
-                                childPath, watcher, stat));
-                        child.setStat(stat);
-                        nodes.put(childPath, child);
-                        children.put(child, new ArrayList<>());
-                        children.get(parent).add(child);
-                        fireNodeCreated(child);
-                        populateChildren(childPath);
+            parent.setStat(parentStat);
+
+            // Sorted merge of the listing with the known children: only new
+            // names are fetched, and vanished children are removed
+            String[] listed = names.toArray(new String[names.size()]);
+            Arrays.sort(listed);
+            ZVNodeImpl[] known = parent.getChildren();
+            List<String> toFetch = new ArrayList<>();
+            List<ZVNodeImpl> vanished = new ArrayList<>();
+            int i = 0;
+            int j = 0;
+            while (i < listed.length || j < known.length) {
+                int cmp = i == listed.length ? 1
+                        : j == known.length ? -1
+                        : listed[i].compareTo(known[j].getName());
+                if (cmp < 0) {
+                    toFetch.add(listed[i++]);
+                } else if (cmp > 0) {
+                    vanished.add(known[j++]);
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+            if (!vanished.isEmpty()) {
+                removeChildren(parent, vanished);
+            }
+            return toFetch;
+        }
+
+        @Override
+        public void childrenFetched(String parentPath, List<String> names, byte[][] data, Stat[] stats) {
+            ZVNodeImpl parent = findNode(parentPath);
+            if (parent == null) {
+                return;
+            }
+            List<ZVNodeImpl> created = new ArrayList<>();
+            synchronized (parent) {
+                if (!parent.exists()) {
+                    return;
+                }
+                for (int i = 0; i < names.size(); i++) {
+                    if (stats[i] == null || parent.getChild(names.get(i)) != null) {
+                        // Deleted before its data could be read, or already known
+                        continue;
                     }
-                } catch (Exception ignore) {
-                    ignore.printStackTrace();
+                    ZVNodeImpl child = new ZVNodeImpl(parent, names.get(i), data[i]);
+                    if (payloadCache != null) {
+                        // Fetched on demand
+                        child.releaseData();
+                    }
+                    child.setStat(stats[i]);
+                    created.add(child);
+                }
+                parent.addChildren(created);
+            }
+            metrics.nodesAdded(created.size());
+            for (ZVNodeImpl child : created) {
+                fireNodeCreated(child);
+                populateChildrenIfEager(child);
+            }
+            if (parent.endLoadingChildren(true)) {
+                fireChildrenLoaded(parent);
+            }
+        }
+
+        @Override
+        public void listFailed(String parentPath, KeeperException.Code code) {
+            if (code == KeeperException.Code.NONODE) {
+                log.debug("Node {} deleted before its children could be listed", parentPath);
+            } else {
+                log.warn("Cannot list children of {} : {}", parentPath, code);
+            }
+            ZVNodeImpl parent = findNode(parentPath);
+            if (parent != null) {
+                parent.endLoadingChildren(false);
+            }
+        }
+
+        @Override
+        public void nodeChecked(String path, Stat stat) {
+            ZVNodeImpl node = findNode(path);
+            if (node == null) {
+                return;
+            }
+            if (stat == null) {
+                nodeDeleted(path);
+                return;
+            }
+            boolean known = node.hasStat();
+            long mzxid = node.getMzxid();
+            long pzxid = node.getPzxid();
+            node.setStat(stat);
+            if (!known || mzxid != stat.getMzxid()) {
+                if (payloadCache == null || node.isDataLoaded()) {
+                    debouncer.submit("data:" + path, done -> nodeDataChanged(path, done));
+                } else {
+                    fireNodeDataChanged(node);
+                }
+            } else if (payloadCache == null && !node.isDataLoaded()) {
+                debouncer.submit("data:" + path, done -> nodeDataChanged(path, done));
+            }
+            if (!node.isChildrenLoaded()) {
+                populateChildrenIfEager(node);
+                return;
+            }
+            for (ZVNodeImpl child : node.getChildren()) {
+                crawler.check(child.getPath());
+            }
+            // Without recursive watch, the listing also sets the child watch
+            if (!known || pzxid != stat.getPzxid() || watcherFor(path) != null) {
+                debouncer.submit("children:" + path, done -> crawler.list(path, done));
+            }
+        }
+    }
+
+    /**
+     * Populates the children of a newly discovered node, unless in lazy mode.
+     * @param node the new node
+     */
+    private void populateChildrenIfEager(ZVNodeImpl node) {
+        if (!config.isLazy() && node.startLoadingChildren()) {
+            populateChildren(node.getPath());
+        }
+    }
+
+    @Override
+    public boolean isChildrenLoaded(ZVNode parent) {
+        return ((ZVNodeImpl) parent).isChildrenLoaded();
+    }
+
+    @Override
+    public void loadChildren(ZVNode parent) {
+        if (parent.exists() && ((ZVNodeImpl) parent).startLoadingChildren()) {
+            log.info("Loading children of {}", parent.getPath());
+            populateChildren(parent.getPath());
+        }
+    }
+
+    @Override
+    public void loadData(ZVNode node) {
+        ZVNodeImpl impl = (ZVNodeImpl) node;
+        if (!impl.exists()) {
+            return;
+        }
+        if (impl.isDataLoaded()) {
+            if (payloadCache != null) {
+                payloadCache.touch(impl);
+            }
+            return;
+        }
+        if (!dataLoading.add(impl)) {
+            return;
+        }
+        zk.getData(impl.getPath(), watcherFor(impl.getPath()), (rc, path, ctx, data, stat) -> {
+            dataLoading.remove(impl);
+            if (rc != KeeperException.Code.OK.intValue()) {
+                if (rc != KeeperException.Code.NONODE.intValue()) {
+                    log.error("Error getting data of {} : {}", path, KeeperException.Code.get(rc));
+                }
+                return;
+            }
+            if (impl.exists()) {
+                impl.setData(data);
+                impl.setStat(stat);
+                if (payloadCache != null) {
+                    payloadCache.put(impl, data == null ? 0 : data.length);
                 }
+                fireNodeDataChanged(impl);
             }
-        };
-        zk.getChildren(path, watcher, cb, null);
+        }, null);
     }
 
     /*
@@ -275,13 +796,7 @@ public class ZVModelImpl implements ZVModel {
 
     @Override
     public void addNode(String path, byte[] data) {
-        if ((nodes.get(path) != null) && nodes.get(path).exists()) {
-            throw new IllegalStateException("Node '" + path + "' already exists");
-        }
-
-        if ((nodes.get(getParent(path)) == null) || !nodes.get(getParent(path)).exists()) {
-            throw new IllegalArgumentException("Node '" + path + "' can't be created. Its parent node doesn't exist");
-        }
+        checkNewNode(path);
 
         try {
             zk.create(path, data, OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
@@ -290,108 +805,257 @@ public class ZVModelImpl implements ZVModel {
         }
     }
 
+    /**
+     * Checks that a node can be created, from the known nodes.
+     * @param path the node path
+     * @throws IllegalStateException if the node exists
+     * @throws IllegalArgumentException if the parent does not exist
+     */
+    private void checkNewNode(String path) {
+        if (findNode(path) != null) {
+            throw new IllegalStateException("Node '" + path + "' already exists");
+        }
+
+        if (findNode(getParent(path)) == null) {
+            throw new IllegalArgumentException("Node '" + path + "' can't be created. Its parent node doesn't exist");
+        }
+    }
+
     @Override
-    public void deleteNode(ZVNode node) {
-        String path = node.getPath();
-        log.info("Delete requested on node " + path);
-        PathUtils.validatePath(path);
+    public CompletableFuture<Stat> addNodeAsync(String path, byte[] data) {
+        CompletableFuture<Stat> result = new CompletableFuture<>();
         try {
-            // Checks if the node has children
-            List<String> childNodes = zk.getChildren(path, false);
-            if (childNodes != null && childNodes.size() > 0) {
-                // if the node has children, delete them recursively
-                for (String nodeName : childNodes) {
-                    String childPath = path + (path.endsWith("/") ? "" : "/") + nodeName;
-                    deleteNode(getNode(childPath));
+            checkNewNode(path);
+            zk.create(path, data, OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, path1, ctx, name, stat) -> {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    result.complete(stat);
+                } else {
+                    result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path1));
                 }
+            }, null);
+        } catch (RuntimeException e) {
+            // Unknown parent, invalid path...
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public ZVDeletion deleteNodes(ZVNode[] nodes, ZVDeletion.Listener listener) {
+        List<String> roots = subtreeRoots(nodes);
+        log.info("Delete requested on nodes {}", roots);
+        ZVSubtreeDeleter deleter = new ZVSubtreeDeleter(zk, roots, config, listener, this::nodeDeleted);
+        deleter.start();
+        return deleter;
+    }
+
+    /**
+     * Returns the paths of nodes, without those lying in the subtree of
+     * another one.
+     * @param nodes the nodes
+     * @return the roots of the subtrees
+     */
+    private List<String> subtreeRoots(ZVNode[] nodes) {
+        Set<String> selected = new HashSet<>();
+        for (ZVNode node : nodes) {
+            PathUtils.validatePath(node.getPath());
+            selected.add(node.getPath());
+        }
+        List<String> roots = new ArrayList<>();
+        for (String path : selected) {
+            String ancestor = getParent(path);
+            while (ancestor != null && !selected.contains(ancestor)) {
+                ancestor = getParent(ancestor);
+            }
+            if (ancestor == null) {
+                roots.add(path);
             }
-            // finally, delete the node itself
-            Stat stat = zk.exists(path, false);
-            log.info("Deleting node {} (stat = {})", path, stat);
-            zk.delete(path, -1);
-            Stat stat2 = zk.exists(path, false);
-            log.info("Deleting node {} (stat = {})", path, stat2);
-        } catch (KeeperException | InterruptedException e) {
-            log.error("Error deleting node.", e);
         }
+        return roots;
     }
 
     @Override
-    public void deleteNodes(ZVNode[] nodes) {
+    public ZVBulkEdit editNodes(ZVNode[] nodes, ZVDataChange change, ZVBulkEdit.Listener listener) {
+        List<String> paths = new ArrayList<>(nodes.length);
         for (ZVNode node : nodes) {
-            deleteNode(node);
+            paths.add(node.getPath());
         }
+        log.info("Bulk edit requested on {} nodes", paths.size());
+        ZVBulkEditor editor = new ZVBulkEditor(zk, paths, false, null, this::findNode, change, config, listener,
+                this::dataWritten);
+        editor.start();
+        return editor;
+    }
+
+    @Override
+    public ZVBulkEdit editSubtrees(ZVNode[] roots, Pattern pattern, ZVDataChange change,
+            ZVBulkEdit.Listener listener) {
+        List<String> paths = subtreeRoots(roots);
+        log.info("Bulk edit requested under {}, matching {}", paths, pattern);
+        ZVBulkEditor editor = new ZVBulkEditor(zk, paths, true, pattern, this::findNode, change, config, listener,
+                this::dataWritten);
+        editor.start();
+        return editor;
+    }
+
+    /**
+     * Called when a bulk edit has written a node, before its watch fires.
+     * @param path the node path
+     * @param data the new data
+     * @param stat the new stat
+     */
+    private void dataWritten(String path, byte[] data, Stat stat) {
+        ZVNodeImpl node = findNode(path);
+        if (node == null || !node.exists() || (node.hasStat() && node.getVersion() >= stat.getVersion())) {
+            return;
+        }
+        if (payloadCache == null || node.isDataLoaded()) {
+            node.setData(data);
+            if (payloadCache != null) {
+                payloadCache.put(node, data.length);
+            }
+        }
+        node.setStat(stat);
+        fireNodeDataChanged(node);
+    }
 
+    @Override
+    public ZVTransfer exportSubtree(ZVNode node, File file, ZVTransfer.Listener listener) {
+        log.info("Export of {} requested to {}", node.getPath(), file);
+        ZVExporter exporter = new ZVExporter(zk, node.getPath(), file, config, listener);
+        exporter.start("zooviewer-export");
+        return exporter;
+    }
+
+    @Override
+    public ZVTransfer importSubtree(File file, ZVNode parent, ZVTransfer.Listener listener) {
+        log.info("Import of {} requested under {}", file, parent.getPath());
+        ZVImporter importer = new ZVImporter(zk, file, parent.getPath(), config, listener);
+        importer.start("zooviewer-import");
+        return importer;
     }
 
     @Override
     public void updateData(String path, byte[] data) {
         try {
             Stat stat = zk.setData(path, data, -1);
-            nodes.get(path).setStat(stat);
+            ZVNodeImpl node = findNode(path);
+            if (node != null) {
+                node.setStat(stat);
+            }
         } catch (KeeperException | InterruptedException e) {
             log.error("Error updating data.", e);
         }
     }
 
+    @Override
+    public CompletableFuture<Stat> updateDataAsync(String path, byte[] data) {
+        CompletableFuture<Stat> result = new CompletableFuture<>();
+        try {
+            zk.setData(path, data, -1, (rc, path1, ctx, stat) -> {
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    result.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path1));
+                    return;
+                }
+                ZVNodeImpl node = findNode(path1);
+                if (node != null) {
+                    node.setStat(stat);
+                }
+                result.complete(stat);
+            }, null);
+        } catch (RuntimeException e) {
+            // Invalid path
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     @Override
     public ZVNode getNode(String path) {
-        return nodes.get(path);
+        return findNode(path);
     }
 
     @Override
     public ZVNode getParent(ZVNode node) {
-        return getNode(getParent(node.getPath()));
+        return ((ZVNodeImpl) node).getParent();
     }
 
     @Override
     public List<ZVNode> getChildren(ZVNode parent) {
-        return children.get(parent).stream().filter(ZVNodeImpl::exists).collect(Collectors.toList());
+        return Collections.unmodifiableList(Arrays.asList((ZVNode[]) ((ZVNodeImpl) parent).getChildren()));
+    }
+
+    @Override
+    public int getChildCount(ZVNode parent) {
+        return ((ZVNodeImpl) parent).getChildCount();
+    }
+
+    @Override
+    public ZVNode getChild(ZVNode parent, int index) {
+        return ((ZVNodeImpl) parent).getChild(index);
+    }
+
+    @Override
+    public int getIndexOfChild(ZVNode parent, ZVNode child) {
+        return ((ZVNodeImpl) parent).getIndexOfChild(child);
+    }
+
+    /**
+     * Returns the metrics of this model, also published through JMX unless
+     * disabled.
+     * @return the metrics
+     */
+    public ZVModelMetricsMXBean getMetrics() {
+        return metrics;
     }
 
     @Override
     public void addModelListener(ZVModelListener listener) {
-        listenerList.add(ZVModelListener.class, listener);
+        listenerList.add(listener);
     }
 
     @Override
     public void removeModelListener(ZVModelListener listener) {
-        listenerList.remove(ZVModelListener.class, listener);
+        listenerList.remove(listener);
     }
 
     protected void fireNodeCreated(ZVNode newNode) {
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i] == ZVModelListener.class) {
-                ((ZVModelListener) listeners[i + 1]).nodeCreated(newNode);
-            }
+        long start = System.nanoTime();
+        // Snapshot of the listeners, processed last to first
+        Object[] listeners = listenerList.toArray();
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            ((ZVModelListener) listeners[i]).nodeCreated(newNode);
         }
+        metrics.listenersCalled(start);
     }
 
     protected void fireNodeDeleted(ZVNode oldNode, int oldIndex) {
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i] == ZVModelListener.class) {
-                ((ZVModelListener) listeners[i + 1]).nodeDeleted(oldNode, oldIndex);
-            }
+        long start = System.nanoTime();
+        // Snapshot of the listeners, processed last to first
+        Object[] listeners = listenerList.toArray();
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            ((ZVModelListener) listeners[i]).nodeDeleted(oldNode, oldIndex);
         }
+        metrics.listenersCalled(start);
+    }
+
+    protected void fireChildrenLoaded(ZVNode parent) {
+        long start = System.nanoTime();
+        // Snapshot of the listeners, processed last to first
+        Object[] listeners = listenerList.toArray();
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            ((ZVModelListener) listeners[i]).childrenLoaded(parent);
+        }
+        metrics.listenersCalled(start);
     }
 
     protected void fireNodeDataChanged(ZVNode node) {
-        // Guaranteed to return a non-null array
-        Object[] listeners = listenerList.getListenerList();
-        // Process the listeners last to first, notifying
-        // those that are interested in this event
-        for (int i = listeners.length - 2; i >= 0; i -= 2) {
-            if (listeners[i] == ZVModelListener.class) {
-                ((ZVModelListener) listeners[i + 1]).nodeDataChanged(node);
-            }
+        long start = System.nanoTime();
+        // Snapshot of the listeners, processed last to first
+        Object[] listeners = listenerList.toArray();
+        for (int i = listeners.length - 1; i >= 0; i--) {
+            ((ZVModelListener) listeners[i]).nodeDataChanged(node);
         }
+        metrics.listenersCalled(start);
     }
 }
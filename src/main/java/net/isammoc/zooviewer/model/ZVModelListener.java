@@ -24,4 +24,11 @@ public interface ZVModelListener extends EventListener {
     void nodeDeleted(ZVNode oldNode, int oldIndex);
 
     void nodeDataChanged(ZVNode node);
+
+    /**
+     * Called once the first listing of the children of a node is complete.
+     * @param parent the parent node
+     */
+    default void childrenLoaded(ZVNode parent) {
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import java.util.Map;
+
+/**
+ * Metrics of a {@link ZVModelImpl}, published through JMX under the
+ * <code>net.isammoc.zooviewer</code> domain.
+ * <p>
+ * The request latencies cover every ZooKeeper request of the model,
+ * including the crawl, the deletions and the transfers. The counters are
+ * cumulative, from the creation of the model or the last
+ * {@link #resetLatencies()}.
+ * </p>
+ */
+public interface ZVModelMetricsMXBean {
+
+    /**
+     * Returns the connect string of the model.
+     * @return the connect string
+     */
+    String getConnectString();
+
+    /**
+     * Returns the number of live nodes in the model.
+     * @return the node count
+     */
+    long getNodeCount();
+
+    /**
+     * Returns the total length of the payloads held by the model, on the heap
+     * or not.
+     * @return the number of bytes
+     */
+    long getPayloadBytes();
+
+    /**
+     * Returns the number of watches the client holds on the server. The
+     * count copies the watched paths, so it is only taken every 10 seconds.
+     * @return the watch count
+     */
+    int getWatchCount();
+
+    /**
+     * Returns the number of ZooKeeper requests sent and not answered yet.
+     * @return the request count
+     */
+    long getOutstandingRequests();
+
+    /**
+     * Returns the latencies of the ZooKeeper requests, by operation
+     * (<code>getData</code>, <code>getChildren</code>, <code>exists</code>,
+     * <code>setData</code>, <code>create</code>, <code>delete</code>,
+     * <code>multi</code>).
+     * @return the latencies
+     */
+    Map<String, ZVLatency> getRequestLatencies();
+
+    /**
+     * Returns the number of watch events received, by event type.
+     * @return the event counts
+     */
+    Map<String, Long> getWatchEventCounts();
+
+    /**
+     * Returns the number of watch events received per second over the last
+     * minute, by event type.
+     * @return the event rates
+     */
+    Map<String, Double> getWatchEventRates();
+
+    /**
+     * Returns the time spent calling the model listeners for each event.
+     * @return the dispatch latency
+     */
+    ZVLatency getListenerDispatchLatency();
+
+    /**
+     * Clears the request latencies and the listener dispatch latency.
+     */
+    void resetLatencies();
+}
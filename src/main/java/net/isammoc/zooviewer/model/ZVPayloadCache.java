@@ -0,0 +1,106 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.node.ZVNodeImpl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the payloads fetched on demand, and drops the least
+ * recently used ones when their total size exceeds
+ * {@link ZVModelConfig#getPayloadCacheSize()}.
+ * <p>
+ * Payloads are dropped outside of the cache lock, so that the cache never
+ * waits on a node.
+ * </p>
+ */
+class ZVPayloadCache {
+
+    private final long capacity;
+
+    /** Payload length of each node, in access order. */
+    private final LinkedHashMap<ZVNodeImpl, Integer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private long evictions;
+
+    ZVPayloadCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Records a fetched payload, and drops the least recently used ones if
+     * needed. The last payload is always kept.
+     * @param node the node
+     * @param length the payload length
+     */
+    void put(ZVNodeImpl node, int length) {
+        List<ZVNodeImpl> evicted = new ArrayList<>();
+        synchronized (this) {
+            Integer old = entries.put(node, length);
+            size += length - (old == null ? 0 : old);
+            Iterator<Map.Entry<ZVNodeImpl, Integer>> it = entries.entrySet().iterator();
+            while (size > capacity && entries.size() > 1) {
+                Map.Entry<ZVNodeImpl, Integer> eldest = it.next();
+                size -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+            evictions += evicted.size();
+        }
+        for (ZVNodeImpl victim : evicted) {
+            victim.releaseData();
+        }
+    }
+
+    /**
+     * Marks a payload as recently used.
+     * @param node the node
+     */
+    synchronized void touch(ZVNodeImpl node) {
+        entries.get(node);
+    }
+
+    /**
+     * Forgets the payload of a node, released by the caller.
+     * @param node the node
+     */
+    synchronized void remove(ZVNodeImpl node) {
+        Integer old = entries.remove(node);
+        if (old != null) {
+            size -= old;
+        }
+    }
+
+    /**
+     * Returns the total size of the cached payloads.
+     * @return the size in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of payloads dropped to stay within the capacity.
+     * @return the number of evictions
+     */
+    synchronized long getEvictionCount() {
+        return evictions;
+    }
+}
@@ -0,0 +1,729 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.node.ZVNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Full-text index over the paths and the data of the nodes of a model, for
+ * substring and regular expression searches.
+ * <p>
+ * The index is fed by the events of the model, applied on a thread of its
+ * own. Each indexed node gets an id, and each trigram of its lower-cased
+ * path and data (decoded as UTF-8, up to {@link #PROPERTY_DATA_LIMIT}
+ * bytes) lists the ids of the nodes containing it. Ids only grow, so the
+ * lists are sorted and stored as deltas in variable-length bytes. A node
+ * whose data changes is indexed again under a new id, and the lists are
+ * rewritten once half of the ids are dead.
+ * </p>
+ * <p>
+ * A query is answered by intersecting the lists of its trigrams (the ones
+ * of the literal parts for a regular expression), then by checking the
+ * remaining candidates against their actual path and data. Queries without
+ * three literal characters check every node.
+ * </p>
+ * <p>
+ * Only the nodes known by the model are indexed: in lazy mode, the
+ * children of a node are searched once it has been expanded.
+ * </p>
+ */
+public class ZVSearchIndex {
+
+    /** System property defining the maximum number of data bytes indexed per node. */
+    public static final String PROPERTY_DATA_LIMIT = "zooviewer.search.dataLimit";
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ZVModel model;
+
+    private final int dataLimit;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "zooviewer-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ZVModelListener listener = new ZVModelListener() {
+        @Override
+        public void nodeCreated(ZVNode newNode) {
+            submit(() -> addSubtree(newNode));
+        }
+
+        @Override
+        public void nodeDeleted(ZVNode oldNode, int oldIndex) {
+            submit(() -> remove(oldNode));
+        }
+
+        @Override
+        public void nodeDataChanged(ZVNode node) {
+            submit(() -> update(node));
+        }
+    };
+
+    /** Indexed nodes by id, <code>null</code> for dead ids. Guarded by this. */
+    private ZVNode[] nodes = new ZVNode[1024];
+
+    /** Next id. Guarded by this. */
+    private int nextId;
+
+    /** Number of live ids. Guarded by this. */
+    private int live;
+
+    /** Ids of the indexed nodes. Guarded by this. */
+    private final Map<ZVNode, Integer> ids = new IdentityHashMap<>();
+
+    /** Ids of the nodes containing each trigram. Guarded by this. */
+    private PostingsTable postings = new PostingsTable(1 << 12);
+
+    /** Number of changes since the last check of deleted nodes. Guarded by this. */
+    private int changes;
+
+    private volatile boolean ready;
+
+    private volatile boolean closed;
+
+    /**
+     * Sorted ids, as deltas in variable-length bytes.
+     */
+    private static final class Postings {
+        private byte[] bytes = new byte[4];
+        private int length;
+        private int count;
+        private int last = -1;
+
+        void add(int id) {
+            if (id == last) {
+                // Trigram repeated in the same node
+                return;
+            }
+            int delta = id - last;
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while ((delta & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            last = id;
+            count++;
+        }
+
+        int[] toArray() {
+            int[] array = new int[count];
+            int pos = 0;
+            int id = -1;
+            for (int i = 0; i < count; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                array[i] = id;
+            }
+            return array;
+        }
+
+        /**
+         * Keeps the candidates listed here.
+         * @param candidates sorted ids
+         * @return the candidates found in this list
+         */
+        int[] retain(int[] candidates) {
+            int kept = 0;
+            int pos = 0;
+            int id = -1;
+            int read = 0;
+            for (int candidate : candidates) {
+                while (id < candidate && read < count) {
+                    int delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = bytes[pos++];
+                        delta |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    id += delta;
+                    read++;
+                }
+                if (id == candidate) {
+                    candidates[kept++] = candidate;
+                } else if (id < candidate) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(candidates, kept);
+        }
+    }
+
+    /**
+     * Lists of ids by trigram, in an open-addressing table without boxing.
+     */
+    private static final class PostingsTable {
+        private long[] keys;
+        private Postings[] values;
+        private int size;
+
+        PostingsTable(int capacity) {
+            keys = new long[capacity];
+            values = new Postings[capacity];
+        }
+
+        Postings get(long key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        Postings getOrCreate(long key) {
+            return put(key, null);
+        }
+
+        /**
+         * Returns the list of a trigram, adding the specified one if none.
+         * @param key the trigram
+         * @param added the list to add, or <code>null</code> for an empty list
+         * @return the list
+         */
+        Postings put(long key, Postings added) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            Postings list = added != null ? added : new Postings();
+            keys[i] = key;
+            values[i] = list;
+            if (++size > keys.length * 3 / 4) {
+                resize(keys.length * 2);
+            }
+            return list;
+        }
+
+        private void resize(int capacity) {
+            long[] oldKeys = keys;
+            Postings[] oldValues = values;
+            keys = new long[capacity];
+            values = new Postings[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * Creates the index of a model, and starts indexing its nodes.
+     * @param model the model
+     */
+    public ZVSearchIndex(ZVModel model) {
+        this.model = model;
+        this.dataLimit = Integer.getInteger(PROPERTY_DATA_LIMIT, 64 * 1024);
+        model.addModelListener(listener);
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            ZVNode root = model.getNode("/");
+            if (root != null) {
+                addSubtree(root);
+            }
+            ready = true;
+            log.info("Indexed {} nodes in {} ms", getSize(), (System.nanoTime() - start) / 1000000);
+        });
+    }
+
+    /**
+     * Stops updating the index.
+     */
+    public void close() {
+        closed = true;
+        model.removeModelListener(listener);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues a change of the index, unless closed. Called by the model
+     * listener, which may still receive an event once closed.
+     * @param task the change
+     */
+    private void submit(Runnable task) {
+        if (closed) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+        }
+    }
+
+    /**
+     * Checks if the nodes known when the index was created are all indexed.
+     * @return <code>false</code> while the first indexing is running
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Returns the number of indexed nodes.
+     * @return the number of nodes
+     */
+    public synchronized int getSize() {
+        return live;
+    }
+
+    /**
+     * Searches the nodes whose path or data contains a text, ignoring the
+     * case, or matches a regular expression.
+     * @param query the text, or the regular expression
+     * @param regex <code>true</code> if the query is a regular expression
+     * @param limit the maximum number of results
+     * @return the matching nodes, in indexing order
+     * @throws java.util.regex.PatternSyntaxException if the regular
+     *             expression is invalid
+     */
+    public List<ZVNode> search(String query, boolean regex, int limit) {
+        Pattern pattern = regex ? Pattern.compile(query) : null;
+        String text = lower(query);
+        List<String> literals = regex ? literals(query) : Collections.singletonList(text);
+        List<ZVNode> results = new ArrayList<>();
+        synchronized (this) {
+            int[] candidates = candidates(literals);
+            int count = candidates == null ? nextId : candidates.length;
+            for (int i = 0; i < count && results.size() < limit; i++) {
+                ZVNode node = nodes[candidates == null ? i : candidates[i]];
+                if (node == null || !node.exists()) {
+                    continue;
+                }
+                String path = node.getPath();
+                String data = decode(node);
+                boolean match = regex ? pattern.matcher(path).find() || data != null && pattern.matcher(data).find()
+                        : lower(path).contains(text) || data != null && lower(data).contains(text);
+                if (match) {
+                    results.add(node);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the ids of the nodes containing all the trigrams of the
+     * literals.
+     * @param literals the literals
+     * @return the sorted ids, or <code>null</code> if no literal is long
+     *         enough to select nodes
+     */
+    private int[] candidates(List<String> literals) {
+        List<Postings> lists = new ArrayList<>();
+        for (String literal : literals) {
+            for (int i = 0; i + 3 <= literal.length(); i++) {
+                Postings list = postings.get(trigram(literal, i));
+                if (list == null) {
+                    return NO_IDS;
+                }
+                lists.add(list);
+            }
+        }
+        if (lists.isEmpty()) {
+            return null;
+        }
+        // Shortest lists first
+        lists.sort((a, b) -> Integer.compare(a.count, b.count));
+        int[] ids = lists.get(0).toArray();
+        for (int i = 1; i < lists.size() && ids.length > 0; i++) {
+            if (lists.get(i) != lists.get(i - 1)) {
+                ids = lists.get(i).retain(ids);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Extracts lower-cased strings that any match of a regular expression
+     * contains. Conservative: parts which may be optional, groups and
+     * classes are skipped, and nothing is extracted from a top-level
+     * alternation, nor from a pattern with inline flags such as
+     * <code>(?x)</code>, which change what the text means.
+     * @param regex the regular expression
+     * @return the literals
+     */
+    static List<String> literals(String regex) {
+        List<String> literals = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(++i);
+                if (next == 'Q') {
+                    // Quoted text, up to \E
+                    int end = regex.indexOf("\\E", i + 1);
+                    if (depth == 0) {
+                        run.append(regex, i + 1, end < 0 ? regex.length() : end);
+                    }
+                    i = end < 0 ? regex.length() : end + 1;
+                } else if (Character.isLetterOrDigit(next)) {
+                    // Class, anchor, character code, back-reference...
+                    flush(run, literals, depth);
+                    i = endOfEscape(regex, i);
+                } else if (depth == 0) {
+                    run.append(next);
+                }
+                continue;
+            }
+            switch (c) {
+                case '|':
+                    if (depth == 0) {
+                        return new ArrayList<>();
+                    }
+                    // Alternatives of a group, which is skipped anyway
+                    break;
+                case '(':
+                    if (i + 2 < regex.length() && regex.charAt(i + 1) == '?'
+                            && "idmsuxU-".indexOf(regex.charAt(i + 2)) >= 0) {
+                        // Inline flags
+                        return new ArrayList<>();
+                    }
+                    flush(run, literals, depth);
+                    depth++;
+                    break;
+                case ')':
+                    depth = Math.max(0, depth - 1);
+                    break;
+                case '[':
+                    flush(run, literals, depth);
+                    // Skips the class
+                    for (i++; i < regex.length() && regex.charAt(i) != ']'; i++) {
+                        if (regex.charAt(i) == '\\') {
+                            i++;
+                        }
+                    }
+                    break;
+                case '?':
+                case '*':
+                    // The previous character is optional
+                    if (run.length() > 0) {
+                        run.setLength(run.length() - 1);
+                    }
+                    flush(run, literals, depth);
+                    break;
+                case '{':
+                    if (i + 1 < regex.length() && regex.charAt(i + 1) == '0' && run.length() > 0) {
+                        run.setLength(run.length() - 1);
+                    }
+                    flush(run, literals, depth);
+                    while (i < regex.length() && regex.charAt(i) != '}') {
+                        i++;
+                    }
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                    flush(run, literals, depth);
+                    break;
+                default:
+                    if (depth == 0) {
+                        run.append(c);
+                    }
+            }
+        }
+        flush(run, literals, 0);
+        return literals;
+    }
+
+    /**
+     * Finds the end of an escape sequence, with its argument.
+     * @param regex the regular expression
+     * @param i the index of the letter or digit following the backslash
+     * @return the index of the last character of the escape
+     */
+    private static int endOfEscape(String regex, int i) {
+        char c = regex.charAt(i);
+        char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+        int end = i;
+        switch (c) {
+            case 'x':
+                end = next == '{' ? regex.indexOf('}', i) : i + 2;
+                break;
+            case 'u':
+                end = i + 4;
+                break;
+            case 'c':
+                end = i + 1;
+                break;
+            case 'k':
+                end = next == '<' ? regex.indexOf('>', i) : i;
+                break;
+            case 'p':
+            case 'P':
+            case 'N':
+                end = next == '{' ? regex.indexOf('}', i) : i + 1;
+                break;
+            case '0':
+                while (end + 1 < regex.length() && end - i < 3 && regex.charAt(end + 1) >= '0'
+                        && regex.charAt(end + 1) <= '7') {
+                    end++;
+                }
+                break;
+            default:
+                // Back-reference
+                while (Character.isDigit(c) && end + 1 < regex.length() && Character.isDigit(regex.charAt(end + 1))) {
+                    end++;
+                }
+        }
+        return end < 0 ? regex.length() - 1 : Math.min(end, regex.length() - 1);
+    }
+
+    private static void flush(StringBuilder run, List<String> literals, int depth) {
+        if (depth == 0 && run.length() >= 3) {
+            literals.add(lower(run.toString()));
+        }
+        run.setLength(0);
+    }
+
+    /**
+     * Indexes a node and its known descendants. Takes the lock node by
+     * node, so that searches go on meanwhile.
+     * @param top the top node
+     */
+    private void addSubtree(ZVNode top) {
+        Deque<ZVNode> stack = new ArrayDeque<>();
+        stack.push(top);
+        while (!stack.isEmpty()) {
+            ZVNode node = stack.pop();
+            if (!node.exists()) {
+                continue;
+            }
+            add(node);
+            for (ZVNode child : model.getChildren(node)) {
+                stack.push(child);
+            }
+        }
+    }
+
+    private void add(ZVNode node) {
+        String path = node.getPath();
+        String data = decode(node);
+        synchronized (this) {
+            if (ids.containsKey(node)) {
+                return;
+            }
+            int id = allocate(node);
+            addTrigrams(path, id);
+            if (data != null) {
+                addTrigrams(data, id);
+            }
+            changed();
+        }
+    }
+
+    private void update(ZVNode node) {
+        synchronized (this) {
+            Integer id = ids.remove(node);
+            if (id == null) {
+                return;
+            }
+            kill(id);
+        }
+        add(node);
+    }
+
+    private synchronized void remove(ZVNode node) {
+        Integer id = ids.remove(node);
+        if (id != null) {
+            kill(id);
+        }
+        changed();
+    }
+
+    private int allocate(ZVNode node) {
+        if (nextId == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        }
+        int id = nextId++;
+        nodes[id] = node;
+        ids.put(node, id);
+        live++;
+        return id;
+    }
+
+    private void kill(int id) {
+        nodes[id] = null;
+        live--;
+    }
+
+    private void addTrigrams(String text, int id) {
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            postings.getOrCreate(trigram(text, i)).add(id);
+        }
+    }
+
+    /**
+     * Counts a change. The descendants of a deleted node are not notified:
+     * they are found from time to time by a scan of the indexed nodes, and
+     * the lists are compacted once half of the ids are dead.
+     */
+    private void changed() {
+        if (++changes < Math.max(4096, live / 4)) {
+            return;
+        }
+        changes = 0;
+        for (int i = 0; i < nextId; i++) {
+            if (nodes[i] != null && !nodes[i].exists()) {
+                ids.remove(nodes[i]);
+                kill(i);
+            }
+        }
+        if (live < nextId / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Renumbers the live nodes, and rewrites the lists without the dead
+     * ids. The order of the ids is kept, so the lists stay sorted.
+     */
+    private void compact() {
+        long start = System.nanoTime();
+        int[] renumbered = new int[nextId];
+        int count = 0;
+        for (int i = 0; i < nextId; i++) {
+            if (nodes[i] != null) {
+                renumbered[i] = count;
+                nodes[count] = nodes[i];
+                ids.put(nodes[count], count);
+                count++;
+            } else {
+                renumbered[i] = -1;
+            }
+        }
+        Arrays.fill(nodes, count, nextId, null);
+        nextId = count;
+        PostingsTable old = postings;
+        postings = new PostingsTable(Integer.highestOneBit(Math.max(old.size, 1 << 11)) * 2);
+        for (int j = 0; j < old.keys.length; j++) {
+            Postings list = old.values[j];
+            if (list == null) {
+                continue;
+            }
+            Postings kept = new Postings();
+            for (int id : list.toArray()) {
+                if (renumbered[id] >= 0) {
+                    kept.add(renumbered[id]);
+                }
+            }
+            if (kept.count > 0) {
+                postings.put(old.keys[j], kept);
+            }
+        }
+        log.debug("Compacted search index to {} nodes in {} ms", count, (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Decodes the data of a node, up to the limit.
+     * @param node the node
+     * @return the text, or <code>null</code> if no data is known
+     */
+    private String decode(ZVNode node) {
+        if (!node.isDataLoaded()) {
+            return null;
+        }
+        ByteBuffer data = node.getDataBuffer();
+        if (data == null || !data.hasRemaining()) {
+            return null;
+        }
+        if (data.remaining() > dataLimit) {
+            ((Buffer) data).limit(data.position() + dataLimit);
+        }
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try {
+            CharBuffer chars = decoder.decode(data);
+            return chars.toString();
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lower-cases a text char by char, so that positions do not move.
+     * @param text the text
+     * @return the lower-cased text
+     */
+    private static String lower(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static long trigram(String text, int index) {
+        return (long) Character.toLowerCase(text.charAt(index)) << 32
+                | (long) Character.toLowerCase(text.charAt(index + 1)) << 16
+                | Character.toLowerCase(text.charAt(index + 2));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Read-only, memory-mapped view of a ZooKeeper snapshot file.
+ * <p>
+ * The file is mapped in segments of up to 1 GB, so snapshots over 2 GB can
+ * be read. Values are read at absolute positions in the big-endian layout of
+ * the Jute binary archive; the ones straddling two segments are assembled
+ * byte by byte.
+ * </p>
+ */
+final class ZVSnapshotFile {
+
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+    private final ByteBuffer[] segments;
+    private final long size;
+
+    /**
+     * Maps a file.
+     * @param file the snapshot file
+     * @throws IOException if the file cannot be mapped
+     */
+    ZVSnapshotFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            this.size = channel.size();
+            this.segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                // The mapping outlives the channel
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the file.
+     * @return the number of bytes
+     */
+    long size() {
+        return size;
+    }
+
+    byte getByte(long pos) {
+        check(pos, 1);
+        return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & (SEGMENT_SIZE - 1)));
+    }
+
+    int getInt(long pos) {
+        check(pos, 4);
+        int offset = (int) (pos & (SEGMENT_SIZE - 1));
+        if (offset <= SEGMENT_SIZE - 4) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (getByte(pos + i) & 0xFF);
+        }
+        return value;
+    }
+
+    long getLong(long pos) {
+        check(pos, 8);
+        int offset = (int) (pos & (SEGMENT_SIZE - 1));
+        if (offset <= SEGMENT_SIZE - 8) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].getLong(offset);
+        }
+        return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns a read-only view of a range of the file, without copying it
+     * unless it straddles two segments.
+     * @param pos the start of the range
+     * @param length the length of the range
+     * @return the view
+     */
+    ByteBuffer slice(long pos, int length) {
+        if (length == 0) {
+            return EMPTY.duplicate();
+        }
+        check(pos, length);
+        int offset = (int) (pos & (SEGMENT_SIZE - 1));
+        if (offset <= SEGMENT_SIZE - length) {
+            ByteBuffer view = segments[(int) (pos >>> SEGMENT_BITS)].duplicate();
+            ((Buffer) view).position(offset);
+            ((Buffer) view).limit(offset + length);
+            return view.slice().asReadOnlyBuffer();
+        }
+        byte[] copy = new byte[length];
+        for (int i = 0; i < length; i++) {
+            copy[i] = getByte(pos + i);
+        }
+        return ByteBuffer.wrap(copy).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a Jute string: its UTF-8 length, then its bytes.
+     * @param pos the position of the length
+     * @return the string, or <code>null</code> for a null string
+     */
+    String getString(long pos) {
+        int length = getInt(pos);
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer bytes = slice(pos + 4, length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    private void check(long pos, int length) {
+        if (pos < 0 || length < 0 || pos + length > size) {
+            throw new IndexOutOfBoundsException("Truncated snapshot: " + length + " bytes at " + pos + " of " + size);
+        }
+    }
+}
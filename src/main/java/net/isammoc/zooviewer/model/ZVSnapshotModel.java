@@ -0,0 +1,466 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.node.ZVNode;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only model of a ZooKeeper snapshot file (<code>snapshot.*</code> in
+ * the server dataDir), for browsing the data of an ensemble which is down.
+ * <p>
+ * The file is memory-mapped, and never deserialized onto the heap. Opening
+ * it scans the node records once, keeping only the offset of each record
+ * and the extent of its subtree (the records are written depth first).
+ * {@link ZVNode} instances are only created for the children of the nodes
+ * which are browsed, and their data and stat are read from the mapping on
+ * each access.
+ * </p>
+ * <p>
+ * The model never changes, so no event is fired. Modifications are not
+ * supported, but subtrees can be exported to dump files, and then imported
+ * into a live ensemble.
+ * </p>
+ */
+public class ZVSnapshotModel implements ZVModel {
+
+    private static final int SNAPSHOT_MAGIC = 0x5A4B534E;
+    private static final int GZIP_MAGIC = 0x1F8B;
+
+    // Offsets of the fields of the persisted stat
+    static final int CZXID = 0;
+    static final int MZXID = 8;
+    static final int CTIME = 16;
+    static final int MTIME = 24;
+    static final int VERSION = 32;
+    static final int CVERSION = 36;
+    static final int AVERSION = 40;
+    static final int EPHEMERAL_OWNER = 44;
+    static final int PZXID = 52;
+    private static final int STAT_SIZE = 60;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final List<ZVModelListener> listenerList = new CopyOnWriteArrayList<>();
+
+    private final File source;
+    private final ZVSnapshotFile file;
+
+    /** Offset of the record of each node, in file order. */
+    private long[] offsets = new long[1024];
+    /** Index following the subtree of each node. */
+    private int[] ends = new int[1024];
+    private int count;
+
+    private final ZVSnapshotNode root;
+
+    /**
+     * Opens a snapshot file.
+     * @param source the snapshot file, not compressed
+     * @throws IOException if the file cannot be read, or is not a snapshot
+     */
+    public ZVSnapshotModel(File source) throws IOException {
+        this.source = source;
+        this.file = new ZVSnapshotFile(source);
+        try {
+            index(skipHeader());
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException(source + " is truncated", e);
+        }
+        if (this.count == 0) {
+            throw new IOException(source + " contains no node");
+        }
+        this.offsets = Arrays.copyOf(this.offsets, this.count);
+        this.ends = Arrays.copyOf(this.ends, this.count);
+        this.root = new ZVSnapshotNode(this, null, 0, "/");
+        log.info("Opened snapshot {}: {} nodes", source, this.count);
+    }
+
+    /**
+     * Checks the file header, and skips the sessions and the ACL cache.
+     * @return the offset of the first node record
+     */
+    private long skipHeader() throws IOException {
+        int magic = file.size() < 4 ? 0 : file.getInt(0);
+        if (magic != SNAPSHOT_MAGIC) {
+            throw new IOException(source + (magic >>> 16 == GZIP_MAGIC ? " is compressed, decompress it first"
+                    : " is not a ZooKeeper snapshot"));
+        }
+        // Magic, version, dbid
+        long pos = 4 + 4 + 8;
+        int sessions = file.getInt(pos);
+        // Session id and timeout
+        pos += 4 + sessions * 12L;
+        int acls = file.getInt(pos);
+        pos += 4;
+        for (int i = 0; i < acls; i++) {
+            // ACL id, then the vector of ACLs
+            pos += 8;
+            int entries = file.getInt(pos);
+            pos += 4;
+            for (int j = 0; j < entries; j++) {
+                // Perms, then the scheme and id strings
+                pos += 4;
+                pos = skipString(pos);
+                pos = skipString(pos);
+            }
+        }
+        return pos;
+    }
+
+    private long skipString(long pos) {
+        return pos + 4 + Math.max(0, file.getInt(pos));
+    }
+
+    /**
+     * Scans the node records, up to the final "/" path.
+     * @param start the offset of the first record
+     */
+    private void index(long start) {
+        int[] stack = new int[64];
+        String[] stackPaths = new String[64];
+        int depth = 0;
+        long pos = start;
+        while (true) {
+            String path = file.getString(pos);
+            if (path == null || "/".equals(path)) {
+                break;
+            }
+            // Closes the subtrees this node is not part of
+            while (depth > 0 && !isAncestor(stackPaths[depth - 1], path)) {
+                ends[stack[--depth]] = count;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            offsets[count] = pos;
+            if (depth == stack.length) {
+                stack = Arrays.copyOf(stack, depth * 2);
+                stackPaths = Arrays.copyOf(stackPaths, depth * 2);
+            }
+            stack[depth] = count;
+            stackPaths[depth++] = path;
+            count++;
+            pos = statOffset(pos) + STAT_SIZE;
+        }
+        while (depth > 0) {
+            ends[stack[--depth]] = count;
+        }
+    }
+
+    private static boolean isAncestor(String ancestor, String path) {
+        // The root is written with an empty path
+        return ancestor.isEmpty() || (path.startsWith(ancestor) && path.length() > ancestor.length()
+                && path.charAt(ancestor.length()) == '/');
+    }
+
+    /**
+     * Returns the offset of the data of a record: its length, then its bytes.
+     */
+    private long dataOffset(long record) {
+        return skipString(record);
+    }
+
+    private long statOffset(long record) {
+        // Data, then the ACL id
+        return skipString(dataOffset(record)) + 8;
+    }
+
+    /**
+     * Returns the snapshot file.
+     * @return the file
+     */
+    public File getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the number of nodes in the snapshot.
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return count;
+    }
+
+    // Accessors used by the nodes
+
+    String getPath(int index) {
+        String path = file.getString(offsets[index]);
+        return path.isEmpty() ? "/" : path;
+    }
+
+    ByteBuffer getData(int index) {
+        long pos = dataOffset(offsets[index]);
+        int length = file.getInt(pos);
+        return length < 0 ? null : file.slice(pos + 4, length);
+    }
+
+    int getDataLength(int index) {
+        return Math.max(0, file.getInt(dataOffset(offsets[index])));
+    }
+
+    long getStatLong(int index, int field) {
+        return file.getLong(statOffset(offsets[index]) + field);
+    }
+
+    int getStatInt(int index, int field) {
+        return file.getInt(statOffset(offsets[index]) + field);
+    }
+
+    Stat getStat(int index, int numChildren) {
+        long stat = statOffset(offsets[index]);
+        return new Stat(file.getLong(stat + CZXID), file.getLong(stat + MZXID), file.getLong(stat + CTIME),
+                file.getLong(stat + MTIME), file.getInt(stat + VERSION), file.getInt(stat + CVERSION),
+                file.getInt(stat + AVERSION), file.getLong(stat + EPHEMERAL_OWNER), getDataLength(index),
+                numChildren, file.getLong(stat + PZXID));
+    }
+
+    /**
+     * Creates the children of a node, sorted by name.
+     * @param parent the parent node
+     * @return the children
+     */
+    ZVSnapshotNode[] createChildren(ZVSnapshotNode parent) {
+        int index = parent.getIndex();
+        ZVSnapshotNode[] children = new ZVSnapshotNode[countChildren(index)];
+        int k = 0;
+        for (int child = index + 1; child < ends[index]; child = ends[child]) {
+            String path = getPath(child);
+            children[k++] = new ZVSnapshotNode(this, parent, child, path.substring(path.lastIndexOf('/') + 1));
+        }
+        Arrays.sort(children, (a, b) -> a.getName().compareTo(b.getName()));
+        return children;
+    }
+
+    int countChildren(int index) {
+        int children = 0;
+        for (int child = index + 1; child < ends[index]; child = ends[child]) {
+            children++;
+        }
+        return children;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public void addModelListener(ZVModelListener listener) {
+        listenerList.add(listener);
+    }
+
+    @Override
+    public void removeModelListener(ZVModelListener listener) {
+        listenerList.remove(listener);
+    }
+
+    @Override
+    public void addNode(String path, byte[] data) {
+        throw new UnsupportedOperationException("Snapshot " + source + " is read-only");
+    }
+
+    @Override
+    public void updateData(String path, byte[] data) {
+        throw new UnsupportedOperationException("Snapshot " + source + " is read-only");
+    }
+
+    @Override
+    public CompletableFuture<Stat> addNodeAsync(String path, byte[] data) {
+        return readOnly();
+    }
+
+    @Override
+    public CompletableFuture<Stat> updateDataAsync(String path, byte[] data) {
+        return readOnly();
+    }
+
+    /**
+     * Returns a future failed with the read-only error, as the asynchronous
+     * writes report their errors through the future.
+     */
+    private CompletableFuture<Stat> readOnly() {
+        CompletableFuture<Stat> result = new CompletableFuture<>();
+        result.completeExceptionally(new UnsupportedOperationException("Snapshot " + source + " is read-only"));
+        return result;
+    }
+
+    @Override
+    public ZVDeletion deleteNodes(ZVNode[] nodes, ZVDeletion.Listener listener) {
+        throw new UnsupportedOperationException("Snapshot " + source + " is read-only");
+    }
+
+    @Override
+    public ZVBulkEdit editNodes(ZVNode[] nodes, ZVDataChange change, ZVBulkEdit.Listener listener) {
+        throw new UnsupportedOperationException("Snapshot " + source + " is read-only");
+    }
+
+    @Override
+    public ZVBulkEdit editSubtrees(ZVNode[] roots, Pattern pattern, ZVDataChange change,
+            ZVBulkEdit.Listener listener) {
+        throw new UnsupportedOperationException("Snapshot " + source + " is read-only");
+    }
+
+    @Override
+    public ZVTransfer exportSubtree(ZVNode node, File target, ZVTransfer.Listener listener) {
+        log.info("Export of {} requested to {}", node.getPath(), target);
+        SnapshotExporter exporter = new SnapshotExporter((ZVSnapshotNode) node, target, listener);
+        exporter.start("zooviewer-export");
+        return exporter;
+    }
+
+    @Override
+    public ZVTransfer importSubtree(File source, ZVNode parent, ZVTransfer.Listener listener) {
+        throw new UnsupportedOperationException("Snapshot " + this.source + " is read-only");
+    }
+
+    @Override
+    public ZVNode getNode(String path) {
+        if (path == null || !path.startsWith("/")) {
+            return null;
+        }
+        ZVSnapshotNode node = root;
+        int start = 1;
+        while (node != null && start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = node.getChild(path, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    @Override
+    public ZVNode getParent(ZVNode node) {
+        return ((ZVSnapshotNode) node).getParent();
+    }
+
+    @Override
+    public List<ZVNode> getChildren(ZVNode parent) {
+        return Collections.unmodifiableList(Arrays.asList((ZVNode[]) ((ZVSnapshotNode) parent).getChildren()));
+    }
+
+    @Override
+    public int getChildCount(ZVNode parent) {
+        return ((ZVSnapshotNode) parent).getChildren().length;
+    }
+
+    @Override
+    public ZVNode getChild(ZVNode parent, int index) {
+        return ((ZVSnapshotNode) parent).getChildren()[index];
+    }
+
+    @Override
+    public int getIndexOfChild(ZVNode parent, ZVNode child) {
+        ZVSnapshotNode[] children = ((ZVSnapshotNode) parent).getChildren();
+        int index = Arrays.binarySearch(children, child, (a, b) -> a.getName().compareTo(b.getName()));
+        return index >= 0 && children[index] == child ? index : -1;
+    }
+
+    @Override
+    public boolean isChildrenLoaded(ZVNode parent) {
+        return true;
+    }
+
+    @Override
+    public void loadChildren(ZVNode parent) {
+        // Always available
+    }
+
+    @Override
+    public void loadData(ZVNode node) {
+        // Always available
+    }
+
+    @Override
+    public String getFullPath(String parentPath, String childName) {
+        return ("/".equals(parentPath) ? "/" : (parentPath + "/")) + childName;
+    }
+
+    @Override
+    public void close() {
+        listenerList.clear();
+    }
+
+    /**
+     * Writes a subtree of the snapshot to a dump file, in file order. The
+     * <code>/zookeeper</code> node is skipped with the root, as by the
+     * exports of a server.
+     */
+    private final class SnapshotExporter extends ZVTransferTask {
+        private final ZVSnapshotNode node;
+        private final File target;
+
+        SnapshotExporter(ZVSnapshotNode node, File target, Listener listener) {
+            super(listener);
+            this.node = node;
+            this.target = target;
+        }
+
+        @Override
+        protected void transfer() throws IOException {
+            int first = node.getIndex();
+            total = ends[first] - first;
+            String rootPath = node.getPath();
+            int prefix = "/".equals(rootPath) ? 1 : rootPath.length() + 1;
+            boolean complete = false;
+            try (ZVDump.Writer writer = new ZVDump.Writer(target, rootPath, total)) {
+                for (int i = first; i < ends[first] && !isCancelled(); i++) {
+                    String path = getPath(i);
+                    if (i != first && "/".equals(rootPath) && path.equals("/" + ZVDump.SYSTEM_NODE)) {
+                        total -= ends[i] - i;
+                        i = ends[i] - 1;
+                        continue;
+                    }
+                    ByteBuffer data = getData(i);
+                    byte[] bytes = null;
+                    if (data != null) {
+                        bytes = new byte[data.remaining()];
+                        data.get(bytes);
+                    }
+                    writer.write(i == first ? "" : path.substring(prefix), bytes, getStat(i, countChildren(i)));
+                    transferred(1);
+                    fireProgress();
+                }
+                if (!isCancelled()) {
+                    // A snapshot does not change
+                    writer.finish(false);
+                    zxid = writer.getZxid();
+                    complete = true;
+                }
+            } finally {
+                if (!complete && !target.delete()) {
+                    log.warn("Cannot delete the incomplete dump {}", target);
+                }
+            }
+        }
+
+    }
+}
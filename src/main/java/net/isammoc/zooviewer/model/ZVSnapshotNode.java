@@ -0,0 +1,241 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.node.ZVNode;
+import org.apache.zookeeper.data.Stat;
+
+import java.beans.PropertyChangeListener;
+import java.nio.ByteBuffer;
+
+/**
+ * Node of a {@link ZVSnapshotModel}.
+ * <p>
+ * Only the position of the node in the snapshot index is kept: the data and
+ * the stat are read from the mapped file. The node never changes, so the
+ * property listeners are never called, and not even kept.
+ * </p>
+ */
+final class ZVSnapshotNode implements ZVNode {
+
+    private static final ZVSnapshotNode[] NO_CHILDREN = new ZVSnapshotNode[0];
+
+    private final ZVSnapshotModel model;
+    private final ZVSnapshotNode parent;
+    private final int index;
+    private final String name;
+    /** Created on first access. */
+    private volatile ZVSnapshotNode[] children;
+
+    ZVSnapshotNode(ZVSnapshotModel model, ZVSnapshotNode parent, int index, String name) {
+        this.model = model;
+        this.parent = parent;
+        this.index = index;
+        this.name = name;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    ZVSnapshotNode getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the children, sorted by name.
+     * @return the children array, which must not be modified
+     */
+    ZVSnapshotNode[] getChildren() {
+        ZVSnapshotNode[] array = children;
+        if (array == null) {
+            synchronized (this) {
+                array = children;
+                if (array == null) {
+                    array = model.createChildren(this);
+                    children = array.length == 0 ? NO_CHILDREN : array;
+                }
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Returns the child named by a segment of a path, without extracting
+     * the segment.
+     * @param path the path
+     * @param start the start of the name in the path
+     * @param end the end of the name in the path, exclusive
+     * @return the child, or <code>null</code> if none
+     */
+    ZVSnapshotNode getChild(String path, int start, int end) {
+        ZVSnapshotNode[] array = getChildren();
+        int low = 0;
+        int high = array.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(array[mid].name, path, start, end);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return array[mid];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares a name with a segment of a path, as {@link String#compareTo}.
+     */
+    private static int compareName(String name, String path, int start, int end) {
+        int length = Math.min(name.length(), end - start);
+        for (int i = 0; i < length; i++) {
+            int cmp = name.charAt(i) - path.charAt(start + i);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return name.length() - (end - start);
+    }
+
+    @Override
+    public String getPath() {
+        return model.getPath(index);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public byte[] getData() {
+        ByteBuffer buffer = getDataBuffer();
+        if (buffer == null) {
+            return null;
+        }
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.get(copy);
+        return copy;
+    }
+
+    @Override
+    public ByteBuffer getDataBuffer() {
+        return model.getData(index);
+    }
+
+    @Override
+    public boolean isDataLoaded() {
+        return true;
+    }
+
+    @Override
+    public Stat getStat() {
+        return model.getStat(index, getNumChildren());
+    }
+
+    @Override
+    public boolean hasStat() {
+        return true;
+    }
+
+    @Override
+    public long getCzxid() {
+        return model.getStatLong(index, ZVSnapshotModel.CZXID);
+    }
+
+    @Override
+    public long getMzxid() {
+        return model.getStatLong(index, ZVSnapshotModel.MZXID);
+    }
+
+    @Override
+    public long getPzxid() {
+        return model.getStatLong(index, ZVSnapshotModel.PZXID);
+    }
+
+    @Override
+    public long getCtime() {
+        return model.getStatLong(index, ZVSnapshotModel.CTIME);
+    }
+
+    @Override
+    public long getMtime() {
+        return model.getStatLong(index, ZVSnapshotModel.MTIME);
+    }
+
+    @Override
+    public int getVersion() {
+        return model.getStatInt(index, ZVSnapshotModel.VERSION);
+    }
+
+    @Override
+    public int getCversion() {
+        return model.getStatInt(index, ZVSnapshotModel.CVERSION);
+    }
+
+    @Override
+    public int getAversion() {
+        return model.getStatInt(index, ZVSnapshotModel.AVERSION);
+    }
+
+    @Override
+    public long getEphemeralOwner() {
+        return model.getStatLong(index, ZVSnapshotModel.EPHEMERAL_OWNER);
+    }
+
+    @Override
+    public int getDataLength() {
+        return model.getDataLength(index);
+    }
+
+    @Override
+    public int getNumChildren() {
+        ZVSnapshotNode[] array = children;
+        return array != null ? array.length : model.countChildren(index);
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        // Never changes
+    }
+
+    @Override
+    public void addPropertyChangeListener(String propertyName, PropertyChangeListener listener) {
+        // Never changes
+    }
+
+    @Override
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        // Never changes
+    }
+
+    @Override
+    public void removePropertyChangeListener(String propertyName, PropertyChangeListener listener) {
+        // Never changes
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ZVSnapshotNode[path='%s', length='%d']", getPath(), getDataLength());
+    }
+}
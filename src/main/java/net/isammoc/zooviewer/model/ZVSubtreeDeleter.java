@@ -0,0 +1,302 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.AsyncCallback.ChildrenCallback;
+import org.apache.zookeeper.AsyncCallback.MultiCallback;
+import org.apache.zookeeper.AsyncCallback.VoidCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.KeeperException.Code;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous deletion of subtrees.
+ * <p>
+ * The subtrees are listed with pipelined <code>getChildren</code> calls (at
+ * most {@link ZVModelConfig#getCrawlWindow()} outstanding). The listed nodes
+ * are then deleted in reverse discovery order, so that children go before
+ * their parent, in <code>multi</code> batches of
+ * {@link ZVModelConfig#getDeleteBatchSize()} nodes with at most
+ * {@link ZVModelConfig#getDeleteWindow()} batches in flight. ZooKeeper
+ * applies the requests of a session in order, so a batch never runs before
+ * the batches holding the children of its nodes.
+ * </p>
+ * <p>
+ * A batch is atomic: if any of its nodes cannot be deleted (changed
+ * concurrently), its nodes are deleted again one by one, and the nodes
+ * already gone are ignored.
+ * </p>
+ */
+class ZVSubtreeDeleter implements ZVDeletion {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final ZooKeeper zk;
+    private final Set<String> roots;
+    private final Listener listener;
+    private final Consumer<String> rootDeleted;
+    private final int listWindow;
+    private final int batchSize;
+    private final int batchWindow;
+
+    /** Nodes in discovery order, parents first, guarded by this. */
+    private final List<String> paths = new ArrayList<>();
+    private final Deque<String> toList = new ArrayDeque<>();
+    private final Deque<String> retries = new ArrayDeque<>();
+    /** Position of the next node to delete, going backwards. */
+    private int next;
+    private int inFlight;
+    private boolean listing = true;
+    private boolean done;
+
+    private volatile int total;
+    private volatile int deleted;
+    private volatile int failed;
+    private volatile boolean cancelled;
+    private volatile Exception error;
+
+    private final ChildrenCallback listCallback = this::processChildren;
+    private final MultiCallback multiCallback = this::processMulti;
+    private final VoidCallback deleteCallback = this::processDelete;
+
+    /**
+     * Creates a deletion.
+     * @param zk the ZooKeeper client
+     * @param roots the roots of the subtrees, none under another
+     * @param config the settings
+     * @param listener notified of the progress, may be <code>null</code>
+     * @param rootDeleted called with each root once deleted
+     */
+    ZVSubtreeDeleter(ZooKeeper zk, List<String> roots, ZVModelConfig config, Listener listener,
+            Consumer<String> rootDeleted) {
+        this.zk = zk;
+        this.roots = new HashSet<>(roots);
+        this.listener = listener;
+        this.rootDeleted = rootDeleted;
+        this.listWindow = Math.max(1, config.getCrawlWindow());
+        this.batchSize = Math.max(1, config.getDeleteBatchSize());
+        this.batchWindow = Math.max(1, config.getDeleteWindow());
+        this.paths.addAll(roots);
+        this.toList.addAll(roots);
+        this.total = roots.size();
+    }
+
+    /**
+     * Starts listing the subtrees.
+     */
+    void start() {
+        drain();
+    }
+
+    @Override
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public synchronized boolean isListing() {
+        return listing;
+    }
+
+    @Override
+    public int getDeleted() {
+        return deleted;
+    }
+
+    @Override
+    public int getFailed() {
+        return failed;
+    }
+
+    @Override
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        drain();
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private void processChildren(int rc, String path, Object ctx, List<String> names) {
+        try {
+            synchronized (this) {
+                if (rc == Code.OK.intValue()) {
+                    String prefix = "/".equals(path) ? "/" : path + "/";
+                    for (String name : names) {
+                        paths.add(prefix + name);
+                        toList.add(prefix + name);
+                    }
+                    total = paths.size();
+                } else if (rc != Code.NONODE.intValue()) {
+                    log.error("Cannot list children of {} : {}", path, Code.get(rc));
+                    error = KeeperException.create(Code.get(rc), path);
+                }
+                // Last listing outstanding (this one)
+                if (toList.isEmpty() && inFlight == 1 && error == null) {
+                    listing = false;
+                    next = paths.size() - 1;
+                    log.info("Deleting {} nodes", paths.size());
+                }
+            }
+            fireProgress();
+        } catch (RuntimeException e) {
+            log.error("Error handling children of " + path, e);
+        } finally {
+            completed();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void processMulti(int rc, String path, Object ctx, List<OpResult> results) {
+        List<String> batch = (List<String>) ctx;
+        try {
+            if (rc == Code.OK.intValue()) {
+                synchronized (this) {
+                    deleted += batch.size();
+                }
+                for (String deletedPath : batch) {
+                    if (roots.contains(deletedPath)) {
+                        rootDeleted.accept(deletedPath);
+                    }
+                }
+            } else {
+                log.debug("Batch of {} nodes failed ({}), deleting them one by one", batch.size(), Code.get(rc));
+                synchronized (this) {
+                    retries.addAll(batch);
+                }
+            }
+            fireProgress();
+        } catch (RuntimeException e) {
+            log.error("Error handling deletion batch", e);
+        } finally {
+            completed();
+        }
+    }
+
+    private void processDelete(int rc, String path, Object ctx) {
+        try {
+            if (rc == Code.OK.intValue() || rc == Code.NONODE.intValue()) {
+                synchronized (this) {
+                    deleted++;
+                }
+                if (roots.contains(path)) {
+                    rootDeleted.accept(path);
+                }
+            } else {
+                log.warn("Cannot delete {} : {}", path, Code.get(rc));
+                synchronized (this) {
+                    failed++;
+                }
+            }
+            fireProgress();
+        } catch (RuntimeException e) {
+            log.error("Error handling deletion of " + path, e);
+        } finally {
+            completed();
+        }
+    }
+
+    private void fireProgress() {
+        if (listener != null) {
+            listener.progress(this);
+        }
+    }
+
+    private void completed() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * Sends the next requests while the window is not full, and reports the
+     * end of the deletion.
+     */
+    private void drain() {
+        while (true) {
+            Runnable request;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                if (cancelled || error != null || (!listing && next < 0 && retries.isEmpty())) {
+                    if (inFlight > 0) {
+                        return;
+                    }
+                    done = true;
+                    listing = false;
+                    request = null;
+                } else if (listing) {
+                    if (inFlight >= listWindow || toList.isEmpty()) {
+                        return;
+                    }
+                    String path = toList.poll();
+                    request = () -> zk.getChildren(path, false, listCallback, null);
+                } else if (inFlight >= batchWindow) {
+                    return;
+                } else if (!retries.isEmpty()) {
+                    String path = retries.poll();
+                    request = () -> zk.delete(path, -1, deleteCallback, null);
+                } else {
+                    List<String> batch = new ArrayList<>(Math.min(batchSize, next + 1));
+                    List<Op> ops = new ArrayList<>(batch.size());
+                    while (next >= 0 && batch.size() < batchSize) {
+                        String path = paths.get(next--);
+                        batch.add(path);
+                        ops.add(Op.delete(path, -1));
+                    }
+                    request = () -> zk.multi(ops, multiCallback, batch);
+                }
+                if (request != null) {
+                    inFlight++;
+                }
+            }
+            if (request == null) {
+                log.info("Deletion {}: {} nodes deleted, {} failed", cancelled ? "cancelled" : "done", deleted,
+                        failed);
+                if (listener != null) {
+                    listener.done(this);
+                }
+                return;
+            }
+            request.run();
+        }
+    }
+}
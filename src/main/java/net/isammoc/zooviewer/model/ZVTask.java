@@ -0,0 +1,41 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+/**
+ * A background operation of the model, which can be cancelled.
+ * @see ZVTransfer
+ * @see ZVDeletion
+ * @see ZVBulkEdit
+ */
+public interface ZVTask {
+
+    /**
+     * Stops the operation. What was already done stays done.
+     */
+    void cancel();
+
+    /**
+     * Checks if the operation has been cancelled.
+     * @return <code>true</code> if cancelled
+     */
+    boolean isCancelled();
+
+    /**
+     * Checks if the operation is over.
+     * @return <code>true</code> once complete, cancelled or failed
+     */
+    boolean isDone();
+}
@@ -0,0 +1,99 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+/**
+ * A running export or import of a subtree.
+ * <p>
+ * The counters can be read from any thread.
+ * </p>
+ * @see ZVModel#exportSubtree(net.isammoc.zooviewer.node.ZVNode, java.io.File, Listener)
+ * @see ZVModel#importSubtree(java.io.File, net.isammoc.zooviewer.node.ZVNode, Listener)
+ */
+public interface ZVTransfer extends ZVTask {
+
+    /**
+     * Receives the progress of a transfer, on the transfer thread.
+     */
+    interface Listener {
+        /**
+         * Called when more nodes have been transferred.
+         * @param transfer the transfer
+         */
+        void progress(ZVTransfer transfer);
+
+        /**
+         * Called once, when the transfer is complete, cancelled or failed.
+         * @param transfer the transfer
+         */
+        void done(ZVTransfer transfer);
+    }
+
+    /**
+     * Returns the expected number of nodes.
+     * @return the number of nodes, or <code>-1</code> if unknown
+     */
+    long getTotal();
+
+    /**
+     * Returns the number of nodes transferred so far.
+     * @return the number of nodes
+     */
+    long getNodes();
+
+    /**
+     * Returns the number of nodes which could not be imported.
+     * @return the number of failures
+     */
+    long getFailed();
+
+    /**
+     * Returns the highest zxid among the dumped nodes: the state the dump is
+     * consistent with, unless {@link #isFuzzy() fuzzy}.
+     * @return the zxid, or <code>-1</code> until known
+     */
+    long getZxid();
+
+    /**
+     * Checks if the dump is fuzzy: the subtree changed during the export,
+     * so that the dump may mix states older and newer than
+     * {@link #getZxid()}.
+     * @return <code>true</code> for a fuzzy dump, once done
+     */
+    boolean isFuzzy();
+
+    /**
+     * Returns the error which stopped the transfer.
+     * @return the error, or <code>null</code>
+     */
+    Exception getError();
+
+    /**
+     * Stops the transfer. A cancelled export leaves no file.
+     */
+    void cancel();
+
+    /**
+     * Checks if the transfer has been cancelled.
+     * @return <code>true</code> if cancelled
+     */
+    boolean isCancelled();
+
+    /**
+     * Checks if the transfer is over.
+     * @return <code>true</code> once complete, cancelled or failed
+     */
+    boolean isDone();
+}
@@ -0,0 +1,148 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Base of the transfers, each running on its own thread.
+ */
+abstract class ZVTransferTask implements ZVTransfer, Runnable {
+
+    protected final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final Listener listener;
+
+    protected volatile long total = -1;
+    protected volatile long nodes;
+    protected volatile long failed;
+    protected volatile long zxid = -1;
+    protected volatile boolean fuzzy;
+    private volatile Exception error;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+
+    ZVTransferTask(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Starts the transfer on a new thread.
+     * @param name the thread name
+     */
+    void start(String name) {
+        new Thread(this, name).start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            transfer();
+        } catch (IOException | KeeperException e) {
+            log.error("Transfer failed", e);
+            error = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = e;
+        } catch (RuntimeException e) {
+            log.error("Transfer failed", e);
+            error = e;
+        } finally {
+            done = true;
+            if (listener != null) {
+                listener.done(this);
+            }
+        }
+    }
+
+    /**
+     * Runs the transfer.
+     * @throws IOException if the file cannot be read or written
+     * @throws KeeperException if ZooKeeper fails
+     * @throws InterruptedException if interrupted
+     */
+    protected abstract void transfer() throws IOException, KeeperException, InterruptedException;
+
+    /**
+     * Counts transferred nodes.
+     * @param count the number of nodes
+     */
+    protected synchronized void transferred(long count) {
+        nodes += count;
+    }
+
+    /**
+     * Counts nodes which could not be transferred.
+     * @param count the number of nodes
+     */
+    protected synchronized void failed(long count) {
+        failed += count;
+    }
+
+    protected void fireProgress() {
+        if (listener != null) {
+            listener.progress(this);
+        }
+    }
+
+    @Override
+    public long getTotal() {
+        return total;
+    }
+
+    @Override
+    public long getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public long getFailed() {
+        return failed;
+    }
+
+    @Override
+    public long getZxid() {
+        return zxid;
+    }
+
+    @Override
+    public boolean isFuzzy() {
+        return fuzzy;
+    }
+
+    @Override
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.node.ZVNodeImpl;
+import net.isammoc.zooviewer.node.ZVPayloadStore;
+import org.apache.zookeeper.data.Stat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local copy of the tree of a connect string, for a warm start.
+ * <p>
+ * The file is a GZIP stream of the nodes, depth first: the name, the full
+ * stat, the data (length <code>-2</code> when not fetched, <code>-1</code>
+ * for no data), whether the children were listed, the number of children,
+ * then the children. It is written to a temporary file then renamed, so a
+ * crash never leaves a partial cache. As the data may be secret behind the
+ * ACLs of the server, the file is only readable by its owner.
+ * </p>
+ * <p>
+ * The tree is walked with an explicit stack rather than by recursion, so
+ * that a deep chain of nodes cannot overflow the thread stack.
+ * </p>
+ */
+final class ZVTreeCache {
+
+    private static final int MAGIC = 0x5A564331;
+    private static final int DATA_UNKNOWN = -2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String connectString;
+    private final File file;
+
+    /**
+     * Creates the cache of a connect string.
+     * @param dir the cache directory
+     * @param connectString the connect string
+     */
+    ZVTreeCache(File dir, String connectString) {
+        this.connectString = connectString;
+        this.file = new File(dir, encode(connectString) + ".cache");
+    }
+
+    private static String encode(String connectString) {
+        try {
+            return URLEncoder.encode(connectString, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cache file.
+     * @return the file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Reads the cached tree.
+     * @param store the store of the payloads of the tree
+     * @param withData <code>false</code> to read the data as not fetched
+     * @return the cached root, or <code>null</code> if there is no cache
+     * @throws IOException if the cache cannot be read
+     */
+    ZVNodeImpl read(ZVPayloadStore store, boolean withData) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a tree cache");
+            }
+            if (!connectString.equals(in.readUTF())) {
+                throw new IOException(file + " is the cache of another connect string");
+            }
+            ZVNodeImpl root = readNode(in, store, null, null, withData);
+            Deque<ReadFrame> stack = new ArrayDeque<>();
+            stack.push(new ReadFrame(root, in));
+            while (!stack.isEmpty()) {
+                ReadFrame frame = stack.peek();
+                if (frame.children.size() < frame.count) {
+                    ZVNodeImpl child = readNode(in, store, frame.node, in.readUTF(), withData);
+                    frame.children.add(child);
+                    stack.push(new ReadFrame(child, in));
+                } else {
+                    stack.pop();
+                    frame.node.addChildren(frame.children);
+                    if (frame.childrenLoaded) {
+                        frame.node.startLoadingChildren();
+                        frame.node.endLoadingChildren(true);
+                    }
+                }
+            }
+            return root;
+        }
+    }
+
+    /**
+     * Node read, whose children are being read.
+     */
+    private static final class ReadFrame {
+        private final ZVNodeImpl node;
+        private final boolean childrenLoaded;
+        private final int count;
+        private final List<ZVNodeImpl> children;
+
+        ReadFrame(ZVNodeImpl node, DataInputStream in) throws IOException {
+            this.node = node;
+            this.childrenLoaded = in.readBoolean();
+            this.count = in.readInt();
+            this.children = new ArrayList<>(count);
+        }
+    }
+
+    /**
+     * Reads a node, up to its children.
+     */
+    private static ZVNodeImpl readNode(DataInputStream in, ZVPayloadStore store, ZVNodeImpl parent, String name,
+            boolean withData) throws IOException {
+        Stat stat = null;
+        if (in.readBoolean()) {
+            stat = new Stat(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readLong(), in.readInt(), in.readInt(), in.readLong());
+        }
+        int length = in.readInt();
+        byte[] data = null;
+        if (length >= 0) {
+            data = new byte[length];
+            in.readFully(data);
+        }
+        ZVNodeImpl node = parent == null ? new ZVNodeImpl(store, withData ? data : null)
+                : new ZVNodeImpl(parent, name, withData ? data : null);
+        if (length == DATA_UNKNOWN || !withData) {
+            node.releaseData();
+        }
+        node.setStat(stat);
+        return node;
+    }
+
+    /**
+     * Writes a tree.
+     * @param root the root
+     * @param withData <code>false</code> to save the data as not fetched
+     * @throws IOException if the cache cannot be written
+     */
+    void write(ZVNodeImpl root, boolean withData) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        createPrivate(tmp.toPath());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(connectString);
+            Deque<WriteFrame> stack = new ArrayDeque<>();
+            stack.push(new WriteFrame(writeNode(out, root, withData)));
+            while (!stack.isEmpty()) {
+                WriteFrame frame = stack.peek();
+                if (frame.next < frame.children.length) {
+                    ZVNodeImpl child = frame.children[frame.next++];
+                    out.writeUTF(child.getName());
+                    stack.push(new WriteFrame(writeNode(out, child, withData)));
+                } else {
+                    stack.pop();
+                }
+            }
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Creates an empty file only its owner can read and write.
+     * @param path the file, replaced if it exists
+     * @throws IOException if the file cannot be created
+     */
+    private static void createPrivate(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+            Files.createFile(path);
+            File file = path.toFile();
+            if (!file.setReadable(false, false) || !file.setReadable(true, true) || !file.setWritable(false, false)
+                    || !file.setWritable(true, true)) {
+                throw new IOException("Cannot restrict the permissions of " + path);
+            }
+        }
+    }
+
+    /**
+     * Children of a node written, being written in turn.
+     */
+    private static final class WriteFrame {
+        private final ZVNodeImpl[] children;
+        private int next;
+
+        WriteFrame(ZVNodeImpl[] children) {
+            this.children = children;
+        }
+    }
+
+    /**
+     * Writes a node, up to its children.
+     * @return the children, to write next
+     */
+    private static ZVNodeImpl[] writeNode(DataOutputStream out, ZVNodeImpl node, boolean withData)
+            throws IOException {
+        Stat stat = node.getStat();
+        out.writeBoolean(stat != null);
+        if (stat != null) {
+            out.writeLong(stat.getCzxid());
+            out.writeLong(stat.getMzxid());
+            out.writeLong(stat.getCtime());
+            out.writeLong(stat.getMtime());
+            out.writeInt(stat.getVersion());
+            out.writeInt(stat.getCversion());
+            out.writeInt(stat.getAversion());
+            out.writeLong(stat.getEphemeralOwner());
+            out.writeInt(stat.getDataLength());
+            out.writeInt(stat.getNumChildren());
+            out.writeLong(stat.getPzxid());
+        }
+        ByteBuffer data = withData ? node.getDataBuffer() : null;
+        if (!withData || !node.isDataLoaded()) {
+            out.writeInt(DATA_UNKNOWN);
+        } else if (data == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        ZVNodeImpl[] children = node.getChildren();
+        out.writeBoolean(node.isChildrenLoaded());
+        out.writeInt(children.length);
+        return children;
+    }
+}
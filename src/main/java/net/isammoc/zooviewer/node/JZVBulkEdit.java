@@ -0,0 +1,166 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.node;
+
+import net.isammoc.zooviewer.model.ZVDataChange;
+
+import javax.swing.*;
+import java.awt.*;
+import java.text.MessageFormat;
+import java.util.ResourceBundle;
+import java.util.regex.Pattern;
+
+/**
+ * Form of a bulk edit: the nodes to change, either the selected ones or
+ * those of their subtrees matching a pattern, and the change to apply.
+ *
+ * @see net.isammoc.zooviewer.model.ZVBulkEdit
+ */
+public class JZVBulkEdit extends JPanel {
+
+    /** */
+    private static final long serialVersionUID = 1L;
+
+    private static final ResourceBundle bundle = ResourceBundle.getBundle(JZVBulkEdit.class.getCanonicalName());
+
+    private final int selectedCount;
+
+    private final JRadioButton jrbSelected = new JRadioButton();
+    private final JRadioButton jrbSubtrees = new JRadioButton(bundle.getString("rad.subtrees"));
+    private final JTextField jtfPattern = new JTextField(30);
+
+    private final JRadioButton jrbSet = new JRadioButton(bundle.getString("rad.set"));
+    private final JTextArea taValue = new JTextArea(4, 30);
+    private final JRadioButton jrbReplace = new JRadioButton(bundle.getString("rad.replace"));
+    private final JTextField jtfFind = new JTextField(30);
+    private final JTextField jtfReplacement = new JTextField(30);
+    private final JCheckBox jcbRegex = new JCheckBox(bundle.getString("chk.regex"));
+    private final JRadioButton jrbJson = new JRadioButton(bundle.getString("rad.json"));
+    private final JTextField jtfPointer = new JTextField(30);
+    private final JTextField jtfJsonValue = new JTextField(30);
+
+    /**
+     * Creates the form.
+     *
+     * @param selected
+     *            the number of selected nodes
+     */
+    public JZVBulkEdit(int selected) {
+        super(new GridBagLayout());
+        this.selectedCount = selected;
+
+        this.jrbSelected.setText(MessageFormat.format(bundle.getString("rad.selected"), selected));
+        this.jrbSelected.setSelected(true);
+        ButtonGroup scope = new ButtonGroup();
+        scope.add(this.jrbSelected);
+        scope.add(this.jrbSubtrees);
+        this.jtfPattern.setToolTipText(bundle.getString("txt.pattern.tooltip"));
+
+        JPanel nodesPanel = new JPanel(new GridBagLayout());
+        nodesPanel.setBorder(BorderFactory.createTitledBorder(bundle.getString("pnl.nodes")));
+        int row = 0;
+        nodesPanel.add(this.jrbSelected, cell(0, row++, 2));
+        nodesPanel.add(this.jrbSubtrees, cell(0, row, 1));
+        nodesPanel.add(this.jtfPattern, field(1, row++));
+
+        this.jrbSet.setSelected(true);
+        ButtonGroup changes = new ButtonGroup();
+        changes.add(this.jrbSet);
+        changes.add(this.jrbReplace);
+        changes.add(this.jrbJson);
+        this.jtfPointer.setToolTipText(bundle.getString("txt.pointer.tooltip"));
+        this.jtfJsonValue.setToolTipText(bundle.getString("txt.json.tooltip"));
+
+        JPanel changePanel = new JPanel(new GridBagLayout());
+        changePanel.setBorder(BorderFactory.createTitledBorder(bundle.getString("pnl.change")));
+        row = 0;
+        changePanel.add(this.jrbSet, cell(0, row, 1));
+        changePanel.add(new JScrollPane(this.taValue), field(1, row++));
+        changePanel.add(this.jrbReplace, cell(0, row, 1));
+        changePanel.add(this.jtfFind, field(1, row++));
+        changePanel.add(new JLabel(bundle.getString("lbl.replacement")), cell(0, row, 1));
+        changePanel.add(this.jtfReplacement, field(1, row++));
+        changePanel.add(this.jcbRegex, cell(1, row++, 1));
+        changePanel.add(this.jrbJson, cell(0, row, 1));
+        changePanel.add(this.jtfPointer, field(1, row++));
+        changePanel.add(new JLabel(bundle.getString("lbl.json.value")), cell(0, row, 1));
+        changePanel.add(this.jtfJsonValue, field(1, row++));
+
+        this.add(nodesPanel, field(0, 0));
+        this.add(changePanel, field(0, 1));
+    }
+
+    private static GridBagConstraints cell(int x, int y, int width) {
+        return new GridBagConstraints(x, y, width, 1, 0, 0, GridBagConstraints.NORTHWEST,
+                GridBagConstraints.NONE, new Insets(2, 2, 2, 2), 0, 0);
+    }
+
+    private static GridBagConstraints field(int x, int y) {
+        return new GridBagConstraints(x, y, 1, 1, 1, 0, GridBagConstraints.WEST,
+                GridBagConstraints.HORIZONTAL, new Insets(2, 2, 2, 2), 0, 0);
+    }
+
+    /**
+     * Returns the number of selected nodes the form was created for.
+     *
+     * @return the number of nodes
+     */
+    public int getSelectedCount() {
+        return this.selectedCount;
+    }
+
+    /**
+     * Checks if the change applies to the subtrees of the selected nodes.
+     *
+     * @return <code>true</code> for the subtrees, <code>false</code> for the
+     *         selected nodes only
+     */
+    public boolean isSubtrees() {
+        return this.jrbSubtrees.isSelected();
+    }
+
+    /**
+     * Returns the pattern the paths of the changed nodes must contain.
+     *
+     * @return the pattern, or <code>null</code> for all the nodes
+     * @throws java.util.regex.PatternSyntaxException
+     *             if the pattern is invalid
+     */
+    public Pattern getPattern() {
+        String pattern = this.jtfPattern.getText();
+        return pattern.isEmpty() ? null : Pattern.compile(pattern);
+    }
+
+    /**
+     * Returns the change entered.
+     *
+     * @return the change
+     * @throws IllegalArgumentException
+     *             if the change is invalid
+     */
+    public ZVDataChange getChange() {
+        if (this.jrbReplace.isSelected()) {
+            if (this.jtfFind.getText().isEmpty()) {
+                throw new IllegalArgumentException(bundle.getString("err.find"));
+            }
+            return ZVDataChange.replace(this.jtfFind.getText(), this.jtfReplacement.getText(),
+                    this.jcbRegex.isSelected());
+        }
+        if (this.jrbJson.isSelected()) {
+            return ZVDataChange.setJsonField(this.jtfPointer.getText(), this.jtfJsonValue.getText());
+        }
+        return ZVDataChange.setValue(this.taValue.getText().getBytes());
+    }
+}
@@ -17,8 +17,13 @@ package net.isammoc.zooviewer.node;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import net.isammoc.zooviewer.model.ZVBulkEdit;
+import net.isammoc.zooviewer.model.ZVDataChange;
+import net.isammoc.zooviewer.model.ZVDeletion;
 import net.isammoc.zooviewer.model.ZVModel;
 import net.isammoc.zooviewer.model.ZVModelListener;
+import net.isammoc.zooviewer.model.ZVTask;
+import net.isammoc.zooviewer.model.ZVTransfer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,7 +39,13 @@ import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.beans.PropertyChangeListener;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 /**
  * Editor panel for a node.
@@ -52,6 +63,9 @@ public class JZVNode extends JPanel {
     private static final String ADD_CHILD_NODE_KEY = "btn.add.child";
     private static final String UPDATE_NODE_KEY = "btn.update";
     private static final String DELETE_NODE_KEY = "btn.delete";
+    private static final String EXPORT_NODE_KEY = "btn.export";
+    private static final String IMPORT_NODE_KEY = "btn.import";
+    private static final String BULK_EDIT_KEY = "btn.bulkEdit";
 
     /** */
     private static final long serialVersionUID = 1L;
@@ -60,12 +74,15 @@ public class JZVNode extends JPanel {
 
     private final TitledBorder titleBorder = BorderFactory.createTitledBorder("-");
 
-    private ZVNode[] nodes;
+    private volatile ZVNode[] nodes;
     private final ZVModel model;
 
     private final JButton jbNewChild = new JButton();
     private final JButton jbUpdate = new JButton();
     private final JButton jbDelete = new JButton();
+    private final JButton jbExport = new JButton();
+    private final JButton jbImport = new JButton();
+    private final JButton jbBulkEdit = new JButton();
 
     private final JTextArea taChildData = new JTextArea();
     private final JTextField jtfChildName = new JTextField();
@@ -75,6 +92,12 @@ public class JZVNode extends JPanel {
     private Action addChildAction = null;
     private Action updateAction = null;
     private Action deleteAction = null;
+    private Action exportAction = null;
+    private Action importAction = null;
+    private Action bulkEditAction = null;
+
+    private JFileChooser fileChooser = null;
+    private JZVBulkEdit bulkEditForm = null;
 
     private JPanel nodePanel = null;
     private JPanel deletePanel = null;
@@ -82,7 +105,9 @@ public class JZVNode extends JPanel {
     private JPanel dataPanel = null;
     private JPanel newChildPanel = null;
 
-    private final PropertyChangeListener propertyListener = evt -> updateView();
+    private final PropertyChangeListener propertyListener = evt -> refreshView();
+
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
 
     /**
      * Constructs a new editor panel.
@@ -108,6 +133,9 @@ public class JZVNode extends JPanel {
 
         // Actions
         this.jbDelete.setAction(getDeleteAction());
+        this.jbExport.setAction(getExportAction());
+        this.jbImport.setAction(getImportAction());
+        this.jbBulkEdit.setAction(getBulkEditAction());
         this.jbNewChild.setAction(getAddChildAction());
         this.jbUpdate.setAction(getUpdateAction());
 
@@ -117,6 +145,9 @@ public class JZVNode extends JPanel {
         
         Dimension prefSize = this.jbNewChild.getPreferredSize();
         this.jbDelete.setPreferredSize( prefSize );
+        this.jbExport.setPreferredSize( prefSize );
+        this.jbImport.setPreferredSize( prefSize );
+        this.jbBulkEdit.setPreferredSize( prefSize );
         this.jbNewChild.setPreferredSize( prefSize );
         this.jbUpdate.setPreferredSize( prefSize );
         
@@ -164,9 +195,18 @@ public class JZVNode extends JPanel {
         if (deletePanel == null) {
             deletePanel = new JPanel(new GridBagLayout());
             deletePanel.setBorder(this.titleBorder);
-            deletePanel.add(this.jbDelete, new GridBagConstraints(0, 0, 1, 1,
+            deletePanel.add(this.jbExport, new GridBagConstraints(0, 0, 1, 1,
                     1, 1, GridBagConstraints.SOUTHWEST,
                     GridBagConstraints.NONE, new Insets(2, 2, 2, 2), 0, 0));
+            deletePanel.add(this.jbImport, new GridBagConstraints(0, 1, 1, 1,
+                    1, 0, GridBagConstraints.SOUTHWEST,
+                    GridBagConstraints.NONE, new Insets(2, 2, 2, 2), 0, 0));
+            deletePanel.add(this.jbBulkEdit, new GridBagConstraints(0, 2, 1, 1,
+                    1, 0, GridBagConstraints.SOUTHWEST,
+                    GridBagConstraints.NONE, new Insets(2, 2, 2, 2), 0, 0));
+            deletePanel.add(this.jbDelete, new GridBagConstraints(0, 3, 1, 1,
+                    1, 0, GridBagConstraints.SOUTHWEST,
+                    GridBagConstraints.NONE, new Insets(2, 2, 2, 2), 0, 0));
         }
         return deletePanel;
     }
@@ -250,7 +290,9 @@ public class JZVNode extends JPanel {
                     log.info("actionPerformed(): action = "
                         + e.getActionCommand());
                     if (checkAction()) {
-                        model.addNode(nodes[0].getPath() + "/" + jtfChildName.getText(), taChildData.getText().getBytes());
+                        String path = nodes[0].getPath() + "/" + jtfChildName.getText();
+                        model.addNodeAsync(path, taChildData.getText().getBytes())
+                                .whenComplete((stat, error) -> reportFailure(error, "dlg.error.add", path));
                     }
                 }
 
@@ -298,7 +340,9 @@ public class JZVNode extends JPanel {
                 public void actionPerformed(ActionEvent e) {
                     log.info("actionPerformed(): action = {}", e.getActionCommand());
                     if (checkAction()) {
-                        model.updateData(nodes[0].getPath(), taUpdate.getText().getBytes());
+                        String path = nodes[0].getPath();
+                        model.updateDataAsync(path, taUpdate.getText().getBytes())
+                                .whenComplete((stat, error) -> reportFailure(error, "dlg.error.update", path));
                     }
                 }
 
@@ -342,12 +386,7 @@ public class JZVNode extends JPanel {
                     log.info("actionPerformed(): action = "
                         + e.getActionCommand());
                     if (checkAction()) {
-                        // Checks if several nodes will be deleted
-                        if (nodes.length > 1) {
-                            model.deleteNodes(nodes);
-                        } else {
-                            model.deleteNode(nodes[0]);
-                        }
+                        deleteNodes(nodes);
                     }
                 }
 
@@ -372,6 +411,214 @@ public class JZVNode extends JPanel {
         return this.deleteAction;
     }
 
+    /**
+     * Returns the 'Export' action, writing the selected subtree to a dump
+     * file.
+     * 
+     * @return the action
+     */
+    @SuppressWarnings("serial")
+    private Action getExportAction() {
+        if (this.exportAction == null) {
+            String actionCommand = bundle.getString(EXPORT_NODE_KEY);
+            String actionKey = bundle.getString(EXPORT_NODE_KEY + ".action");
+            this.exportAction = new AbstractAction(actionCommand) {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    log.info("actionPerformed(): action = {}", e.getActionCommand());
+                    if (nodes == null || nodes.length != 1) {
+                        return;
+                    }
+                    ZVNode node = nodes[0];
+                    if (getFileChooser().showSaveDialog(JZVNode.this) == JFileChooser.APPROVE_OPTION) {
+                        ProgressMonitor monitor = new ProgressMonitor(JZVNode.this,
+                                MessageFormat.format(bundle.getString("dlg.export.title"), node.getPath()),
+                                MessageFormat.format(bundle.getString("dlg.transfer.progress"), 0), 0, 1);
+                        model.exportSubtree(node, getFileChooser().getSelectedFile(), new TransferMonitor(monitor));
+                    }
+                }
+            };
+            this.exportAction.putValue(Action.ACTION_COMMAND_KEY, actionKey);
+        }
+        return this.exportAction;
+    }
+
+    /**
+     * Returns the 'Import' action, creating the content of a dump file under
+     * the selected node.
+     * 
+     * @return the action
+     */
+    @SuppressWarnings("serial")
+    private Action getImportAction() {
+        if (this.importAction == null) {
+            String actionCommand = bundle.getString(IMPORT_NODE_KEY);
+            String actionKey = bundle.getString(IMPORT_NODE_KEY + ".action");
+            this.importAction = new AbstractAction(actionCommand) {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    log.info("actionPerformed(): action = {}", e.getActionCommand());
+                    if (nodes == null || nodes.length != 1) {
+                        return;
+                    }
+                    ZVNode node = nodes[0];
+                    if (getFileChooser().showOpenDialog(JZVNode.this) == JFileChooser.APPROVE_OPTION) {
+                        ProgressMonitor monitor = new ProgressMonitor(JZVNode.this,
+                                MessageFormat.format(bundle.getString("dlg.import.title"), node.getPath()),
+                                MessageFormat.format(bundle.getString("dlg.transfer.progress"), 0), 0, 1);
+                        model.importSubtree(getFileChooser().getSelectedFile(), node, new TransferMonitor(monitor));
+                    }
+                }
+            };
+            this.importAction.putValue(Action.ACTION_COMMAND_KEY, actionKey);
+        }
+        return this.importAction;
+    }
+
+    /**
+     * Returns the 'Bulk edit' action, changing the data of the selected nodes
+     * or of the matching nodes of their subtrees.
+     * 
+     * @return the action
+     */
+    @SuppressWarnings("serial")
+    private Action getBulkEditAction() {
+        if (this.bulkEditAction == null) {
+            String actionCommand = bundle.getString(BULK_EDIT_KEY);
+            String actionKey = bundle.getString(BULK_EDIT_KEY + ".action");
+            this.bulkEditAction = new AbstractAction(actionCommand) {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    log.info("actionPerformed(): action = {}", e.getActionCommand());
+                    ZVNode[] selected = nodes;
+                    if (selected == null) {
+                        return;
+                    }
+                    // A new form for a new selection, else the last entries
+                    if (bulkEditForm == null || bulkEditForm.getSelectedCount() != selected.length) {
+                        bulkEditForm = new JZVBulkEdit(selected.length);
+                    }
+                    while (JOptionPane.showConfirmDialog(JZVNode.this, bulkEditForm,
+                            bundle.getString("dlg.bulkEdit.title"), JOptionPane.OK_CANCEL_OPTION,
+                            JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+                        try {
+                            ZVDataChange change = bulkEditForm.getChange();
+                            Pattern pattern = bulkEditForm.isSubtrees() ? bulkEditForm.getPattern() : null;
+                            bulkEdit(selected, bulkEditForm.isSubtrees(), pattern, change);
+                            return;
+                        } catch (IllegalArgumentException ex) {
+                            JOptionPane.showMessageDialog(JZVNode.this,
+                                    MessageFormat.format(bundle.getString("dlg.error.bulkEdit"), ex.getMessage()),
+                                    bundle.getString("dlg.error.title"), JOptionPane.ERROR_MESSAGE);
+                        }
+                    }
+                }
+            };
+            this.bulkEditAction.putValue(Action.ACTION_COMMAND_KEY, actionKey);
+        }
+        return this.bulkEditAction;
+    }
+
+    /**
+     * Shows the failure of a write, if any.
+     * <p>
+     * Called on the ZooKeeper event thread: the write is not waited for by
+     * the EDT.
+     * </p>
+     * 
+     * @param error
+     *            the failure, <code>null</code> on success
+     * @param key
+     *            the key of the error message
+     * @param path
+     *            the written node
+     */
+    private void reportFailure(Throwable error, String key, String path) {
+        if (error == null) {
+            return;
+        }
+        log.error("Cannot write " + path, error);
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(JZVNode.this,
+                MessageFormat.format(bundle.getString(key), path, error.getMessage()),
+                bundle.getString("dlg.error.title"), JOptionPane.ERROR_MESSAGE));
+    }
+
+    private JFileChooser getFileChooser() {
+        if (this.fileChooser == null) {
+            this.fileChooser = new JFileChooser();
+        }
+        return this.fileChooser;
+    }
+
+    /**
+     * Deletes the specified nodes and their subtrees.
+     * <p>
+     * The deletion runs in the background: a progress dialog, from which it
+     * can be cancelled, pops up if it takes a while.
+     * </p>
+     * 
+     * @param toDelete
+     *            the nodes to delete
+     */
+    private void deleteNodes(ZVNode[] toDelete) {
+        ProgressMonitor monitor = new ProgressMonitor(this, bundle.getString("dlg.delete.title"),
+                MessageFormat.format(bundle.getString("dlg.delete.listing"), toDelete.length), 0, toDelete.length);
+        this.model.deleteNodes(toDelete, new DeletionMonitor(monitor));
+    }
+
+    /**
+     * Applies a change to the selected nodes, or to the matching nodes of
+     * their subtrees.
+     * <p>
+     * The bulk edit runs in the background: a progress dialog, from which it
+     * can be cancelled, pops up if it takes a while. The nodes which could
+     * not be written are listed once done.
+     * </p>
+     * 
+     * @param selected
+     *            the selected nodes
+     * @param subtrees
+     *            <code>true</code> to change the nodes of the subtrees
+     * @param pattern
+     *            found in the paths of the nodes of the subtrees to change,
+     *            may be <code>null</code>
+     * @param change
+     *            the change
+     */
+    private void bulkEdit(ZVNode[] selected, boolean subtrees, Pattern pattern, ZVDataChange change) {
+        ProgressMonitor monitor = new ProgressMonitor(this, bundle.getString("dlg.bulkEdit.title"),
+                MessageFormat.format(bundle.getString("dlg.bulkEdit.progress"), 0, selected.length), 0, 1);
+        BulkEditMonitor listener = new BulkEditMonitor(monitor);
+        if (subtrees) {
+            this.model.editSubtrees(selected, pattern, change, listener);
+        } else {
+            this.model.editNodes(selected, change, listener);
+        }
+    }
+
+    private void showBulkEditResult(ZVBulkEdit edit) {
+        List<String> conflicts = edit.getConflicts();
+        if (edit.getError() != null) {
+            JOptionPane.showMessageDialog(this,
+                    MessageFormat.format(bundle.getString("dlg.error.bulkEditFailed"), edit.getError().getMessage()),
+                    bundle.getString("dlg.error.title"), JOptionPane.ERROR_MESSAGE);
+        } else if (!conflicts.isEmpty() || edit.getFailed() > 0) {
+            JTextArea taConflicts = new JTextArea(String.join("\n", conflicts),
+                    Math.max(1, Math.min(conflicts.size(), 10)), 40);
+            taConflicts.setEditable(false);
+            Object[] message = {
+                    MessageFormat.format(bundle.getString("dlg.error.bulkEditConflicts"), edit.getUpdated(),
+                            edit.getUnchanged(), edit.getFailed(), conflicts.size()),
+                    new JScrollPane(taConflicts) };
+            JOptionPane.showMessageDialog(this, message, bundle.getString("dlg.error.title"),
+                    JOptionPane.WARNING_MESSAGE);
+        } else if (!edit.isCancelled()) {
+            JOptionPane.showMessageDialog(this,
+                    MessageFormat.format(bundle.getString("dlg.bulkEdit.done"), edit.getUpdated(), edit.getUnchanged()),
+                    bundle.getString("dlg.bulkEdit.title"), JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
     /**
      * Defines the list of selected nodes.
      * 
@@ -389,6 +636,10 @@ public class JZVNode extends JPanel {
             for (ZVNode node : this.nodes) {
                 node.addPropertyChangeListener(ZVNode.PROPERTY_EXISTS, this.propertyListener);
             }
+            if (this.nodes.length == 1) {
+                // Fetches the data if only the stat is known
+                this.model.loadData(this.nodes[0]);
+            }
         }
         this.updateView();
     }
@@ -408,7 +659,7 @@ public class JZVNode extends JPanel {
                 enableAction(e);
             }
             private void enableAction(DocumentEvent e) {
-                boolean enabled = e.getDocument().getLength() > 0;
+                boolean enabled = !model.isReadOnly() && e.getDocument().getLength() > 0;
                 getUpdateAction().setEnabled( enabled  );
             }
         });
@@ -432,7 +683,7 @@ public class JZVNode extends JPanel {
                 int docLength = e.getDocument().getLength();
                 boolean enabled;
                 try {
-                    enabled = ( docLength > 0 ) && !e.getDocument().getText(0, docLength).trim().equals("");
+                    enabled = !model.isReadOnly() && ( docLength > 0 ) && !e.getDocument().getText(0, docLength).trim().equals("");
                     getAddChildAction().setEnabled( enabled  );
                 } catch (BadLocationException e1) {
                     // TODO Auto-generated catch block
@@ -452,20 +703,27 @@ public class JZVNode extends JPanel {
     private void updateView() {
         if (this.nodes == null || this.nodes.length > 1 || !this.nodes[0].exists()) {
             this.titleBorder.setTitle("-");
-            this.jzvStat.setStat(null);
+            this.jzvStat.setNode(null);
             this.taUpdate.setText("");
             this.taChildData.setText("");
             this.jbUpdate.setEnabled(false);
             this.jbNewChild.setEnabled(false);
-            this.jbDelete.setEnabled(this.nodes != null);
+            this.jbDelete.setEnabled(this.nodes != null && !this.model.isReadOnly());
+            this.jbExport.setEnabled(false);
+            this.jbImport.setEnabled(false);
+            this.jbBulkEdit.setEnabled(this.nodes != null && !this.model.isReadOnly());
         } else {
             this.titleBorder.setTitle(this.nodes[0].getPath());
-            this.jzvStat.setStat(this.nodes[0].getStat());
-            byte[] data = this.nodes[0].getData();
-            if (data == null || data.length == 0) {
+            this.jzvStat.setNode(this.nodes[0]);
+            ByteBuffer data = this.nodes[0].getDataBuffer();
+            // Not editable until the data is fetched
+            this.taUpdate.setEditable(this.nodes[0].isDataLoaded() && !this.model.isReadOnly());
+            if (!this.nodes[0].isDataLoaded()) {
+                this.taUpdate.setText(bundle.getString("pnl.data.loading"));
+            } else if (data == null || !data.hasRemaining()) {
                 this.taUpdate.setText("No data in node.");
             } else {
-                String text = new String(data).trim();
+                String text = Charset.defaultCharset().decode(data).toString().trim();
                 if (text.startsWith("{")) { //probably node data is json. Lets format it
                     try {
                         JsonNode tree = mapper.readTree(text);
@@ -480,13 +738,187 @@ public class JZVNode extends JPanel {
             }
 
             this.taChildData.setText("");
-            this.jbUpdate.setEnabled( !this.taUpdate.getText().trim().equals("") );
-            this.jbNewChild.setEnabled( !this.jtfChildName.getText().trim().equals("") );
-            this.jbDelete.setEnabled(true);
+            this.jbUpdate.setEnabled( this.taUpdate.isEditable() && !this.taUpdate.getText().trim().equals("") );
+            this.jbNewChild.setEnabled( !this.model.isReadOnly() && !this.jtfChildName.getText().trim().equals("") );
+            this.jbDelete.setEnabled(!this.model.isReadOnly());
+            this.jbExport.setEnabled(true);
+            this.jbImport.setEnabled(!this.model.isReadOnly());
+            this.jbBulkEdit.setEnabled(!this.model.isReadOnly());
         }
         this.repaint();
     }
 
+    /**
+     * Schedules an update of the view on the EDT.
+     * <p>
+     * Model events are received on the ZooKeeper threads: successive
+     * requests are coalesced into a single update.
+     * </p>
+     */
+    private void refreshView() {
+        if (this.refreshPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                this.refreshPending.set(false);
+                this.updateView();
+            });
+        }
+    }
+
+    /**
+     * Reports the progress of a background operation in a progress dialog,
+     * and cancels the operation when the dialog is.
+     * 
+     * @param <T>
+     *            the type of operation
+     */
+    private abstract class ProgressAdapter<T extends ZVTask> {
+        private final ProgressMonitor monitor;
+        private final AtomicBoolean progressPending = new AtomicBoolean();
+
+        ProgressAdapter(ProgressMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+        public void progress(T task) {
+            // Coalesced, like the view refreshes
+            if (progressPending.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(() -> {
+                    progressPending.set(false);
+                    if (monitor.isCanceled()) {
+                        task.cancel();
+                    } else if (!task.isDone()) {
+                        update(task);
+                    }
+                });
+            }
+        }
+
+        public void done(T task) {
+            SwingUtilities.invokeLater(() -> {
+                monitor.close();
+                finish(task);
+            });
+        }
+
+        /**
+         * Shows the progress, on the EDT.
+         * 
+         * @param task
+         *            the running operation
+         */
+        abstract void update(T task);
+
+        /**
+         * Reports the outcome once the dialog is closed, on the EDT.
+         * 
+         * @param task
+         *            the finished operation
+         */
+        abstract void finish(T task);
+
+        void setNote(String note) {
+            monitor.setNote(note);
+        }
+
+        void setProgress(String note, long value, long total) {
+            monitor.setNote(note);
+            if (total >= 0 && total < Integer.MAX_VALUE) {
+                // Kept below the maximum, which closes the dialog
+                monitor.setMaximum((int) total + 1);
+                monitor.setProgress((int) Math.min(total, value));
+            }
+        }
+
+        void showError(String key, Object argument) {
+            JOptionPane.showMessageDialog(JZVNode.this, MessageFormat.format(bundle.getString(key), argument),
+                    bundle.getString("dlg.error.title"), JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Reports the progress of an export or import.
+     */
+    private final class TransferMonitor extends ProgressAdapter<ZVTransfer> implements ZVTransfer.Listener {
+        TransferMonitor(ProgressMonitor monitor) {
+            super(monitor);
+        }
+
+        @Override
+        void update(ZVTransfer transfer) {
+            long total = transfer.getTotal();
+            // The total of an export is unknown until listed
+            setProgress(MessageFormat.format(bundle.getString("dlg.transfer.progress"), transfer.getNodes()),
+                    transfer.getNodes(), total > 0 ? total : -1);
+        }
+
+        @Override
+        void finish(ZVTransfer transfer) {
+            if (transfer.getError() != null) {
+                showError("dlg.error.transfer", transfer.getError().getMessage());
+            } else if (transfer.getFailed() > 0) {
+                showError("dlg.error.importFailed", transfer.getFailed());
+            }
+            if (transfer.getError() == null && transfer.isFuzzy()) {
+                JOptionPane.showMessageDialog(JZVNode.this,
+                        MessageFormat.format(bundle.getString("dlg.warning.fuzzy"),
+                                Long.toHexString(transfer.getZxid())),
+                        bundle.getString("dlg.warning.title"), JOptionPane.WARNING_MESSAGE);
+            }
+        }
+    }
+
+    /**
+     * Reports the progress of a deletion.
+     */
+    private final class DeletionMonitor extends ProgressAdapter<ZVDeletion> implements ZVDeletion.Listener {
+        DeletionMonitor(ProgressMonitor monitor) {
+            super(monitor);
+        }
+
+        @Override
+        void update(ZVDeletion deletion) {
+            int total = deletion.getTotal();
+            if (deletion.isListing()) {
+                setNote(MessageFormat.format(bundle.getString("dlg.delete.listing"), total));
+            } else {
+                setProgress(MessageFormat.format(bundle.getString("dlg.delete.progress"), deletion.getDeleted(), total),
+                        deletion.getDeleted() + deletion.getFailed(), total);
+            }
+        }
+
+        @Override
+        void finish(ZVDeletion deletion) {
+            if (deletion.getError() != null) {
+                showError("dlg.error.deleteError", deletion.getError().getMessage());
+            } else if (deletion.getFailed() > 0) {
+                showError("dlg.error.deleteFailed", deletion.getFailed());
+            }
+        }
+    }
+
+    /**
+     * Reports the progress of a bulk edit.
+     */
+    private final class BulkEditMonitor extends ProgressAdapter<ZVBulkEdit> implements ZVBulkEdit.Listener {
+        BulkEditMonitor(ProgressMonitor monitor) {
+            super(monitor);
+        }
+
+        @Override
+        void update(ZVBulkEdit edit) {
+            if (edit.getTotal() >= 0) {
+                setProgress(MessageFormat.format(bundle.getString("dlg.bulkEdit.progress"), edit.getUpdated(),
+                        edit.getTotal()), edit.getUpdated() + edit.getUnchanged() + edit.getFailed()
+                        + edit.getConflicts().size(), edit.getTotal());
+            }
+        }
+
+        @Override
+        void finish(ZVBulkEdit edit) {
+            showBulkEditResult(edit);
+        }
+    }
+
     /**
      * Class managing events in order to update the view.
      */
@@ -496,7 +928,7 @@ public class JZVNode extends JPanel {
             if (nodes != null) {
                 for (ZVNode node : nodes) {
                     if ((node == oldNode) || (node == model.getParent(oldNode))) {
-                        updateView();
+                        refreshView();
                         break;
                     }
                 }
@@ -514,7 +946,7 @@ public class JZVNode extends JPanel {
                 }
             }
             if (updateView) {
-                updateView();
+                refreshView();
             }
         }
 
@@ -529,7 +961,7 @@ public class JZVNode extends JPanel {
                 }
             }
             if (updateView) {
-                updateView();
+                refreshView();
             }
         }
     }
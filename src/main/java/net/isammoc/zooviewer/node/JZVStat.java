@@ -23,7 +23,6 @@ import javax.swing.BoxLayout;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 
-import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -82,9 +81,13 @@ public class JZVStat extends JPanel {
         this.add(statsPane);
     }
 
-    public void setStat(Stat stat) {
-        log.info("=====> Stat is: {}", stat);
-        if (stat == null) {
+    /**
+     * Displays the stats of the specified node.
+     * @param node the node, or <code>null</code> to clear the view
+     */
+    public void setNode(ZVNode node) {
+        log.debug("=====> Stat of: {}", node);
+        if (node == null || !node.hasStat()) {
             this.aversion.setValue("");
             this.ctime.setValue("");
             this.cversion.setValue("");
@@ -97,17 +100,17 @@ public class JZVStat extends JPanel {
             this.pzxid.setValue("");
             this.version.setValue("");
         } else {
-            this.aversion.setValue(String.valueOf(stat.getAversion()));
-            this.ctime.setValue(this.DATE_FORMAT.format(new Date(stat.getCtime())));
-            this.cversion.setValue(String.valueOf(stat.getCversion()));
-            this.czxid.setValue(String.valueOf(stat.getCzxid()));
-            this.dataLength.setValue(String.valueOf(stat.getDataLength()));
-            this.ephemeralOwner.setValue(String.valueOf(stat.getEphemeralOwner()));
-            this.mtime.setValue(this.DATE_FORMAT.format(new Date(stat.getMtime())));
-            this.mzxid.setValue(String.valueOf(stat.getMzxid()));
-            this.numChildren.setValue(String.valueOf(stat.getNumChildren()));
-            this.pzxid.setValue(String.valueOf(stat.getPzxid()));
-            this.version.setValue(String.valueOf(stat.getVersion()));
+            this.aversion.setValue(String.valueOf(node.getAversion()));
+            this.ctime.setValue(this.DATE_FORMAT.format(new Date(node.getCtime())));
+            this.cversion.setValue(String.valueOf(node.getCversion()));
+            this.czxid.setValue(String.valueOf(node.getCzxid()));
+            this.dataLength.setValue(String.valueOf(node.getDataLength()));
+            this.ephemeralOwner.setValue(String.valueOf(node.getEphemeralOwner()));
+            this.mtime.setValue(this.DATE_FORMAT.format(new Date(node.getMtime())));
+            this.mzxid.setValue(String.valueOf(node.getMzxid()));
+            this.numChildren.setValue(String.valueOf(node.getNumChildren()));
+            this.pzxid.setValue(String.valueOf(node.getPzxid()));
+            this.version.setValue(String.valueOf(node.getVersion()));
         }
     }
 }
@@ -0,0 +1,387 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.node;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Payload store keeping the payloads outside of the Java heap.
+ * <p>
+ * Payloads are appended to chunks of direct (or memory-mapped) memory. The
+ * heap only holds a slot table giving the chunk, offset and length of each
+ * payload, so its size depends on the number of nodes, not on the volume of
+ * the payloads.
+ * </p>
+ * <p>
+ * Space is never reused inside a chunk: a chunk is dropped once all its
+ * payloads are released, and the payloads of sparse chunks are moved to a
+ * fresh chunk when the released space exceeds the live payloads. Views
+ * returned by {@link #get(int)} keep their chunk reachable, so they stay
+ * valid after a release or a move.
+ * </p>
+ * <p>
+ * The chunks never exceed the configured limit. Payloads which do not fit,
+ * even after compaction, are kept on the heap.
+ * </p>
+ */
+public class ZVArenaPayloadStore implements ZVPayloadStore {
+
+    /** Default size of a chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int EMPTY = -3;
+    private static final int FREE = -2;
+    private static final int SPILLED = -1;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private final boolean mapped;
+    private final long limit;
+    private final int chunkSize;
+
+    /** Chunks, <code>null</code> once dropped. The position is the allocation pointer. */
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int[] chunkLive = new int[16];
+    private int current = -1;
+    private long reserved;
+    private long live;
+
+    private int[] slotChunk = new int[1024];
+    private int[] slotOffset = new int[1024];
+    private int[] slotLength = new int[1024];
+    private int slotCount;
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+
+    /** Payloads over the limit. */
+    private final Map<Integer, byte[]> spilled = new HashMap<>();
+    private long spilledBytes;
+
+    private boolean compacting;
+
+    /**
+     * Creates a store.
+     * @param mapped <code>true</code> to map the chunks on temporary files,
+     *            <code>false</code> to allocate direct buffers
+     * @param limit the maximum number of bytes allocated for the chunks
+     */
+    public ZVArenaPayloadStore(boolean mapped, long limit) {
+        this(mapped, limit, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a store.
+     * @param mapped <code>true</code> to map the chunks on temporary files,
+     *            <code>false</code> to allocate direct buffers
+     * @param limit the maximum number of bytes allocated for the chunks
+     * @param chunkSize the size of a chunk
+     */
+    public ZVArenaPayloadStore(boolean mapped, long limit, int chunkSize) {
+        this.mapped = mapped;
+        this.limit = limit;
+        this.chunkSize = (int) Math.max(1, Math.min(chunkSize, limit));
+    }
+
+    @Override
+    public synchronized int store(byte[] data) {
+        if (data == null) {
+            return NO_DATA;
+        }
+        int handle = allocateSlot();
+        this.slotLength[handle] = data.length;
+        // Not in a chunk yet, so that a compaction ignores it
+        this.slotChunk[handle] = EMPTY;
+        if (data.length == 0) {
+            return handle;
+        }
+        int chunk = allocate(data.length);
+        if (chunk < 0) {
+            if (this.spilled.isEmpty()) {
+                log.warn("Payload store full ({} bytes), keeping payloads on the heap", this.reserved);
+            }
+            this.slotChunk[handle] = SPILLED;
+            this.spilled.put(handle, Arrays.copyOf(data, data.length));
+            this.spilledBytes += data.length;
+        } else {
+            ByteBuffer buffer = this.chunks.get(chunk);
+            this.slotChunk[handle] = chunk;
+            this.slotOffset[handle] = buffer.position();
+            buffer.put(data);
+            this.chunkLive[chunk] += data.length;
+            this.live += data.length;
+        }
+        return handle;
+    }
+
+    @Override
+    public synchronized ByteBuffer get(int handle) {
+        if (!isStored(handle)) {
+            return null;
+        }
+        int chunk = this.slotChunk[handle];
+        if (chunk == EMPTY) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        if (chunk == SPILLED) {
+            return ByteBuffer.wrap(this.spilled.get(handle)).asReadOnlyBuffer();
+        }
+        return view(chunk, this.slotOffset[handle], this.slotLength[handle]).asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized int length(int handle) {
+        return isStored(handle) ? this.slotLength[handle] : -1;
+    }
+
+    @Override
+    public synchronized void release(int handle) {
+        if (!isStored(handle)) {
+            return;
+        }
+        int chunk = this.slotChunk[handle];
+        int length = this.slotLength[handle];
+        if (chunk == SPILLED) {
+            this.spilled.remove(handle);
+            this.spilledBytes -= length;
+        } else if (chunk != EMPTY) {
+            this.chunkLive[chunk] -= length;
+            this.live -= length;
+            if (this.chunkLive[chunk] == 0 && chunk != this.current) {
+                dropChunk(chunk);
+            }
+        }
+        this.slotChunk[handle] = FREE;
+        if (this.freeCount == this.freeSlots.length) {
+            this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlots.length * 2);
+        }
+        this.freeSlots[this.freeCount++] = handle;
+
+        long wasted = this.reserved - this.live - remaining(this.current);
+        if (wasted >= this.chunkSize && wasted > this.live) {
+            compact(false);
+        }
+    }
+
+    @Override
+    public synchronized long getStoredBytes() {
+        return this.live + this.spilledBytes;
+    }
+
+    /**
+     * Returns the number of bytes allocated for the chunks.
+     * @return the number of bytes outside of the heap
+     */
+    public synchronized long getReservedBytes() {
+        return this.reserved;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.chunks.clear();
+        this.current = -1;
+        this.reserved = 0;
+        this.live = 0;
+        this.slotCount = 0;
+        this.freeCount = 0;
+        this.spilled.clear();
+        this.spilledBytes = 0;
+    }
+
+    private boolean isStored(int handle) {
+        // Handles from before close() are not stored anymore
+        return handle >= 0 && handle < this.slotCount && this.slotChunk[handle] != FREE;
+    }
+
+    private int allocateSlot() {
+        if (this.freeCount > 0) {
+            return this.freeSlots[--this.freeCount];
+        }
+        if (this.slotCount == this.slotChunk.length) {
+            int size = this.slotChunk.length * 2;
+            this.slotChunk = Arrays.copyOf(this.slotChunk, size);
+            this.slotOffset = Arrays.copyOf(this.slotOffset, size);
+            this.slotLength = Arrays.copyOf(this.slotLength, size);
+        }
+        return this.slotCount++;
+    }
+
+    /**
+     * Finds room for a payload, in the current chunk or in a new one.
+     * @param length the payload length
+     * @return the chunk whose position is the payload offset, or
+     *         <code>-1</code> if the limit is reached
+     */
+    private int allocate(int length) {
+        if (this.current >= 0 && remaining(this.current) >= length) {
+            return this.current;
+        }
+        int size = Math.max(this.chunkSize, length);
+        if (this.reserved + size > this.limit && !this.compacting) {
+            compact(true);
+            if (this.current >= 0 && remaining(this.current) >= length) {
+                return this.current;
+            }
+        }
+        if (this.reserved + size > this.limit) {
+            return -1;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = this.mapped ? mapChunk(size) : ByteBuffer.allocateDirect(size);
+        } catch (IOException | OutOfMemoryError e) {
+            log.warn("Cannot allocate a chunk of " + size + " bytes", e);
+            return -1;
+        }
+        if (this.current >= 0 && this.chunkLive[this.current] == 0) {
+            dropChunk(this.current);
+        }
+        this.chunks.add(buffer);
+        this.current = this.chunks.size() - 1;
+        if (this.current == this.chunkLive.length) {
+            this.chunkLive = Arrays.copyOf(this.chunkLive, this.chunkLive.length * 2);
+        }
+        this.chunkLive[this.current] = 0;
+        this.reserved += size;
+        return this.current;
+    }
+
+    private static ByteBuffer mapChunk(int size) throws IOException {
+        File file = File.createTempFile("zooviewer", ".payload");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping outlives the file on Unix
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    private int remaining(int chunk) {
+        return chunk < 0 ? 0 : this.chunks.get(chunk).remaining();
+    }
+
+    private ByteBuffer view(int chunk, int offset, int length) {
+        ByteBuffer view = this.chunks.get(chunk).duplicate();
+        // Through Buffer, whose methods do not return ByteBuffer before Java 9
+        ((Buffer) view).limit(offset + length);
+        ((Buffer) view).position(offset);
+        return view.slice();
+    }
+
+    private void dropChunk(int chunk) {
+        this.reserved -= this.chunks.get(chunk).capacity();
+        this.chunks.set(chunk, null);
+        if (chunk == this.current) {
+            this.current = -1;
+        }
+    }
+
+    /**
+     * Moves the payloads of fragmented chunks to the current chunk (or to
+     * new ones), sparsest chunks first, and drops the emptied chunks.
+     * @param full <code>true</code> to consider every chunk with released
+     *            space, <code>false</code> for the chunks less than half full
+     */
+    private void compact(boolean full) {
+        // Candidate chunks, by increasing live bytes
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < this.chunks.size(); i++) {
+            ByteBuffer buffer = this.chunks.get(i);
+            if (i != this.current && buffer != null
+                    && this.chunkLive[i] < (full ? buffer.position() : buffer.capacity() / 2)) {
+                candidates.add(i);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        candidates.sort((i, j) -> Integer.compare(this.chunkLive[i], this.chunkLive[j]));
+
+        // Payloads of each candidate, in one pass over the slots
+        int[] rank = new int[this.chunks.size()];
+        Arrays.fill(rank, -1);
+        for (int i = 0; i < candidates.size(); i++) {
+            rank[candidates.get(i)] = i;
+        }
+        int[] start = new int[candidates.size() + 1];
+        for (int handle = 0; handle < this.slotCount; handle++) {
+            int chunk = this.slotChunk[handle];
+            if (chunk >= 0 && rank[chunk] >= 0) {
+                start[rank[chunk] + 1]++;
+            }
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            start[i + 1] += start[i];
+        }
+        int[] handles = new int[start[candidates.size()]];
+        int[] fill = Arrays.copyOf(start, candidates.size());
+        for (int handle = 0; handle < this.slotCount; handle++) {
+            int chunk = this.slotChunk[handle];
+            if (chunk >= 0 && rank[chunk] >= 0) {
+                handles[fill[rank[chunk]]++] = handle;
+            }
+        }
+
+        long before = this.reserved;
+        this.compacting = true;
+        try {
+            for (int i = 0; i < candidates.size(); i++) {
+                int chunk = candidates.get(i);
+                for (int k = start[i]; k < start[i + 1]; k++) {
+                    if (!move(handles[k])) {
+                        // Out of room, the chunks not emptied yet are kept
+                        return;
+                    }
+                }
+                dropChunk(chunk);
+            }
+        } finally {
+            this.compacting = false;
+            log.debug("Payload store compacted from {} to {} bytes", before, this.reserved);
+        }
+    }
+
+    private boolean move(int handle) {
+        int chunk = this.slotChunk[handle];
+        int length = this.slotLength[handle];
+        int target = allocate(length);
+        if (target < 0) {
+            return false;
+        }
+        ByteBuffer buffer = this.chunks.get(target);
+        int offset = buffer.position();
+        buffer.put(view(chunk, this.slotOffset[handle], length));
+        this.slotChunk[handle] = target;
+        this.slotOffset[handle] = offset;
+        this.chunkLive[target] += length;
+        this.chunkLive[chunk] -= length;
+        return true;
+    }
+}
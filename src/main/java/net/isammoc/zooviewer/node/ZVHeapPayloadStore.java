@@ -0,0 +1,92 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.node;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Payload store keeping each payload in its own array on the Java heap.
+ */
+public class ZVHeapPayloadStore implements ZVPayloadStore {
+
+    private byte[][] slots = new byte[1024][];
+    private int slotCount;
+    private int[] freeSlots = new int[64];
+    private int freeCount;
+    private long storedBytes;
+
+    @Override
+    public synchronized int store(byte[] data) {
+        if (data == null) {
+            return NO_DATA;
+        }
+        int handle;
+        if (this.freeCount > 0) {
+            handle = this.freeSlots[--this.freeCount];
+        } else {
+            if (this.slotCount == this.slots.length) {
+                this.slots = Arrays.copyOf(this.slots, this.slots.length * 2);
+            }
+            handle = this.slotCount++;
+        }
+        this.slots[handle] = Arrays.copyOf(data, data.length);
+        this.storedBytes += data.length;
+        return handle;
+    }
+
+    @Override
+    public synchronized ByteBuffer get(int handle) {
+        byte[] data = isStored(handle) ? this.slots[handle] : null;
+        return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    @Override
+    public synchronized int length(int handle) {
+        byte[] data = isStored(handle) ? this.slots[handle] : null;
+        return data == null ? -1 : data.length;
+    }
+
+    @Override
+    public synchronized void release(int handle) {
+        if (!isStored(handle) || this.slots[handle] == null) {
+            return;
+        }
+        this.storedBytes -= this.slots[handle].length;
+        this.slots[handle] = null;
+        if (this.freeCount == this.freeSlots.length) {
+            this.freeSlots = Arrays.copyOf(this.freeSlots, this.freeSlots.length * 2);
+        }
+        this.freeSlots[this.freeCount++] = handle;
+    }
+
+    @Override
+    public synchronized long getStoredBytes() {
+        return this.storedBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.slots = new byte[1024][];
+        this.slotCount = 0;
+        this.freeCount = 0;
+        this.storedBytes = 0;
+    }
+
+    private boolean isStored(int handle) {
+        // Handles from before close() are not stored anymore
+        return handle >= 0 && handle < this.slotCount;
+    }
+}
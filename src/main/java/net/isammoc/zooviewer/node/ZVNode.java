@@ -15,6 +15,7 @@
 package net.isammoc.zooviewer.node;
 
 import java.beans.PropertyChangeListener;
+import java.nio.ByteBuffer;
 
 import org.apache.zookeeper.data.Stat;
 
@@ -51,6 +52,54 @@ public interface ZVNode {
      */
     Stat getStat();
 
+    /**
+     * Returns a read-only view of this node's data, without copying it.
+     * @return the data, or <code>null</code> if the node has no data
+     */
+    ByteBuffer getDataBuffer();
+
+    /**
+     * Checks if this node's data has been fetched.
+     * <p>
+     * When it has not, {@link #getData()} and {@link #getDataBuffer()}
+     * return <code>null</code>.
+     * </p>
+     * @return <code>true</code> if the data is known
+     */
+    boolean isDataLoaded();
+
+    /**
+     * Checks if this node's stats are known.
+     * <p>
+     * The primitive stat getters below return <code>0</code> when they are
+     * not. Unlike {@link #getStat()}, they do not allocate.
+     * </p>
+     * @return <code>true</code> if {@link #getStat()} is not <code>null</code>
+     */
+    boolean hasStat();
+
+    long getCzxid();
+
+    long getMzxid();
+
+    long getPzxid();
+
+    long getCtime();
+
+    long getMtime();
+
+    int getVersion();
+
+    int getCversion();
+
+    int getAversion();
+
+    long getEphemeralOwner();
+
+    int getDataLength();
+
+    int getNumChildren();
+
     /**
      * Checks if this node exists in the ZooKeeper model.
      * @return
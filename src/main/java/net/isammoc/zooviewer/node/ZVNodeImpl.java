@@ -16,43 +16,111 @@ package net.isammoc.zooviewer.node;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 
 import org.apache.zookeeper.data.Stat;
 
+/**
+ * Node of the ZooViewer model.
+ * <p>
+ * The layout is kept compact for trees of millions of nodes: the path is
+ * not stored but rebuilt from the parent chain, the {@link Stat} fields are
+ * held as primitives, the listener support is only allocated for observed
+ * nodes, and the existing children are kept in an array sorted by name.
+ * </p>
+ * <p>
+ * The children array is replaced on each change: readers access it without
+ * lock, writers (and the {@link Stat} accessors) synchronize on the node.
+ * A node instance stands for one incarnation of its path, so equality is
+ * identity.
+ * </p>
+ */
 public class ZVNodeImpl implements ZVNode {
 
-    private final String path;
+    private static final ZVNodeImpl[] NO_CHILDREN = new ZVNodeImpl[0];
+
+    private static final Comparator<ZVNode> BY_NAME = Comparator.comparing(ZVNode::getName);
+
+    /** Handle of a payload not fetched yet. */
+    private static final int DATA_UNKNOWN = -2;
+
+    private static final byte CHILDREN_UNKNOWN = 0;
+    private static final byte CHILDREN_LOADING = 1;
+    private static final byte CHILDREN_LOADED = 2;
+
+    private final ZVNodeImpl parent;
     private final String name;
-    private boolean exists;
-    private byte[] data;
-    private final PropertyChangeSupport pcs = new PropertyChangeSupport(this);
-    private Stat stat;
+    // Volatile: written by the model threads, read by the EDT
+    private volatile boolean exists;
+    private volatile PropertyChangeSupport pcs;
+    private volatile ZVNodeImpl[] children = NO_CHILDREN;
+    private volatile byte childrenState = CHILDREN_UNKNOWN;
 
-    public ZVNodeImpl(String path) {
-	this.path = path;
-	if ("/".equals(path)) {
-	    this.name = "/";
-	} else {
-	    this.name = path.substring(path.lastIndexOf("/") + 1);
-	}
-	this.exists = false;
+    private final ZVPayloadStore store;
+    // Payload handle, guarded by this
+    private int data = ZVPayloadStore.NO_DATA;
+
+    // Stat fields, guarded by this
+    private boolean hasStat;
+    private long czxid;
+    private long mzxid;
+    private long ctime;
+    private long mtime;
+    private long ephemeralOwner;
+    private long pzxid;
+    private int version;
+    private int cversion;
+    private int aversion;
+    private int dataLength;
+    private int numChildren;
+
+    /**
+     * Creates an existing root node.
+     * @param store the store of the payloads of the tree
+     * @param data the node data
+     */
+    public ZVNodeImpl(ZVPayloadStore store, byte[] data) {
+	this(store, null, "/", data);
     }
 
-    public ZVNodeImpl(String path, byte[] data) {
-	this.path = path;
-	if ("/".equals(path)) {
-	    this.name = "/";
-	} else {
-	    this.name = path.substring(path.lastIndexOf("/") + 1);
-	}
-	this.data = (data == null ? null : Arrays.copyOf(data, data.length));
+    /**
+     * Creates an existing node, whose payload goes to the store of its
+     * parent.
+     * @param parent the parent node
+     * @param name the node name
+     * @param data the node data
+     */
+    public ZVNodeImpl(ZVNodeImpl parent, String name, byte[] data) {
+	this(parent.store, parent, name, data);
+    }
+
+    private ZVNodeImpl(ZVPayloadStore store, ZVNodeImpl parent, String name, byte[] data) {
+	this.store = store;
+	this.parent = parent;
+	this.name = name;
+	this.data = store.store(data);
 	this.exists = true;
     }
 
     @Override
     public String getPath() {
-	return this.path;
+	if (this.parent == null) {
+	    return "/";
+	}
+	StringBuilder sb = new StringBuilder(64);
+	appendPath(sb);
+	return sb.toString();
+    }
+
+    private void appendPath(StringBuilder sb) {
+	if (this.parent != null) {
+	    this.parent.appendPath(sb);
+	    sb.append('/').append(this.name);
+	}
     }
 
     @Override
@@ -60,21 +128,59 @@ public class ZVNodeImpl implements ZVNode {
 	return this.name;
     }
 
+    /**
+     * Returns the parent of this node.
+     * @return the parent, or <code>null</code> for the root
+     */
+    public ZVNodeImpl getParent() {
+	return this.parent;
+    }
+
     @Override
     public byte[] getData() {
-	if (this.data == null) {
+	ByteBuffer buffer = getDataBuffer();
+	if (buffer == null) {
 	    return null;
-	} else {
-	    return Arrays.copyOf(this.data, this.data.length);
 	}
+	byte[] copy = new byte[buffer.remaining()];
+	buffer.get(copy);
+	return copy;
+    }
+
+    @Override
+    public synchronized ByteBuffer getDataBuffer() {
+	// Under the lock, so that the handle is not released meanwhile
+	return this.store.get(this.data);
+    }
+
+    @Override
+    public synchronized boolean isDataLoaded() {
+	return this.data != DATA_UNKNOWN;
     }
 
     public void setData(byte[] data) {
-	if (!Arrays.equals(this.data, data)) {
-	    byte[] old = this.data;
-	    this.data = (data == null ? null : Arrays.copyOf(data, data.length));
-	    this.pcs.firePropertyChange(PROPERTY_DATA, old, data);
+	byte[] old;
+	synchronized (this) {
+	    ByteBuffer current = this.store.get(this.data);
+	    if (this.data != DATA_UNKNOWN && (current == null ? data == null
+		    : data != null && current.equals(ByteBuffer.wrap(data)))) {
+		return;
+	    }
+	    old = this.pcs == null ? null : getData();
+	    int previous = this.data;
+	    this.data = this.store.store(data);
+	    this.store.release(previous);
 	}
+	firePropertyChange(PROPERTY_DATA, old, data);
+    }
+
+    /**
+     * Releases the payload of this node, without notifying the listeners.
+     * The data is then unknown until the next {@link #setData(byte[])}.
+     */
+    public synchronized void releaseData() {
+	this.store.release(this.data);
+	this.data = DATA_UNKNOWN;
     }
 
     @Override
@@ -85,74 +191,366 @@ public class ZVNodeImpl implements ZVNode {
     public void setExists(boolean newExists) {
 	if (newExists != this.exists) {
 	    this.exists = newExists;
-	    this.pcs.firePropertyChange(PROPERTY_EXISTS, !this.exists,
-		    this.exists);
+	    firePropertyChange(PROPERTY_EXISTS, !this.exists, this.exists);
+	}
+    }
+
+    /**
+     * Returns the number of existing children.
+     * @return the number of children
+     */
+    public int getChildCount() {
+	return this.children.length;
+    }
+
+    /**
+     * Returns the child at the specified position, in name order.
+     * @param index the position
+     * @return the child
+     */
+    public ZVNodeImpl getChild(int index) {
+	return this.children[index];
+    }
+
+    /**
+     * Returns the existing child with the specified name.
+     * @param childName the child name
+     * @return the child, or <code>null</code> if none
+     */
+    public ZVNodeImpl getChild(String childName) {
+	return getChild(childName, 0, childName.length());
+    }
+
+    /**
+     * Returns the existing child named by a segment of a path, without
+     * extracting the segment.
+     * @param path the path
+     * @param start the start of the name in the path
+     * @param end the end of the name in the path, exclusive
+     * @return the child, or <code>null</code> if none
+     */
+    public ZVNodeImpl getChild(String path, int start, int end) {
+	ZVNodeImpl[] array = this.children;
+	int low = 0;
+	int high = array.length - 1;
+	while (low <= high) {
+	    int mid = (low + high) >>> 1;
+	    int cmp = compareName(array[mid].name, path, start, end);
+	    if (cmp < 0) {
+		low = mid + 1;
+	    } else if (cmp > 0) {
+		high = mid - 1;
+	    } else {
+		return array[mid];
+	    }
+	}
+	return null;
+    }
+
+    /**
+     * Compares a name with a segment of a path, as {@link String#compareTo}.
+     */
+    private static int compareName(String name, String path, int start, int end) {
+	int length = Math.min(name.length(), end - start);
+	for (int i = 0; i < length; i++) {
+	    int cmp = name.charAt(i) - path.charAt(start + i);
+	    if (cmp != 0) {
+		return cmp;
+	    }
+	}
+	return name.length() - (end - start);
+    }
+
+    /**
+     * Returns the position of the specified child.
+     * @param child the child
+     * @return the position, or <code>-1</code> if not a child
+     */
+    public int getIndexOfChild(ZVNode child) {
+	return indexOf(this.children, child);
+    }
+
+    /**
+     * Returns the existing children, sorted by name.
+     * @return the children array, which must not be modified
+     */
+    public ZVNodeImpl[] getChildren() {
+	return this.children;
+    }
+
+    /**
+     * Adds the specified children, in one copy of the array.
+     * @param added the new children, not already children of this node
+     */
+    public synchronized void addChildren(Collection<ZVNodeImpl> added) {
+	if (added.isEmpty()) {
+	    return;
+	}
+	ZVNodeImpl[] sorted = added.toArray(new ZVNodeImpl[added.size()]);
+	Arrays.sort(sorted, BY_NAME);
+	ZVNodeImpl[] current = this.children;
+	ZVNodeImpl[] merged = new ZVNodeImpl[current.length + sorted.length];
+	int i = 0;
+	int j = 0;
+	int k = 0;
+	while (i < current.length && j < sorted.length) {
+	    merged[k++] = BY_NAME.compare(current[i], sorted[j]) <= 0 ? current[i++] : sorted[j++];
+	}
+	System.arraycopy(current, i, merged, k, current.length - i);
+	System.arraycopy(sorted, j, merged, k + current.length - i, sorted.length - j);
+	this.children = merged;
+    }
+
+    /**
+     * Removes the specified children, in one copy of the array.
+     * @param removed the children to remove
+     * @return the former positions of the removed children, in the same
+     *         order, or <code>-1</code> for the ones which were not children
+     */
+    public synchronized int[] removeChildren(List<? extends ZVNode> removed) {
+	ZVNodeImpl[] current = this.children;
+	int[] indexes = new int[removed.size()];
+	boolean[] dropped = new boolean[current.length];
+	int count = 0;
+	for (int i = 0; i < indexes.length; i++) {
+	    indexes[i] = indexOf(current, removed.get(i));
+	    if (indexes[i] >= 0 && !dropped[indexes[i]]) {
+		dropped[indexes[i]] = true;
+		count++;
+	    }
+	}
+	if (count > 0) {
+	    ZVNodeImpl[] kept = count == current.length ? NO_CHILDREN
+		    : new ZVNodeImpl[current.length - count];
+	    int k = 0;
+	    for (int i = 0; i < current.length; i++) {
+		if (!dropped[i]) {
+		    kept[k++] = current[i];
+		}
+	    }
+	    this.children = kept;
+	}
+	return indexes;
+    }
+
+    /**
+     * Removes all children.
+     */
+    public synchronized void clearChildren() {
+	this.children = NO_CHILDREN;
+    }
+
+    private static int indexOf(ZVNodeImpl[] array, ZVNode child) {
+	int index = Arrays.binarySearch(array, child, BY_NAME);
+	return index >= 0 && array[index] == child ? index : -1;
+    }
+
+    /**
+     * Checks if the children of this node have been listed at least once.
+     * @return <code>true</code> if the children are known
+     */
+    public boolean isChildrenLoaded() {
+	return this.childrenState == CHILDREN_LOADED;
+    }
+
+    /**
+     * Marks the children of this node as being listed.
+     * @return <code>false</code> if they are already listed or being listed
+     */
+    public synchronized boolean startLoadingChildren() {
+	if (this.childrenState != CHILDREN_UNKNOWN) {
+	    return false;
+	}
+	this.childrenState = CHILDREN_LOADING;
+	return true;
+    }
+
+    /**
+     * Ends the listing started by {@link #startLoadingChildren()}.
+     * @param success <code>true</code> if the children have been listed
+     * @return <code>true</code> if a listing was in progress
+     */
+    public synchronized boolean endLoadingChildren(boolean success) {
+	if (this.childrenState != CHILDREN_LOADING) {
+	    return false;
 	}
+	this.childrenState = success ? CHILDREN_LOADED : CHILDREN_UNKNOWN;
+	return true;
+    }
+
+    /**
+     * Forgets whether the children of this node have been listed.
+     */
+    public synchronized void resetChildrenLoaded() {
+	this.childrenState = CHILDREN_UNKNOWN;
     }
 
     @Override
     public void addPropertyChangeListener(PropertyChangeListener listener) {
-	this.pcs.addPropertyChangeListener(listener);
+	getPropertyChangeSupport().addPropertyChangeListener(listener);
     }
 
     @Override
     public void removePropertyChangeListener(PropertyChangeListener listener) {
-	this.pcs.removePropertyChangeListener(listener);
+	PropertyChangeSupport support = this.pcs;
+	if (support != null) {
+	    support.removePropertyChangeListener(listener);
+	}
     }
 
     @Override
     public void addPropertyChangeListener(String propertyName,
 	    PropertyChangeListener listener) {
-	this.pcs.addPropertyChangeListener(propertyName, listener);
+	getPropertyChangeSupport().addPropertyChangeListener(propertyName, listener);
     }
 
     @Override
     public void removePropertyChangeListener(String propertyName,
 	    PropertyChangeListener listener) {
-	this.pcs.removePropertyChangeListener(propertyName, listener);
+	PropertyChangeSupport support = this.pcs;
+	if (support != null) {
+	    support.removePropertyChangeListener(propertyName, listener);
+	}
+    }
+
+    private PropertyChangeSupport getPropertyChangeSupport() {
+	PropertyChangeSupport support = this.pcs;
+	if (support == null) {
+	    synchronized (this) {
+		support = this.pcs;
+		if (support == null) {
+		    support = new PropertyChangeSupport(this);
+		    this.pcs = support;
+		}
+	    }
+	}
+	return support;
+    }
+
+    private void firePropertyChange(String propertyName, Object oldValue, Object newValue) {
+	PropertyChangeSupport support = this.pcs;
+	if (support != null) {
+	    support.firePropertyChange(propertyName, oldValue, newValue);
+	}
     }
 
     @Override
-    public boolean equals(Object obj) {
-	if (obj == null) {
-	    return false;
+    public String toString() {
+	int length;
+	synchronized (this) {
+	    length = this.store.length(this.data);
 	}
-	if (this.getClass() != obj.getClass()) {
-	    return false;
+	return String.format("ZVNodeImpl[path='%s', " + this.exists
+		+ ", length='%d']", getPath(), length);
+    }
+
+    @Override
+    public synchronized Stat getStat() {
+	if (!this.hasStat) {
+	    return null;
 	}
-	ZVNodeImpl other = (ZVNodeImpl) obj;
-	return this.path.equals(other.path);
+	return new Stat(this.czxid, this.mzxid, this.ctime, this.mtime,
+		this.version, this.cversion, this.aversion,
+		this.ephemeralOwner, this.dataLength, this.numChildren,
+		this.pzxid);
     }
 
     @Override
-    public int hashCode() {
-	return this.path.hashCode();
+    public synchronized boolean hasStat() {
+	return this.hasStat;
     }
 
     @Override
-    public String toString() {
-	return String.format("ZVNodeImpl[path='%s', " + this.exists
-		+ ", length='%d']", this.path, (this.data == null ? -1
-		: this.data.length));
+    public synchronized long getCzxid() {
+	return this.czxid;
+    }
+
+    @Override
+    public synchronized long getMzxid() {
+	return this.mzxid;
+    }
+
+    @Override
+    public synchronized long getPzxid() {
+	return this.pzxid;
+    }
+
+    @Override
+    public synchronized long getCtime() {
+	return this.ctime;
+    }
+
+    @Override
+    public synchronized long getMtime() {
+	return this.mtime;
+    }
+
+    @Override
+    public synchronized int getVersion() {
+	return this.version;
+    }
+
+    @Override
+    public synchronized int getCversion() {
+	return this.cversion;
+    }
+
+    @Override
+    public synchronized int getAversion() {
+	return this.aversion;
+    }
+
+    @Override
+    public synchronized long getEphemeralOwner() {
+	return this.ephemeralOwner;
+    }
+
+    @Override
+    public synchronized int getDataLength() {
+	return this.dataLength;
     }
 
     @Override
-    public Stat getStat() {
-	return this.stat == null ? null : copyStat(this.stat);
+    public synchronized int getNumChildren() {
+	return this.numChildren;
     }
 
     public void setStat(Stat stat) {
-	if (this.stat == null ? stat != null : !this.stat.equals(stat)) {
-	    Stat old = this.stat;
-	    this.stat = stat == null ? null : copyStat(stat);
-	    this.pcs.firePropertyChange(PROPERTY_STAT, old, stat);
+	Stat old;
+	synchronized (this) {
+	    if (stat == null ? !this.hasStat : sameStat(stat)) {
+		return;
+	    }
+	    old = this.pcs == null ? null : getStat();
+	    this.hasStat = stat != null;
+	    if (stat != null) {
+		this.czxid = stat.getCzxid();
+		this.mzxid = stat.getMzxid();
+		this.ctime = stat.getCtime();
+		this.mtime = stat.getMtime();
+		this.version = stat.getVersion();
+		this.cversion = stat.getCversion();
+		this.aversion = stat.getAversion();
+		this.ephemeralOwner = stat.getEphemeralOwner();
+		this.dataLength = stat.getDataLength();
+		this.numChildren = stat.getNumChildren();
+		this.pzxid = stat.getPzxid();
+	    }
 	}
+	firePropertyChange(PROPERTY_STAT, old, stat);
     }
 
-    private static Stat copyStat(Stat stat) {
-	return new Stat(stat.getCzxid(), stat.getMzxid(), stat.getCtime(),
-		stat.getMtime(), stat.getVersion(), stat.getCversion(),
-		stat.getAversion(), stat.getEphemeralOwner(),
-		stat.getDataLength(), stat.getNumChildren(), stat.getPzxid());
+    private boolean sameStat(Stat stat) {
+	return this.hasStat && this.czxid == stat.getCzxid()
+		&& this.mzxid == stat.getMzxid()
+		&& this.ctime == stat.getCtime()
+		&& this.mtime == stat.getMtime()
+		&& this.version == stat.getVersion()
+		&& this.cversion == stat.getCversion()
+		&& this.aversion == stat.getAversion()
+		&& this.ephemeralOwner == stat.getEphemeralOwner()
+		&& this.dataLength == stat.getDataLength()
+		&& this.numChildren == stat.getNumChildren()
+		&& this.pzxid == stat.getPzxid();
     }
 }
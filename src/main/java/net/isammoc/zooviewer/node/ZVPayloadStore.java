@@ -0,0 +1,74 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.node;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Storage of the node payloads.
+ * <p>
+ * A {@link ZVNodeImpl} only keeps the handle of its payload, so the
+ * payloads can live outside of the Java heap. A view returned by
+ * {@link #get(int)} stays readable, with the content it had, after the
+ * handle is released.
+ * </p>
+ */
+public interface ZVPayloadStore {
+
+    /**
+     * Handle of a missing (<code>null</code>) payload. Negative handles are
+     * never stored.
+     */
+    int NO_DATA = -1;
+
+    /**
+     * Stores a payload.
+     * @param data the payload, copied by the store
+     * @return the payload handle, {@link #NO_DATA} if <code>data</code> is
+     *         <code>null</code>
+     */
+    int store(byte[] data);
+
+    /**
+     * Returns a read-only view of a payload.
+     * @param handle the payload handle
+     * @return the payload, or <code>null</code> for {@link #NO_DATA}
+     */
+    ByteBuffer get(int handle);
+
+    /**
+     * Returns the length of a payload.
+     * @param handle the payload handle
+     * @return the length, or <code>-1</code> for {@link #NO_DATA}
+     */
+    int length(int handle);
+
+    /**
+     * Releases a payload. Releasing {@link #NO_DATA} does nothing.
+     * @param handle the payload handle
+     */
+    void release(int handle);
+
+    /**
+     * Returns the total length of the stored payloads.
+     * @return the number of bytes
+     */
+    long getStoredBytes();
+
+    /**
+     * Releases all payloads.
+     */
+    void close();
+}
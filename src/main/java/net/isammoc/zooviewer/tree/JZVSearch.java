@@ -0,0 +1,260 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.tree;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.PatternSyntaxException;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.DefaultListModel;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.tree.TreePath;
+
+import net.isammoc.zooviewer.model.ZVModel;
+import net.isammoc.zooviewer.model.ZVSearchIndex;
+import net.isammoc.zooviewer.node.ZVNode;
+
+/**
+ * Search box over the paths and the data of the nodes, showing the matching
+ * nodes and selecting them in the tree.
+ * <p>
+ * The {@link ZVSearchIndex} is only built on the first search. Searches run
+ * off the EDT, a short while after the last keystroke; a new search drops
+ * the results of the previous one.
+ * </p>
+ */
+public class JZVSearch extends JPanel {
+    /** */
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of results shown. */
+    private static final int MAX_RESULTS = 1000;
+
+    /** Delay after the last keystroke before searching, in ms. */
+    private static final int SEARCH_DELAY = 200;
+
+    private static final ResourceBundle bundle = ResourceBundle.getBundle(JZVSearch.class.getCanonicalName());
+
+    private final ZVModel model;
+    private final JZVTree tree;
+
+    private final JTextField jtfQuery = new JTextField();
+    private final JCheckBox jcbRegex = new JCheckBox(bundle.getString("chk.regex"));
+    private final DefaultListModel<ZVNode> results = new DefaultListModel<>();
+    private final JList<ZVNode> jlResults = new JList<>(this.results);
+    private final JScrollPane resultsPane = new JScrollPane(this.jlResults);
+    private final JLabel jlStatus = new JLabel();
+    private final Timer searchTimer;
+
+    private ZVSearchIndex index;
+    private SwingWorker<List<ZVNode>, Void> worker;
+
+    /**
+     * Creates a search box.
+     *
+     * @param model
+     *            the model
+     * @param tree
+     *            the tree where the results are selected
+     */
+    public JZVSearch(ZVModel model, JZVTree tree) {
+	super(new BorderLayout());
+	this.model = model;
+	this.tree = tree;
+	this.searchTimer = new Timer(SEARCH_DELAY, e -> search());
+	this.searchTimer.setRepeats(false);
+
+	JPanel queryPanel = new JPanel(new BorderLayout());
+	queryPanel.add(this.jtfQuery, BorderLayout.CENTER);
+	queryPanel.add(this.jcbRegex, BorderLayout.EAST);
+	this.jtfQuery.setToolTipText(bundle.getString("txt.query.tooltip"));
+	this.add(queryPanel, BorderLayout.NORTH);
+
+	this.jlResults.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+	this.jlResults.setVisibleRowCount(8);
+	this.jlResults.setCellRenderer(new DefaultListCellRenderer() {
+	    /** */
+	    private static final long serialVersionUID = 1L;
+
+	    @Override
+	    public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+		    boolean isSelected, boolean cellHasFocus) {
+		Object text = value instanceof ZVNode ? ((ZVNode) value).getPath() : value;
+		return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+	    }
+	});
+	this.jlResults.addListSelectionListener(e -> {
+	    if (!e.getValueIsAdjusting()) {
+		select(this.jlResults.getSelectedValue());
+	    }
+	});
+	this.resultsPane.setVisible(false);
+	this.add(this.resultsPane, BorderLayout.CENTER);
+	this.add(this.jlStatus, BorderLayout.SOUTH);
+
+	this.jtfQuery.getDocument().addDocumentListener(new DocumentListener() {
+	    @Override
+	    public void insertUpdate(DocumentEvent e) {
+		JZVSearch.this.searchTimer.restart();
+	    }
+
+	    @Override
+	    public void removeUpdate(DocumentEvent e) {
+		JZVSearch.this.searchTimer.restart();
+	    }
+
+	    @Override
+	    public void changedUpdate(DocumentEvent e) {
+		JZVSearch.this.searchTimer.restart();
+	    }
+	});
+	this.jcbRegex.addActionListener(e -> this.searchTimer.restart());
+	// Enter and Down go to the results
+	this.jtfQuery.addActionListener(e -> {
+	    if (!this.results.isEmpty()) {
+		this.jlResults.setSelectedIndex(0);
+	    }
+	});
+	this.jtfQuery.addKeyListener(new KeyAdapter() {
+	    @Override
+	    public void keyPressed(KeyEvent e) {
+		if (e.getKeyCode() == KeyEvent.VK_DOWN && !JZVSearch.this.results.isEmpty()) {
+		    JZVSearch.this.jlResults.setSelectedIndex(0);
+		    JZVSearch.this.jlResults.requestFocusInWindow();
+		}
+	    }
+	});
+    }
+
+    /**
+     * Stops updating the search index, if any.
+     */
+    public void close() {
+	if (this.index != null) {
+	    this.index.close();
+	}
+    }
+
+    /**
+     * Starts a search on the current query, replacing the running one.
+     */
+    private void search() {
+	if (this.worker != null) {
+	    this.worker.cancel(false);
+	    this.worker = null;
+	}
+	String query = this.jtfQuery.getText();
+	if (query.isEmpty()) {
+	    this.results.clear();
+	    this.resultsPane.setVisible(false);
+	    this.jlStatus.setText("");
+	    revalidate();
+	    return;
+	}
+	if (this.index == null) {
+	    this.index = new ZVSearchIndex(this.model);
+	}
+	ZVSearchIndex searched = this.index;
+	boolean regex = this.jcbRegex.isSelected();
+	this.worker = new SwingWorker<List<ZVNode>, Void>() {
+	    private long duration;
+
+	    @Override
+	    protected List<ZVNode> doInBackground() {
+		long start = System.nanoTime();
+		List<ZVNode> found = searched.search(query, regex, MAX_RESULTS + 1);
+		this.duration = (System.nanoTime() - start) / 1000000;
+		return found;
+	    }
+
+	    @Override
+	    protected void done() {
+		if (isCancelled() || JZVSearch.this.worker != this) {
+		    return;
+		}
+		JZVSearch.this.worker = null;
+		try {
+		    show(get(), this.duration, searched.isReady());
+		} catch (ExecutionException e) {
+		    if (e.getCause() instanceof PatternSyntaxException) {
+			showError(MessageFormat.format(bundle.getString("lbl.status.invalid"),
+				((PatternSyntaxException) e.getCause()).getDescription()));
+		    } else {
+			showError(String.valueOf(e.getCause()));
+		    }
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+	    }
+	};
+	this.worker.execute();
+    }
+
+    private void show(List<ZVNode> found, long duration, boolean complete) {
+	this.results.clear();
+	for (ZVNode node : found.subList(0, Math.min(found.size(), MAX_RESULTS))) {
+	    this.results.addElement(node);
+	}
+	String key = found.size() > MAX_RESULTS ? "lbl.status.more" : "lbl.status.count";
+	String status = MessageFormat.format(bundle.getString(key), Math.min(found.size(), MAX_RESULTS), duration);
+	if (!complete) {
+	    // Searched again once the index is complete
+	    status += " " + bundle.getString("lbl.status.indexing");
+	    this.searchTimer.restart();
+	}
+	this.jlStatus.setText(status);
+	this.resultsPane.setVisible(!found.isEmpty());
+	revalidate();
+    }
+
+    private void showError(String message) {
+	this.results.clear();
+	this.resultsPane.setVisible(false);
+	this.jlStatus.setText(message);
+	revalidate();
+    }
+
+    /**
+     * Selects a node in the tree, expanding its ancestors.
+     *
+     * @param node
+     *            the node, may be <code>null</code>
+     */
+    private void select(ZVNode node) {
+	if (node == null || !node.exists()) {
+	    return;
+	}
+	TreePath path = ((ZVTreeModel) this.tree.getModel()).getTreePath(node);
+	this.tree.setSelectionPath(path);
+	this.tree.scrollPathToVisible(path);
+    }
+}
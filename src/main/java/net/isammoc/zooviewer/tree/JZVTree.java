@@ -15,6 +15,8 @@
 package net.isammoc.zooviewer.tree;
 
 import javax.swing.JTree;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
 
 import net.isammoc.zooviewer.model.ZVModel;
 import net.isammoc.zooviewer.node.ZVNode;
@@ -24,11 +26,25 @@ public class JZVTree extends JTree {
     private static final long serialVersionUID = 1L;
 
     public JZVTree(ZVModel model) {
-	super(new ZVTreeModel(model));
+	this(new ZVTreeModel(model));
     }
 
     public JZVTree(ZVTreeModel model) {
 	super(model);
+	// Children are fetched when a node is expanded for the first time
+	this.addTreeWillExpandListener(new TreeWillExpandListener() {
+	    @Override
+	    public void treeWillExpand(TreeExpansionEvent event) {
+		Object node = event.getPath().getLastPathComponent();
+		if (node instanceof ZVNode) {
+		    ((ZVTreeModel) getModel()).loadChildren((ZVNode) node);
+		}
+	    }
+
+	    @Override
+	    public void treeWillCollapse(TreeExpansionEvent event) {
+	    }
+	});
     }
 
     @Override
@@ -14,8 +14,18 @@
  */
 package net.isammoc.zooviewer.tree;
 
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import javax.swing.Timer;
 import javax.swing.event.EventListenerList;
 import javax.swing.event.TreeModelEvent;
 import javax.swing.event.TreeModelListener;
@@ -28,72 +38,414 @@ import net.isammoc.zooviewer.node.ZVNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Swing model of the ZooKeeper tree.
+ * <p>
+ * Model events are received on any thread, queued and coalesced per parent
+ * node. They are delivered on the EDT at most once every
+ * {@link #PROPERTY_FLUSH_INTERVAL} ms, as one multi-index event per parent
+ * and kind of change. The children known by the listeners are kept per
+ * parent, so the tree keeps a consistent view until a change is delivered.
+ * </p>
+ */
 public class ZVTreeModel implements TreeModel {
 
+    /**
+     * Child displayed under a node whose children are being fetched.
+     */
+    public static final Object LOADING = new Object() {
+	@Override
+	public String toString() {
+	    return "loading\u2026";
+	}
+    };
+
+    /** System property defining the minimum delay between two deliveries of changes, in ms. */
+    public static final String PROPERTY_FLUSH_INTERVAL = "zooviewer.tree.flushInterval";
+
+    /** System property defining the number of changes under a node above which its structure is reloaded. */
+    public static final String PROPERTY_MAX_BATCH = "zooviewer.tree.maxBatch";
+
+    private static final Comparator<ZVNode> BY_NAME = Comparator.comparing(ZVNode::getName);
+
     private final Logger log = LoggerFactory.getLogger(getClass());
 
     /** Listeners. */
     protected EventListenerList listenerList = new EventListenerList();
     private final ZVModel model;
 
+    /** Children as known by the listeners, per parent. EDT only. */
+    private final Map<ZVNode, List<ZVNode>> shown = new HashMap<>();
+
+    /** Paths of the displayed nodes, sharing their ancestors. EDT only. */
+    private final Map<ZVNode, TreePath> treePaths = new HashMap<>();
+
+    /** Nodes displayed with the 'loading' placeholder. EDT only. */
+    private final Set<ZVNode> placeholders = new LinkedHashSet<>();
+
+    /** Changes not delivered yet, guarded by itself. */
+    private final PendingChanges pending = new PendingChanges();
+
+    private final Timer flushTimer;
+
+    private final int maxBatch;
+
+    private volatile long lastDeliveryLatency;
+    private volatile long lastFlushDuration;
+    private volatile int lastFlushSize;
+
+    /**
+     * Changes received from the model since the last delivery.
+     */
+    private static final class PendingChanges {
+	private boolean rootChanged;
+	private Set<ZVNode> structure = new LinkedHashSet<>();
+	private Set<ZVNode> loaded = new LinkedHashSet<>();
+	private Set<ZVNode> data = new LinkedHashSet<>();
+	private int count;
+	/** Time of the first pending change, 0 if none. */
+	private long since;
+    }
+
     public ZVTreeModel(ZVModel model) {
 	this.model = model;
+	this.maxBatch = Integer.getInteger(PROPERTY_MAX_BATCH, 1000);
+	this.flushTimer = new Timer(Integer.getInteger(PROPERTY_FLUSH_INTERVAL, 100), e -> flush());
+	this.flushTimer.setRepeats(false);
 	model.addModelListener(new ZVModelListener() {
 
 	    @Override
 	    public void nodeDeleted(ZVNode oldNode, int oldIndex) {
-		log.info("nodeDeleted : " + oldNode);
-		ZVTreeModel.this.fireTreeNodesRemoved(this, ZVTreeModel.this
-			.getTreePath(oldNode).getParentPath(),
-			new int[] { oldIndex }, new Object[] { oldNode });
+		ZVTreeModel.this.enqueue(p -> p.structure.add(ZVTreeModel.this.model.getParent(oldNode)));
 	    }
 
 	    @Override
 	    public void nodeDataChanged(ZVNode node) {
-	        log.info("nodeDataChanged : " + node);
-	        // FLE+
-	        log.info("nodeDataChanged : " + node);
-	        TreePath parentPath = ZVTreeModel.this.getTreePath(node)
-	        .getParentPath();
-	        int index = ZVTreeModel.this.getIndexOfChild(
-	                parentPath.getLastPathComponent(), node);
-	        ZVTreeModel.this.fireTreeNodesChanged(this,
-	                parentPath.getPath(), new int[] { index },
-	                new Object[] { node });
+		ZVTreeModel.this.enqueue(p -> p.data.add(node));
+	    }
+
+	    @Override
+	    public void childrenLoaded(ZVNode parent) {
+		ZVTreeModel.this.enqueue(p -> p.loaded.add(parent));
 	    }
 
 	    @Override
 	    public void nodeCreated(ZVNode newNode) {
-		log.info("nodeCreated : " + newNode);
-		if (newNode == ZVTreeModel.this.getRoot()) {
-		    ZVTreeModel.this.fireTreeStructureChanged(this,
-			    new TreePath(newNode));
+		ZVNode parent = ZVTreeModel.this.model.getParent(newNode);
+		if (parent == null) {
+		    ZVTreeModel.this.enqueue(p -> p.rootChanged = true);
 		} else {
-		    try {
-			TreePath treePath = ZVTreeModel.this.getTreePath(
-				newNode).getParentPath();
-			ZVTreeModel.this.fireTreeNodesInserted(this, treePath,
-				new int[] { ZVTreeModel.this.getIndexOfChild(
-					treePath.getLastPathComponent(),
-					newNode) }, new Object[] { newNode });
-			// System.out.println("fire done");
-		    } catch (Exception e) {
-			e.printStackTrace();
-		    }
+		    ZVTreeModel.this.enqueue(p -> p.structure.add(parent));
 		}
 	    }
 	});
     }
 
+    /**
+     * Records a change, and schedules its delivery if none is pending.
+     * 
+     * @param change
+     *            the change, applied under the lock of the pending changes
+     */
+    private void enqueue(java.util.function.Consumer<PendingChanges> change) {
+	boolean schedule;
+	synchronized (this.pending) {
+	    change.accept(this.pending);
+	    this.pending.count++;
+	    schedule = this.pending.since == 0;
+	    if (schedule) {
+		this.pending.since = System.nanoTime();
+	    }
+	}
+	if (schedule) {
+	    this.flushTimer.restart();
+	}
+    }
+
+    /**
+     * Delivers the pending changes to the listeners. Called on the EDT.
+     */
+    private void flush() {
+	PendingChanges changes;
+	synchronized (this.pending) {
+	    changes = new PendingChanges();
+	    changes.rootChanged = this.pending.rootChanged;
+	    changes.structure = this.pending.structure;
+	    changes.loaded = this.pending.loaded;
+	    changes.data = this.pending.data;
+	    changes.count = this.pending.count;
+	    changes.since = this.pending.since;
+	    this.pending.rootChanged = false;
+	    this.pending.structure = new LinkedHashSet<>();
+	    this.pending.loaded = new LinkedHashSet<>();
+	    this.pending.data = new LinkedHashSet<>();
+	    this.pending.count = 0;
+	    this.pending.since = 0;
+	}
+	long start = System.nanoTime();
+	if (changes.rootChanged) {
+	    this.shown.clear();
+	    this.treePaths.clear();
+	    this.placeholders.clear();
+	    this.fireTreeStructureChanged(this, new TreePath(this.getRoot()));
+	} else {
+	    for (ZVNode parent : changes.loaded) {
+		// Replaces the 'loading' placeholder with the real children
+		if (this.placeholders.remove(parent)) {
+		    this.fireTreeStructureChanged(this, this.getTreePath(parent));
+		}
+	    }
+	    for (ZVNode parent : changes.structure) {
+		this.deliverChildrenChanged(parent);
+	    }
+	    this.deliverDataChanged(changes.data);
+	}
+	long end = System.nanoTime();
+	this.lastDeliveryLatency = TimeUnit.NANOSECONDS.toMillis(end - changes.since);
+	this.lastFlushDuration = TimeUnit.NANOSECONDS.toMillis(end - start);
+	this.lastFlushSize = changes.count;
+	log.debug("Delivered {} changes in {} ms, {} ms after the first one",
+		new Object[] { changes.count, this.lastFlushDuration,
+			this.lastDeliveryLatency });
+    }
+
+    /**
+     * Notifies the listeners of the children created or deleted under a
+     * node, by comparing its children with the ones they know.
+     * 
+     * @param parent
+     *            the parent node
+     */
+    private void deliverChildrenChanged(ZVNode parent) {
+	if (parent == null || this.placeholders.contains(parent)) {
+	    return;
+	}
+	List<ZVNode> old = this.shown.get(parent);
+	if (old == null) {
+	    // Children never displayed, only the leaf state may change
+	    this.deliverNodeChanged(parent);
+	    return;
+	}
+	if (!parent.exists()) {
+	    this.forget(parent);
+	    return;
+	}
+	List<ZVNode> now = this.model.getChildren(parent);
+
+	// Both lists are sorted by name
+	List<Integer> removed = new ArrayList<>();
+	List<Integer> inserted = new ArrayList<>();
+	int i = 0;
+	int j = 0;
+	while (i < old.size() || j < now.size()) {
+	    if (i == old.size()) {
+		inserted.add(j++);
+	    } else if (j == now.size()) {
+		removed.add(i++);
+	    } else if (old.get(i) == now.get(j)) {
+		i++;
+		j++;
+	    } else {
+		int cmp = BY_NAME.compare(old.get(i), now.get(j));
+		if (cmp <= 0) {
+		    // Deleted, or deleted then created again
+		    removed.add(i++);
+		}
+		if (cmp >= 0) {
+		    inserted.add(j++);
+		}
+	    }
+	}
+	if (removed.isEmpty() && inserted.isEmpty()) {
+	    return;
+	}
+
+	TreePath treePath = this.getTreePath(parent);
+	if (removed.size() + inserted.size() > this.maxBatch) {
+	    for (int index : removed) {
+		this.forget(old.get(index));
+	    }
+	    this.shown.put(parent, now);
+	    this.fireTreeStructureChanged(this, treePath);
+	    return;
+	}
+	if (!removed.isEmpty()) {
+	    int[] indexes = new int[removed.size()];
+	    Object[] nodes = new Object[removed.size()];
+	    List<ZVNode> remaining = new ArrayList<>(old);
+	    for (int k = removed.size() - 1; k >= 0; k--) {
+		indexes[k] = removed.get(k);
+		nodes[k] = remaining.remove(indexes[k]);
+		this.forget((ZVNode) nodes[k]);
+	    }
+	    this.shown.put(parent, remaining);
+	    this.fireTreeNodesRemoved(this, treePath, indexes, nodes);
+	}
+	this.shown.put(parent, now);
+	if (!inserted.isEmpty()) {
+	    int[] indexes = new int[inserted.size()];
+	    Object[] nodes = new Object[inserted.size()];
+	    for (int k = 0; k < indexes.length; k++) {
+		indexes[k] = inserted.get(k);
+		nodes[k] = now.get(indexes[k]);
+	    }
+	    this.fireTreeNodesInserted(this, treePath, indexes, nodes);
+	}
+    }
+
+    /**
+     * Notifies the listeners of the nodes whose data changed, grouped by
+     * parent.
+     * 
+     * @param nodes
+     *            the changed nodes
+     */
+    private void deliverDataChanged(Set<ZVNode> nodes) {
+	Map<ZVNode, List<Integer>> byParent = new LinkedHashMap<>();
+	for (ZVNode node : nodes) {
+	    ZVNode parent = this.model.getParent(node);
+	    if (parent == null) {
+		this.fireTreeNodesChanged(this, this.getTreePath(node), null, null);
+		continue;
+	    }
+	    int index = this.indexOfShown(parent, node);
+	    if (index >= 0) {
+		byParent.computeIfAbsent(parent, p -> new ArrayList<>()).add(index);
+	    }
+	}
+	for (Map.Entry<ZVNode, List<Integer>> entry : byParent.entrySet()) {
+	    List<Integer> indexList = entry.getValue();
+	    Collections.sort(indexList);
+	    List<ZVNode> children = this.shown.get(entry.getKey());
+	    int[] indexes = new int[indexList.size()];
+	    Object[] changed = new Object[indexList.size()];
+	    for (int k = 0; k < indexes.length; k++) {
+		indexes[k] = indexList.get(k);
+		changed[k] = children.get(indexes[k]);
+	    }
+	    this.fireTreeNodesChanged(this, this.getTreePath(entry.getKey()), indexes, changed);
+	}
+    }
+
+    /**
+     * Notifies the listeners that a node itself changed.
+     * 
+     * @param node
+     *            the node
+     */
+    private void deliverNodeChanged(ZVNode node) {
+	ZVNode parent = this.model.getParent(node);
+	if (parent == null) {
+	    this.fireTreeNodesChanged(this, this.getTreePath(node), null, null);
+	    return;
+	}
+	int index = this.indexOfShown(parent, node);
+	if (index >= 0) {
+	    this.fireTreeNodesChanged(this, this.getTreePath(parent),
+		    new int[] { index }, new Object[] { node });
+	}
+    }
+
+    /**
+     * Forgets the children known by the listeners under a removed node.
+     * 
+     * @param node
+     *            the removed node
+     */
+    private void forget(ZVNode node) {
+	this.placeholders.remove(node);
+	this.treePaths.remove(node);
+	List<ZVNode> children = this.shown.remove(node);
+	if (children != null) {
+	    for (ZVNode child : children) {
+		this.forget(child);
+	    }
+	}
+    }
+
+    /**
+     * Returns the children of a node as known by the listeners.
+     * <p>
+     * The children are captured from the model the first time they are
+     * requested once loaded.
+     * </p>
+     * 
+     * @param node
+     *            the node
+     * @param load
+     *            <code>true</code> to fetch the children if not loaded yet,
+     *            and display them as loading meanwhile
+     * @return the children, or <code>null</code> if not loaded
+     */
+    private List<ZVNode> shownChildren(ZVNode node, boolean load) {
+	List<ZVNode> children = this.shown.get(node);
+	if (children == null && !this.placeholders.contains(node)) {
+	    if (this.model.isChildrenLoaded(node)) {
+		children = this.model.getChildren(node);
+		this.shown.put(node, children);
+	    } else if (load) {
+		this.placeholders.add(node);
+		this.model.loadChildren(node);
+	    }
+	}
+	return children;
+    }
+
+    private int indexOfShown(ZVNode parent, ZVNode child) {
+	List<ZVNode> children = this.shown.get(parent);
+	if (children == null) {
+	    return -1;
+	}
+	int index = Collections.binarySearch(children, child, BY_NAME);
+	return index >= 0 && children.get(index) == child ? index : -1;
+    }
+
+    /**
+     * Returns the delay between the first change of the last delivery and
+     * the end of its delivery.
+     * 
+     * @return the latency in ms
+     */
+    public long getLastDeliveryLatency() {
+	return this.lastDeliveryLatency;
+    }
+
+    /**
+     * Returns the time spent on the EDT by the last delivery.
+     * 
+     * @return the duration in ms
+     */
+    public long getLastFlushDuration() {
+	return this.lastFlushDuration;
+    }
+
+    /**
+     * Returns the number of model changes coalesced in the last delivery.
+     * 
+     * @return the number of changes
+     */
+    public int getLastFlushSize() {
+	return this.lastFlushSize;
+    }
+
+    /**
+     * Returns the path of a node, from the root.
+     * <p>
+     * The path is built by walking up the parents, up to the nearest
+     * ancestor whose path is known, and kept until the node is removed.
+     * Called on the EDT.
+     * </p>
+     * 
+     * @param node
+     *            the node
+     * @return the path
+     */
     public TreePath getTreePath(ZVNode node) {
-	String path = node.getPath();
-	TreePath treePath = new TreePath(this.model.getNode("/"));
-	String currentPath = "";
-	StringTokenizer st = new StringTokenizer(path, "/", false);
-	while (st.hasMoreTokens()) {
-	    currentPath += "/" + st.nextToken();
-	    treePath = treePath.pathByAddingChild(this.model
-		    .getNode(currentPath));
+	TreePath treePath = this.treePaths.get(node);
+	if (treePath == null) {
+	    ZVNode parent = this.model.getParent(node);
+	    treePath = parent == null ? new TreePath(node) : this.getTreePath(parent).pathByAddingChild(node);
+	    this.treePaths.put(node, treePath);
 	}
 	return treePath;
     }
@@ -103,31 +455,57 @@ public class ZVTreeModel implements TreeModel {
 	return this.model.getNode("/");
     }
 
+    /**
+     * Requests the children of the specified node to be fetched.
+     * 
+     * @param node
+     *            the node about to be expanded
+     */
+    public void loadChildren(ZVNode node) {
+	this.model.loadChildren(node);
+    }
+
     @Override
-    public ZVNode getChild(Object parent, int index) {
+    public Object getChild(Object parent, int index) {
 	if (!(parent instanceof ZVNode)) {
 	    throw new IllegalArgumentException("parent must be a ZVNode");
 	}
 
-	return this.model.getChildren((ZVNode) parent).get(index);
+	List<ZVNode> children = this.shownChildren((ZVNode) parent, true);
+	return children == null ? LOADING : children.get(index);
     }
 
     @Override
     public int getChildCount(Object parent) {
+	if (parent == LOADING) {
+	    return 0;
+	}
 	if (!(parent instanceof ZVNode)) {
 	    throw new IllegalArgumentException("parent must be a ZVNode");
 	}
 
-	return this.model.getChildren((ZVNode) parent).size();
+	List<ZVNode> children = this.shownChildren((ZVNode) parent, true);
+	if (children == null) {
+	    return this.isLeaf(parent) ? 0 : 1;
+	}
+	return children.size();
     }
 
     @Override
     public boolean isLeaf(Object node) {
+	if (node == LOADING) {
+	    return true;
+	}
 	if (!(node instanceof ZVNode)) {
 	    throw new IllegalArgumentException("node must be a ZVNode");
 	}
 
-	return this.model.getChildren((ZVNode) node).size() == 0;
+	List<ZVNode> children = this.shownChildren((ZVNode) node, false);
+	if (children == null) {
+	    // Children not fetched yet, relies on the stat
+	    return ((ZVNode) node).getNumChildren() == 0;
+	}
+	return children.isEmpty();
     }
 
     @Override
@@ -140,10 +518,14 @@ public class ZVTreeModel implements TreeModel {
 	if (!(parent instanceof ZVNode)) {
 	    throw new IllegalArgumentException("parent must be a ZVNode");
 	}
+	if (child == LOADING) {
+	    return 0;
+	}
 	if (!(child instanceof ZVNode)) {
 	    throw new IllegalArgumentException("child must be a ZVNode");
 	}
-	return this.model.getChildren((ZVNode) parent).indexOf(child);
+	this.shownChildren((ZVNode) parent, true);
+	return this.indexOfShown((ZVNode) parent, (ZVNode) child);
     }
 
     /**
@@ -185,7 +567,7 @@ public class ZVTreeModel implements TreeModel {
      *            the changed elements
      * @see EventListenerList
      */
-    protected void fireTreeNodesChanged(Object source, Object[] path,
+    protected void fireTreeNodesChanged(Object source, TreePath path,
                                         int[] childIndices, Object[] children) {
         // Guaranteed to return a non-null array
         Object[] listeners = this.listenerList.getListenerList();
@@ -0,0 +1,5 @@
+@echo off
+
+rem Command-line mode: zvcli <connection string | snapshot file> <command> [path] [arguments]
+
+java -cp "lib\*;zooviewer.jar" -Djava.awt.headless=true net.isammoc.zooviewer.Cli %*
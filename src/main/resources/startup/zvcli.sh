@@ -0,0 +1,5 @@
+#!/bin/sh
+
+# Command-line mode: zvcli.sh <connection string | snapshot file> <command> [path] [arguments]
+
+java -cp lib/*:zooviewer.jar -Djava.awt.headless=true net.isammoc.zooviewer.Cli "$@"
@@ -0,0 +1,484 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import net.isammoc.zooviewer.model.ZVModel;
+import net.isammoc.zooviewer.model.ZVModelConfig;
+import net.isammoc.zooviewer.model.ZVModelImpl;
+import net.isammoc.zooviewer.node.ZVNode;
+import net.isammoc.zooviewer.tree.ZVTreeModel;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scale regression suite: generates large tree shapes on an in-process
+ * server, measures the model and the tree model on them, and compares the
+ * numbers with a stored baseline.
+ * <p>
+ * The shapes are generated in turn on the same server, each one deleted
+ * before the next: a wide fan-out, a deep chain, large payloads and a
+ * balanced tree. For each one, the time to the full model and the heap per
+ * node are measured. Then the throughput of data changes through the
+ * model, and of creations through the tree model, is measured on
+ * high-churn nodes. A server is only started once, as a stopped server is
+ * not always released at once.
+ * </p>
+ * <p>
+ * The exit code is <code>1</code> if a number is worse than its baseline by
+ * more than the tolerance: <code>scale.tolerance</code> for the times and
+ * rates, <code>scale.heapTolerance</code> for the heap sizes, which are less
+ * noisy. Run with <code>-XX:+UseSerialGC</code> for stable heap sizes. With <code>--record</code>, the numbers are saved
+ * as the new baseline instead. The shapes are set by the <code>scale.*</code>
+ * system properties. {@link ScaleSuiteTest} runs the suite on small shapes,
+ * without comparing the numbers.
+ * </p>
+ */
+public final class ScaleSuite {
+
+    public static final String PROPERTY_WIDE = "scale.wide";
+    public static final String PROPERTY_DEPTH = "scale.depth";
+    public static final String PROPERTY_CHAINS = "scale.chains";
+    public static final String PROPERTY_PAYLOADS = "scale.payloads";
+    public static final String PROPERTY_PAYLOAD_SIZE = "scale.payloadSize";
+    public static final String PROPERTY_FANOUT = "scale.fanout";
+    public static final String PROPERTY_CHURN_NODES = "scale.churnNodes";
+    public static final String PROPERTY_CHURN_UPDATES = "scale.churnUpdates";
+    public static final String PROPERTY_INSERTS = "scale.inserts";
+    public static final String PROPERTY_RUNS = "scale.runs";
+    public static final String PROPERTY_TOLERANCE = "scale.tolerance";
+    public static final String PROPERTY_HEAP_TOLERANCE = "scale.heapTolerance";
+
+    private static final String DEFAULT_BASELINE = "scale-baseline.properties";
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long RELEASE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Best measured numbers, by name; the rates end with "perSec" and are better when higher. */
+    private final Map<String, Double> results = new LinkedHashMap<>();
+
+    private final ZooKeeperFixture fixture;
+
+    /** Number of runs of each measure, the best one being kept. */
+    private final int runs = Integer.getInteger(PROPERTY_RUNS, 3);
+
+    ScaleSuite(ZooKeeperFixture fixture) {
+        this.fixture = fixture;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean record = false;
+        File baseline = new File(DEFAULT_BASELINE);
+        for (String arg : args) {
+            if ("--record".equals(arg)) {
+                record = true;
+            } else if (arg.startsWith("-")) {
+                System.err.println("Usage: ScaleSuite [--record] [baseline file]");
+                System.exit(2);
+            } else {
+                baseline = new File(arg);
+            }
+        }
+        int payloadSize = Integer.getInteger(PROPERTY_PAYLOAD_SIZE, 4 * 1024 * 1024);
+        // Before any ZooKeeper class is loaded, by the server or the clients
+        setDefault("jute.maxbuffer", Integer.toString(payloadSize + 1024 * 1024));
+        // The server shares the heap: no cached responses in the measures
+        setDefault("zookeeper.maxResponseCacheSize", "0");
+        setDefault("zookeeper.maxGetChildrenResponseCacheSize", "0");
+        // Nor snapshots written meanwhile
+        setDefault("zookeeper.snapCount", Integer.toString(Integer.MAX_VALUE / 2));
+
+        if (!isSerialGc()) {
+            System.err.println("The heap numbers are only stable with -XX:+UseSerialGC");
+        }
+        ScaleSuite suite;
+        try (ZooKeeperFixture fixture = ZooKeeperFixture.start()) {
+            suite = new ScaleSuite(fixture);
+            suite.run(payloadSize);
+        }
+        if (record) {
+            suite.record(baseline);
+            System.out.println("Baseline saved to " + baseline);
+            System.exit(0);
+        }
+        System.exit(suite.compare(baseline, Double.parseDouble(System.getProperty(PROPERTY_TOLERANCE, "0.5")),
+                Double.parseDouble(System.getProperty(PROPERTY_HEAP_TOLERANCE, "0.2"))));
+    }
+
+    private static boolean isSerialGc() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if ("MarkSweepCompact".equals(collector.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void setDefault(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Measures all the shapes.
+     * @param payloadSize the size of the large payloads
+     */
+    void run(int payloadSize) throws Exception {
+        int wide = Integer.getInteger(PROPERTY_WIDE, 200000);
+        int depth = Integer.getInteger(PROPERTY_DEPTH, 1000);
+        int chains = Integer.getInteger(PROPERTY_CHAINS, 10);
+        int payloads = Integer.getInteger(PROPERTY_PAYLOADS, 16);
+        int fanout = Integer.getInteger(PROPERTY_FANOUT, 100);
+
+        populate("wide", () -> fixture.createTree("/wide", wide, 1, 64));
+        populate("deep", () -> {
+            fixture.createTree("/deep", 0, 0, 16);
+            for (int i = 0; i < chains; i++) {
+                fixture.createChain("/deep/c" + i, depth);
+            }
+        });
+        populate("payload", () -> fixture.createTree("/payload", payloads, 1, payloadSize));
+        populate("tree", () -> fixture.createTree("/tree", fanout, 2, 256));
+        churn(Integer.getInteger(PROPERTY_CHURN_NODES, 100), Integer.getInteger(PROPERTY_CHURN_UPDATES, 20000));
+        inserts(Integer.getInteger(PROPERTY_INSERTS, 10000));
+    }
+
+    /**
+     * Returns the best measured numbers.
+     * @return the numbers, by name, in the order of the suite
+     */
+    Map<String, Double> getResults() {
+        return results;
+    }
+
+    /**
+     * Generator of a tree shape.
+     */
+    private interface Shape {
+        void create() throws Exception;
+    }
+
+    /**
+     * Keeps a measured number if better than the previous runs.
+     */
+    private void keep(String name, double value) {
+        Double best = results.get(name);
+        if (best == null || (name.endsWith("perSec") ? value > best : value < best)) {
+            results.put(name, value);
+        }
+    }
+
+    private static ZVModelConfig config() {
+        ZVModelConfig config = new ZVModelConfig();
+        config.setCacheDir(null);
+        return config;
+    }
+
+    /**
+     * Measures the population of a model on a shape.
+     */
+    private void populate(String name, Shape shape) throws Exception {
+        System.out.println("Generating the " + name + " shape...");
+        try {
+            shape.create();
+            for (int run = 0; run < runs; run++) {
+                awaitReleased(populateRun(name));
+            }
+        } finally {
+            fixture.delete("/" + name);
+        }
+    }
+
+    private WeakReference<ZVModel> populateRun(String name) throws Exception {
+        fixture.rollCommittedLog();
+        long before = usedHeapAfterGc();
+        resetPeakHeap();
+        long start = System.nanoTime();
+        ZVModel model = new ZVModelImpl(fixture.getConnectString(), config());
+        try {
+            ZooKeeperFixture.awaitPopulated(model);
+            double millis = (System.nanoTime() - start) / 1e6;
+            long peak = peakHeap();
+            long retained = usedHeapAfterGc();
+            int nodes = count(model, model.getNode("/"));
+            keep(name + ".populate.ms", millis);
+            keep(name + ".heap.retained.bytesPerNode", (double) (retained - before) / nodes);
+            keep(name + ".heap.peak.bytesPerNode", (double) (peak - before) / nodes);
+        } finally {
+            model.close();
+        }
+        return new WeakReference<>(model);
+    }
+
+    /**
+     * Measures the rate of data changes applied to the model, until it shows
+     * the last version of every changed node.
+     */
+    private void churn(int nodes, int updates) throws Exception {
+        System.out.println("Updating " + nodes + " nodes " + updates + " times...");
+        for (int run = 0; run < runs; run++) {
+            awaitReleased(churnRun(nodes, updates));
+        }
+    }
+
+    private WeakReference<ZVModel> churnRun(int nodes, int updates) throws Exception {
+        try {
+            fixture.createTree("/churn", nodes, 1, 16);
+            ZVModel model = new ZVModelImpl(fixture.getConnectString(), config());
+            try {
+                ZooKeeperFixture.awaitPopulated(model);
+                String[] paths = new String[nodes];
+                ZVNode[] changed = new ZVNode[nodes];
+                for (int i = 0; i < nodes; i++) {
+                    paths[i] = "/churn/n" + i;
+                    changed[i] = model.getNode(paths[i]);
+                }
+                long start = System.nanoTime();
+                fixture.churn(paths, updates);
+                long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                for (int i = 0; i < nodes; i++) {
+                    int version = updates / nodes + (i < updates % nodes ? 1 : 0);
+                    while (changed[i].getVersion() < version) {
+                        checkDeadline(deadline, "churn");
+                        Thread.sleep(1);
+                    }
+                }
+                keep("churn.updates.perSec", updates / ((System.nanoTime() - start) / 1e9));
+            } finally {
+                model.close();
+            }
+            return new WeakReference<>(model);
+        } finally {
+            fixture.delete("/churn");
+        }
+    }
+
+    /**
+     * Measures the rate of creations delivered by the tree model under an
+     * expanded node.
+     */
+    private void inserts(int count) throws Exception {
+        System.out.println("Creating " + count + " nodes under an expanded node...");
+        for (int run = 0; run < runs; run++) {
+            awaitReleased(insertsRun(count));
+        }
+    }
+
+    private WeakReference<ZVModel> insertsRun(int count) throws Exception {
+        try {
+            fixture.createTree("/inserts", 0, 0, 16);
+            ZVModel model = new ZVModelImpl(fixture.getConnectString(), config());
+            try {
+                ZooKeeperFixture.awaitPopulated(model);
+                ZVNode parent = model.getNode("/inserts");
+                ZVTreeModel treeModel = new ZVTreeModel(model);
+                AtomicInteger shown = new AtomicInteger();
+                SwingUtilities.invokeAndWait(() -> {
+                    treeModel.getChildCount(parent);
+                    treeModel.addTreeModelListener(new InsertCounter(treeModel, parent, shown));
+                });
+                long start = System.nanoTime();
+                fixture.createChildren("/inserts", count, 16);
+                long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while (shown.get() < count) {
+                    checkDeadline(deadline, "inserts");
+                    Thread.sleep(1);
+                }
+                keep("tree.inserts.perSec", count / ((System.nanoTime() - start) / 1e9));
+            } finally {
+                model.close();
+            }
+            return new WeakReference<>(model);
+        } finally {
+            fixture.delete("/inserts");
+        }
+    }
+
+    /**
+     * Follows the number of children of a node known by the tree listeners.
+     */
+    private static final class InsertCounter implements TreeModelListener {
+        private final ZVTreeModel treeModel;
+        private final ZVNode parent;
+        private final AtomicInteger shown;
+
+        InsertCounter(ZVTreeModel treeModel, ZVNode parent, AtomicInteger shown) {
+            this.treeModel = treeModel;
+            this.parent = parent;
+            this.shown = shown;
+        }
+
+        @Override
+        public void treeNodesInserted(TreeModelEvent e) {
+            if (e.getTreePath().getLastPathComponent() == parent) {
+                shown.addAndGet(e.getChildIndices().length);
+            }
+        }
+
+        @Override
+        public void treeStructureChanged(TreeModelEvent e) {
+            // Too many changes at once, reloaded
+            shown.set(treeModel.getChildCount(parent));
+        }
+
+        @Override
+        public void treeNodesChanged(TreeModelEvent e) {
+        }
+
+        @Override
+        public void treeNodesRemoved(TreeModelEvent e) {
+        }
+    }
+
+    /**
+     * Waits until a closed model is collected, so that it is not counted in
+     * the next measure. Fails if the model leaks.
+     */
+    private static void awaitReleased(WeakReference<ZVModel> model) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT_MILLIS;
+        while (model.get() != null) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Closed model still reachable after " + RELEASE_TIMEOUT_MILLIS + " ms");
+            }
+            System.gc();
+            Thread.sleep(10);
+        }
+    }
+
+    private static void checkDeadline(long deadline, String name) {
+        if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException(name + " not done after " + TIMEOUT_MILLIS + " ms");
+        }
+    }
+
+    private static int count(ZVModel model, ZVNode node) {
+        int count = 1;
+        for (ZVNode child : model.getChildren(node)) {
+            count += count(model, child);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the used heap once stable.
+     */
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 20; i++) {
+            System.gc();
+            Thread.sleep(100);
+            long previous = used;
+            used = runtime.totalMemory() - runtime.freeMemory();
+            if (Math.abs(previous - used) < 1024 * 1024) {
+                break;
+            }
+        }
+        return used;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the peak usages of the heap pools since the last
+     * reset, an upper bound of the peak heap.
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private void record(File file) throws IOException {
+        // In the order of the suite, rather than the one of Properties.store()
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.ISO_8859_1))) {
+            out.println("# Scale suite baseline, recorded by ScaleSuite --record");
+            for (Map.Entry<String, Double> result : results.entrySet()) {
+                out.println(result.getKey() + "=" + String.format(Locale.ROOT, "%.1f", result.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Prints the numbers next to their baseline.
+     * @param file the baseline
+     * @param tolerance the accepted relative regression of the times and rates
+     * @param heapTolerance the accepted relative regression of the heap sizes
+     * @return <code>1</code> if a number regressed past the tolerance, <code>0</code> otherwise
+     */
+    private int compare(File file, double tolerance, double heapTolerance) throws IOException {
+        Properties baseline = new Properties();
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                baseline.load(in);
+            }
+        } else {
+            System.out.println("No baseline " + file + ", nothing compared");
+        }
+        int status = 0;
+        System.out.printf("%-36s %14s %14s %8s%n", "Metric", "Value", "Baseline", "Change");
+        for (Map.Entry<String, Double> result : results.entrySet()) {
+            String name = result.getKey();
+            double value = result.getValue();
+            String reference = baseline.getProperty(name);
+            if (reference == null) {
+                System.out.printf("%-36s %14.1f %14s%n", name, value, "-");
+                continue;
+            }
+            double expected = Double.parseDouble(reference);
+            double change = expected == 0 ? 0 : (value - expected) / Math.abs(expected);
+            // Lower is better, except for the rates
+            boolean regressed = name.endsWith("perSec") ? change < -tolerance
+                    : change > (name.contains(".heap.") ? heapTolerance : tolerance);
+            System.out.printf("%-36s %14.1f %14.1f %+7.0f%%%s%n", name, value, expected, change * 100,
+                    regressed ? "  REGRESSION" : "");
+            if (regressed) {
+                status = 1;
+            }
+        }
+        return status;
+    }
+}
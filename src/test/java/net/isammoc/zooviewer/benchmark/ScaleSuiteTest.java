@@ -0,0 +1,83 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link ScaleSuite} on small shapes: every measure must complete
+ * and every closed model must be released, but the numbers are not
+ * compared with the baseline.
+ */
+public class ScaleSuiteTest {
+
+    private static final int PAYLOAD_SIZE = 64 * 1024;
+
+    private static final String[] SHAPES = { "wide", "deep", "payload", "tree" };
+
+    @Test
+    public void measuresSmallShapes() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(ScaleSuite.PROPERTY_WIDE, "2000");
+        properties.put(ScaleSuite.PROPERTY_DEPTH, "50");
+        properties.put(ScaleSuite.PROPERTY_CHAINS, "2");
+        properties.put(ScaleSuite.PROPERTY_PAYLOADS, "4");
+        properties.put(ScaleSuite.PROPERTY_FANOUT, "10");
+        properties.put(ScaleSuite.PROPERTY_CHURN_NODES, "10");
+        properties.put(ScaleSuite.PROPERTY_CHURN_UPDATES, "500");
+        properties.put(ScaleSuite.PROPERTY_INSERTS, "200");
+        properties.put(ScaleSuite.PROPERTY_RUNS, "1");
+        Map<String, String> previous = new HashMap<>();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            previous.put(property.getKey(), System.setProperty(property.getKey(), property.getValue()));
+        }
+        try (ZooKeeperFixture fixture = ZooKeeperFixture.start()) {
+            ScaleSuite suite = new ScaleSuite(fixture);
+            suite.run(PAYLOAD_SIZE);
+
+            Set<String> expected = new LinkedHashSet<>();
+            for (String shape : SHAPES) {
+                expected.add(shape + ".populate.ms");
+                expected.add(shape + ".heap.retained.bytesPerNode");
+                expected.add(shape + ".heap.peak.bytesPerNode");
+            }
+            expected.addAll(Arrays.asList("churn.updates.perSec", "tree.inserts.perSec"));
+            Map<String, Double> results = suite.getResults();
+            assertEquals(expected, results.keySet());
+            for (String name : expected) {
+                if (!name.contains(".heap.")) {
+                    assertTrue(name + " = " + results.get(name), results.get(name) > 0);
+                }
+            }
+        } finally {
+            for (Map.Entry<String, String> property : previous.entrySet()) {
+                if (property.getValue() == null) {
+                    System.clearProperty(property.getKey());
+                } else {
+                    System.setProperty(property.getKey(), property.getValue());
+                }
+            }
+        }
+    }
+}
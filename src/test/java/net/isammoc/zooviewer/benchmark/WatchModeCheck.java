@@ -0,0 +1,111 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import net.isammoc.zooviewer.model.ZVModel;
+import net.isammoc.zooviewer.model.ZVModelConfig;
+import net.isammoc.zooviewer.model.ZVModelImpl;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks how the model watches the tree, on an in-process server: with a
+ * persistent recursive watch when the server accepts it, even after a
+ * dropped connection, and with a watch per node when the server does not
+ * support it.
+ * <p>
+ * The exit code is <code>1</code> if the model did not choose the expected
+ * mode, or missed a node created once populated. The same checks run as
+ * {@link WatchModeCheckTest}.
+ * </p>
+ */
+public final class WatchModeCheck {
+
+    private static final String TOP = "/watch-check";
+    private static final int FANOUT = 10;
+    private static final int LEVELS = 2;
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final ZooKeeperFixture fixture;
+    private final int nodes;
+
+    /**
+     * Creates the watched tree.
+     */
+    WatchModeCheck(ZooKeeperFixture fixture) throws KeeperException, InterruptedException {
+        this.fixture = fixture;
+        this.nodes = fixture.createTree(TOP, FANOUT, LEVELS, 16);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int failures = 0;
+        try (ZooKeeperFixture fixture = ZooKeeperFixture.start()) {
+            WatchModeCheck check = new WatchModeCheck(fixture);
+            failures += check.check("supported", 0, null, true) ? 0 : 1;
+            failures += check.check("dropped once", 1, null, true) ? 0 : 1;
+            failures += check.check("unimplemented", 0, KeeperException.Code.UNIMPLEMENTED, false) ? 0 : 1;
+            failures += check.check("dropped", Integer.MAX_VALUE, null, false) ? 0 : 1;
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Opens a model on a server answering the <code>addWatch</code> requests
+     * as specified, and checks its watch mode.
+     * @return <code>true</code> if the model chose the expected mode and saw
+     *         a node created once populated
+     */
+    boolean check(String name, int drops, KeeperException.Code error, boolean recursive) throws Exception {
+        fixture.reject(ZooDefs.OpCode.addWatch, drops, error);
+        int before = fixture.getServerWatchCount();
+        ZVModelConfig config = new ZVModelConfig();
+        config.setCacheDir(null);
+        config.setRecursiveWatchPath("/");
+        ZVModel model = new ZVModelImpl(fixture.getConnectString(), config);
+        String created = TOP + "/n0/n0/" + name.replace(' ', '-');
+        try {
+            ZooKeeperFixture.awaitPopulated(model);
+            int watches = fixture.getServerWatchCount() - before;
+            // A recursive watch, or a data and a child watch on most nodes
+            boolean watchedRecursively = watches < nodes;
+            fixture.createChain(created, 0);
+            boolean seen = await(model, created);
+            System.out.printf("%-14s %-9s %6d watches, created node %s%n", name,
+                    watchedRecursively ? "recursive" : "per node", watches, seen ? "seen" : "missed");
+            if (watchedRecursively != recursive || !seen) {
+                System.out.println("  expected a " + (recursive ? "recursive watch" : "watch per node"));
+                return false;
+            }
+            return true;
+        } finally {
+            model.close();
+            fixture.reject(ZooDefs.OpCode.addWatch, 0, null);
+            fixture.delete(created);
+        }
+    }
+
+    private static boolean await(ZVModel model, String path) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (model.getNode(path) == null) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
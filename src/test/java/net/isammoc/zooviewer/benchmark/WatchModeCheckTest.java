@@ -0,0 +1,66 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import org.apache.zookeeper.KeeperException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link WatchModeCheck} cases on an in-process server: the model
+ * must use a recursive watch when the server accepts it, and a watch per
+ * node otherwise, and see the nodes created once populated in both cases.
+ */
+public class WatchModeCheckTest {
+
+    private static ZooKeeperFixture fixture;
+    private static WatchModeCheck check;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        fixture = ZooKeeperFixture.start();
+        check = new WatchModeCheck(fixture);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (fixture != null) {
+            fixture.close();
+        }
+    }
+
+    @Test
+    public void watchesRecursivelyWhenSupported() throws Exception {
+        assertTrue(check.check("supported", 0, null, true));
+    }
+
+    @Test
+    public void retriesRecursiveWatchAfterDroppedConnection() throws Exception {
+        assertTrue(check.check("dropped once", 1, null, true));
+    }
+
+    @Test
+    public void watchesEachNodeWhenUnimplemented() throws Exception {
+        assertTrue(check.check("unimplemented", 0, KeeperException.Code.UNIMPLEMENTED, false));
+    }
+
+    @Test
+    public void watchesEachNodeWhenAlwaysDropped() throws Exception {
+        assertTrue(check.check("dropped", Integer.MAX_VALUE, null, false));
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.benchmark;
+
+import net.isammoc.zooviewer.model.ZVModel;
+import net.isammoc.zooviewer.node.ZVNode;
+import org.apache.jute.BinaryInputArchive;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZKUtil;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.proto.ReplyHeader;
+import org.apache.zookeeper.proto.RequestHeader;
+import org.apache.zookeeper.server.ByteBufferInputStream;
+import org.apache.zookeeper.server.ServerCnxn;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ZooKeeper server running in the test or benchmark JVM, on a free local
+ * port and a temporary directory, so that the tests and the benchmarks need
+ * no external server.
+ */
+public final class ZooKeeperFixture implements Closeable {
+
+    /** Maximum size of the creations sent in one multi, below the default jute.maxbuffer. */
+    private static final int BATCH_BYTES = 512 * 1024;
+
+    /** Number of deletions sent in one multi. */
+    private static final int BATCH_SIZE = 1000;
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Maximum number of outstanding asynchronous updates. */
+    private static final int WINDOW = 1000;
+
+    private final File dir;
+    private final FilteringServer server;
+    private final ServerCnxnFactory factory;
+    private final ZooKeeper zk;
+
+    private final List<Op> batch = new ArrayList<>();
+    private int batchBytes;
+
+    private ZooKeeperFixture(File dir, FilteringServer server, ServerCnxnFactory factory, ZooKeeper zk) {
+        this.dir = dir;
+        this.server = server;
+        this.factory = factory;
+        this.zk = zk;
+    }
+
+    /**
+     * Starts a server and connects a client to it.
+     * @return the fixture
+     * @throws IOException if the server cannot be started
+     * @throws InterruptedException if interrupted while connecting
+     */
+    public static ZooKeeperFixture start() throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("zooviewer-bench").toFile();
+        FilteringServer server = new FilteringServer(dir);
+        ServerCnxnFactory factory = ServerCnxnFactory.createFactory(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+        factory.startup(server);
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper zk = new ZooKeeper("127.0.0.1:" + factory.getLocalPort(), 30000, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        });
+        if (!connected.await(30, TimeUnit.SECONDS)) {
+            throw new IOException("Cannot connect to the local server");
+        }
+        return new ZooKeeperFixture(dir, server, factory, zk);
+    }
+
+    /**
+     * Returns the connect string of the server.
+     * @return the connect string
+     */
+    public String getConnectString() {
+        return "127.0.0.1:" + factory.getLocalPort();
+    }
+
+    /**
+     * Makes the server fail the requests of a type, as a server not
+     * supporting them: the next requests close the connection, as servers
+     * do on unknown requests, and the following ones are answered with an
+     * error.
+     * @param type the request type, from {@link ZooDefs.OpCode}
+     * @param drops the number of requests closing the connection
+     * @param error the error answered after the drops, or <code>null</code>
+     *            to serve the requests again
+     */
+    public void reject(int type, int drops, KeeperException.Code error) {
+        server.reject(type, drops, error);
+    }
+
+    /**
+     * Returns the number of watches the server holds, for all the clients.
+     * @return the watch count
+     */
+    public int getServerWatchCount() {
+        return server.getZKDatabase().getDataTree().getWatchCount();
+    }
+
+    /**
+     * Creates a node and a full tree of nodes under it.
+     * @param path the path of the top node, whose parent must exist
+     * @param fanout the number of children of each inner node
+     * @param levels the number of levels under the top node
+     * @param size the size of the data of each node, in bytes
+     * @return the number of created nodes
+     * @throws KeeperException if a node cannot be created
+     * @throws InterruptedException if interrupted
+     */
+    public int createTree(String path, int fanout, int levels, int size) throws KeeperException, InterruptedException {
+        int count = addTree(path, fanout, levels, payload(size));
+        flush();
+        return count;
+    }
+
+    private int addTree(String path, int fanout, int levels, byte[] data)
+            throws KeeperException, InterruptedException {
+        add(path, data);
+        int count = 1;
+        if (levels > 0) {
+            for (int i = 0; i < fanout; i++) {
+                count += addTree(path + "/n" + i, fanout, levels - 1, data);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Creates children under an existing node.
+     * @param parent the parent path
+     * @param count the number of children
+     * @param size the size of the data of each child, in bytes
+     * @throws KeeperException if a node cannot be created
+     * @throws InterruptedException if interrupted
+     */
+    public void createChildren(String parent, int count, int size) throws KeeperException, InterruptedException {
+        byte[] data = payload(size);
+        for (int i = 0; i < count; i++) {
+            add(parent + "/n" + i, data);
+        }
+        flush();
+    }
+
+    /**
+     * Updates the data of nodes in turn, as fast as the server accepts it.
+     * @param paths the updated nodes
+     * @param updates the total number of updates
+     * @throws KeeperException if an update fails
+     * @throws InterruptedException if interrupted
+     */
+    public void churn(String[] paths, int updates) throws KeeperException, InterruptedException {
+        Semaphore window = new Semaphore(WINDOW);
+        int[] failure = { 0 };
+        byte[] data = payload(16);
+        for (int i = 0; i < updates; i++) {
+            window.acquire();
+            zk.setData(paths[i % paths.length], data, -1, (rc, path, ctx, stat) -> {
+                if (rc != KeeperException.Code.OK.intValue()) {
+                    failure[0] = rc;
+                }
+                window.release();
+            }, null);
+        }
+        window.acquire(WINDOW);
+        if (failure[0] != 0) {
+            throw KeeperException.create(KeeperException.Code.get(failure[0]));
+        }
+    }
+
+    /**
+     * Creates a chain of nested nodes.
+     * @param path the path of the top node, whose parent must exist
+     * @param depth the number of nodes under the top node
+     * @return the path of the deepest node
+     * @throws KeeperException if a node cannot be created
+     * @throws InterruptedException if interrupted
+     */
+    public String createChain(String path, int depth) throws KeeperException, InterruptedException {
+        byte[] data = payload(16);
+        add(path, data);
+        for (int i = 0; i < depth; i++) {
+            path += "/d" + i;
+            add(path, data);
+        }
+        flush();
+        return path;
+    }
+
+    /**
+     * Deletes a node and all its descendants.
+     * @param path the path of the top node
+     * @throws KeeperException if a node cannot be deleted
+     * @throws InterruptedException if interrupted
+     */
+    public void delete(String path) throws KeeperException, InterruptedException {
+        ZKUtil.deleteRecursive(zk, path, BATCH_SIZE);
+    }
+
+    /**
+     * Pushes the previous transactions out of the proposals kept in memory by
+     * the server, so that they are not released while the heap is measured.
+     * @throws KeeperException if a transaction fails
+     * @throws InterruptedException if interrupted
+     */
+    public void rollCommittedLog() throws KeeperException, InterruptedException {
+        String scratch = "/zooviewer-bench-scratch";
+        zk.create(scratch, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        churn(new String[] { scratch }, server.getZKDatabase().commitLogCount);
+        zk.delete(scratch, -1);
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        return data;
+    }
+
+    private void add(String path, byte[] data) throws KeeperException, InterruptedException {
+        batch.add(Op.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+        batchBytes += path.length() + data.length;
+        if (batchBytes >= BATCH_BYTES) {
+            flush();
+        }
+    }
+
+    private void flush() throws KeeperException, InterruptedException {
+        if (!batch.isEmpty()) {
+            zk.multi(batch);
+            batch.clear();
+            batchBytes = 0;
+        }
+    }
+
+    /**
+     * Waits until a model has listed the children of all its nodes.
+     * <p>
+     * A node whose children are loaded already holds all of them, so the
+     * tree is complete once no reachable node is left to list.
+     * </p>
+     * @param model an eager model
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void awaitPopulated(ZVModel model) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!isPopulated(model, model.getNode("/"))) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Model not populated after " + TIMEOUT_MILLIS + " ms");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static boolean isPopulated(ZVModel model, ZVNode node) {
+        if (node == null || !model.isChildrenLoaded(node)) {
+            return false;
+        }
+        for (ZVNode child : model.getChildren(node)) {
+            if (!isPopulated(model, child)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the client and the server, and deletes their files.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            zk.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        factory.shutdown();
+        server.shutdown();
+        delete(dir);
+    }
+
+    /**
+     * Server failing the requests of a type on demand.
+     */
+    private static final class FilteringServer extends ZooKeeperServer {
+        private volatile int rejectedType = Integer.MIN_VALUE;
+        private volatile KeeperException.Code error;
+        private final AtomicInteger drops = new AtomicInteger();
+
+        FilteringServer(File dir) throws IOException {
+            super(dir, dir, 2000);
+        }
+
+        void reject(int type, int drops, KeeperException.Code error) {
+            this.error = error;
+            this.drops.set(drops);
+            this.rejectedType = drops > 0 || error != null ? type : Integer.MIN_VALUE;
+        }
+
+        @Override
+        public void processPacket(ServerCnxn cnxn, ByteBuffer incomingBuffer) throws IOException {
+            if (rejectedType != Integer.MIN_VALUE) {
+                RequestHeader header = new RequestHeader();
+                header.deserialize(BinaryInputArchive.getArchive(
+                        new ByteBufferInputStream(incomingBuffer.duplicate())), "header");
+                if (header.getType() == rejectedType) {
+                    if (drops.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                        throw new IOException("Request type " + header.getType() + " dropped");
+                    }
+                    KeeperException.Code code = error;
+                    if (code != null) {
+                        cnxn.sendResponse(new ReplyHeader(header.getXid(), 0, code.intValue()), null, "response");
+                        return;
+                    }
+                }
+            }
+            super.processPacket(cnxn, incomingBuffer);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
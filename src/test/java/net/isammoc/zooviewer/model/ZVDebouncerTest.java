@@ -0,0 +1,159 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the states of a refresh key: scheduled, running, and running with
+ * a request received meanwhile.
+ */
+public class ZVDebouncerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private ScheduledExecutorService executor;
+    private ZVDebouncer debouncer;
+
+    /** Completion callbacks of the refreshes started, not run yet. */
+    private final BlockingQueue<Runnable> running = new LinkedBlockingQueue<>();
+    private final AtomicInteger runs = new AtomicInteger();
+
+    /** Refresh completing when the test runs its callback. */
+    private final Consumer<Runnable> task = done -> {
+        runs.incrementAndGet();
+        running.add(done);
+    };
+
+    @Before
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        debouncer = new ZVDebouncer(executor, 0);
+    }
+
+    @After
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Keeps the executor busy until the gate opens, so that the refreshes
+     * stay scheduled.
+     */
+    private CountDownLatch hold() {
+        CountDownLatch gate = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        return gate;
+    }
+
+    /**
+     * Waits for the refreshes scheduled so far to start.
+     */
+    private void flush() throws Exception {
+        executor.submit(() -> {
+        }).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private Runnable started() throws InterruptedException {
+        Runnable done = running.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("Refresh not started", done);
+        return done;
+    }
+
+    @Test
+    public void mergesRequestsWhileScheduled() throws Exception {
+        CountDownLatch gate = hold();
+        debouncer.submit("a", task);
+        debouncer.submit("a", task);
+        debouncer.submit("a", task);
+        gate.countDown();
+        started().run();
+        flush();
+        assertEquals(1, runs.get());
+        assertEquals(2, debouncer.getCollapsedCount());
+    }
+
+    @Test
+    public void refreshesOnceMoreAfterRequestsWhileRunning() throws Exception {
+        debouncer.submit("a", task);
+        Runnable first = started();
+        debouncer.submit("a", task);
+        debouncer.submit("a", task);
+        assertEquals(2, debouncer.getCollapsedCount());
+        flush();
+        assertEquals(1, runs.get());
+
+        first.run();
+        started().run();
+        flush();
+        assertNull(running.poll());
+        assertEquals(2, runs.get());
+
+        // The key is free again
+        debouncer.submit("a", task);
+        started().run();
+        assertEquals(3, runs.get());
+        assertEquals(2, debouncer.getCollapsedCount());
+    }
+
+    @Test
+    public void refreshesKeysApart() throws Exception {
+        CountDownLatch gate = hold();
+        debouncer.submit("a", task);
+        debouncer.submit("b", task);
+        debouncer.submit("a", task);
+        gate.countDown();
+        started().run();
+        started().run();
+        flush();
+        assertEquals(2, runs.get());
+        assertEquals(1, debouncer.getCollapsedCount());
+    }
+
+    @Test
+    public void freesTheKeyOfAFailedRefresh() throws Exception {
+        debouncer.submit("a", done -> {
+            runs.incrementAndGet();
+            throw new IllegalStateException("Expected by the test");
+        });
+        flush();
+        assertEquals(1, runs.get());
+        debouncer.submit("a", task);
+        started().run();
+        assertEquals(2, runs.get());
+        assertEquals(0, debouncer.getCollapsedCount());
+    }
+}
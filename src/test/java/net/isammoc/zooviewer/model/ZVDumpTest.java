@@ -0,0 +1,164 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.apache.zookeeper.data.Stat;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the writing and reading of the dump files.
+ */
+public class ZVDumpTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Stat stat(long zxid, int version, long ephemeralOwner) {
+        Stat stat = new Stat();
+        stat.setCzxid(zxid);
+        stat.setMzxid(zxid + 1);
+        stat.setPzxid(zxid + 2);
+        stat.setCtime(1000 + zxid);
+        stat.setMtime(2000 + zxid);
+        stat.setVersion(version);
+        stat.setEphemeralOwner(ephemeralOwner);
+        return stat;
+    }
+
+    @Test
+    public void readsWhatIsWritten() throws IOException {
+        File file = folder.newFile("dump");
+        try (ZVDump.Writer writer = new ZVDump.Writer(file, "/a", 3)) {
+            writer.write("", "root".getBytes("UTF-8"), stat(10, 1, 0));
+            writer.write("b", null, stat(30, 0, 0));
+            writer.write("b/c", new byte[0], stat(20, 4, 42));
+            writer.finish(false);
+            assertEquals(32, writer.getZxid());
+        }
+
+        try (ZVDump.Reader reader = new ZVDump.Reader(file)) {
+            assertEquals("/a", reader.getRootPath());
+            assertEquals(3, reader.getExpected());
+            assertEquals(-1, reader.getZxid());
+
+            ZVDump.Record record = reader.next();
+            assertEquals("", record.path);
+            assertArrayEquals("root".getBytes("UTF-8"), record.data);
+            assertEquals(1010, record.ctime);
+            assertEquals(2010, record.mtime);
+            assertEquals(1, record.version);
+            assertFalse(record.ephemeral);
+
+            record = reader.next();
+            assertEquals("b", record.path);
+            assertNull(record.data);
+
+            record = reader.next();
+            assertEquals("b/c", record.path);
+            assertEquals(0, record.data.length);
+            assertEquals(4, record.version);
+            assertTrue(record.ephemeral);
+
+            assertNull(reader.next());
+            assertNull(reader.next());
+            assertEquals(32, reader.getZxid());
+            assertFalse(reader.isFuzzy());
+        }
+    }
+
+    @Test
+    public void keepsTheFuzzyFlag() throws IOException {
+        File file = folder.newFile("dump");
+        try (ZVDump.Writer writer = new ZVDump.Writer(file, "/", -1)) {
+            writer.write("", null, stat(5, 0, 0));
+            writer.finish(true);
+        }
+        try (ZVDump.Reader reader = new ZVDump.Reader(file)) {
+            assertEquals(-1, reader.getExpected());
+            // Only known once the trailer is read
+            assertFalse(reader.isFuzzy());
+            reader.next();
+            assertNull(reader.next());
+            assertTrue(reader.isFuzzy());
+        }
+    }
+
+    @Test
+    public void rejectsATruncatedDump() throws IOException {
+        File file = folder.newFile("dump");
+        try (ZVDump.Writer writer = new ZVDump.Writer(file, "/a", 2)) {
+            writer.write("", null, stat(1, 0, 0));
+            writer.write("b", null, stat(2, 0, 0));
+        }
+        try (ZVDump.Reader reader = new ZVDump.Reader(file)) {
+            reader.next();
+            reader.next();
+            reader.next();
+            fail("Truncated dump read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Truncated dump after 2 records"));
+        }
+    }
+
+    @Test
+    public void readsTheFirstVersion() throws IOException {
+        File file = folder.newFile("dump");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(0x5A564431);
+            out.writeUTF("/a");
+            out.writeLong(1);
+            out.writeByte(1);
+            out.writeUTF("");
+            out.writeLong(1);
+            out.writeLong(2);
+            out.writeInt(3);
+            out.writeBoolean(false);
+            out.writeInt(-1);
+            out.writeByte(0);
+            out.writeLong(1);
+            out.writeLong(7);
+        }
+        try (ZVDump.Reader reader = new ZVDump.Reader(file)) {
+            assertEquals(3, reader.next().version);
+            assertNull(reader.next());
+            assertEquals(7, reader.getZxid());
+            assertFalse(reader.isFuzzy());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(0x12345678);
+        }
+        new ZVDump.Reader(file).close();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the extraction of the literals of a regular expression, which must
+ * never require text a match may lack.
+ */
+public class ZVSearchIndexTest {
+
+    private static final String TEXT = "Abcd abcabc";
+
+    /**
+     * Checks that the pattern matches the text, and that every literal
+     * extracted from it is in the text.
+     */
+    private static void assertKeepsMatch(String regex) {
+        assertTrue(regex, Pattern.compile(regex).matcher(TEXT).find());
+        for (String literal : ZVSearchIndex.literals(regex)) {
+            assertTrue(regex + " requires " + literal, TEXT.toLowerCase().contains(literal));
+        }
+    }
+
+    @Test
+    public void extractsPlainText() {
+        assertEquals(Arrays.asList("foo", "bar"), ZVSearchIndex.literals("foo.*bar"));
+        assertEquals(Collections.singletonList("abc"), ZVSearchIndex.literals("ABC"));
+    }
+
+    @Test
+    public void dropsOptionalCharacters() {
+        assertEquals(Collections.singletonList("abc"), ZVSearchIndex.literals("abcd?"));
+        assertEquals(Collections.singletonList("abc"), ZVSearchIndex.literals("abcd{0,2}"));
+    }
+
+    @Test
+    public void skipsGroupsClassesAndAlternations() {
+        assertEquals(Collections.singletonList("xyz"), ZVSearchIndex.literals("(abc)+[def]xyz"));
+        assertEquals(Collections.emptyList(), ZVSearchIndex.literals("abc|def"));
+    }
+
+    @Test
+    public void keepsEscapedPunctuation() {
+        assertEquals(Collections.singletonList("a.b"), ZVSearchIndex.literals("a\\.b"));
+    }
+
+    @Test
+    public void consumesEscapeArguments() {
+        assertKeepsMatch("\\x41bc");
+        assertKeepsMatch("\\x{41}bc");
+        assertKeepsMatch("\\u0041bcd");
+        assertKeepsMatch("\\0101bc");
+        assertKeepsMatch("\\cAbcd|abc");
+        assertKeepsMatch("(?<w>abc)\\k<w>");
+        assertKeepsMatch("\\p{Lu}bcd");
+        assertKeepsMatch("\\P{Ll}bcd");
+        assertKeepsMatch("(abc)\\1");
+    }
+
+    @Test
+    public void extractsQuotedText() {
+        assertEquals(Collections.singletonList("a.b"), ZVSearchIndex.literals("\\Qa.b\\E"));
+        assertKeepsMatch("\\Qabc\\Eabc");
+    }
+
+    @Test
+    public void ignoresPatternsWithInlineFlags() {
+        assertKeepsMatch("(?x)a b c");
+        assertEquals(Collections.emptyList(), ZVSearchIndex.literals("(?x)a b c"));
+        assertEquals(Collections.emptyList(), ZVSearchIndex.literals("(?iu)abc"));
+        assertEquals(Collections.emptyList(), ZVSearchIndex.literals("x(?-i:abc)"));
+    }
+
+    @Test
+    public void keepsLookaroundsAndNamedGroupsApart() {
+        List<String> literals = ZVSearchIndex.literals("(?<=a)bcd");
+        assertEquals(Collections.singletonList("bcd"), literals);
+    }
+}
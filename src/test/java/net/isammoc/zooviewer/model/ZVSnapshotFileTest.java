@@ -0,0 +1,93 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the reading of the values of a mapped file, in the big-endian
+ * layout of the Jute binary archive.
+ */
+public class ZVSnapshotFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private ZVSnapshotFile write() throws IOException {
+        file = folder.newFile("snapshot");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x5A4B534E);
+            out.writeLong(0x0102030405060708L);
+            // A Jute string: its UTF-8 length, then its bytes
+            byte[] path = "/z\u00e9".getBytes("UTF-8");
+            out.writeInt(path.length);
+            out.write(path);
+            out.writeInt(-1);
+            out.writeInt(0);
+            out.writeByte(0x7F);
+        }
+        return new ZVSnapshotFile(file);
+    }
+
+    @Test
+    public void readsValues() throws IOException {
+        ZVSnapshotFile snapshot = write();
+        assertEquals(file.length(), snapshot.size());
+        assertEquals(0x5A4B534E, snapshot.getInt(0));
+        assertEquals(0x0102030405060708L, snapshot.getLong(4));
+        assertEquals("/z\u00e9", snapshot.getString(12));
+        assertNull(snapshot.getString(12 + 4 + 4));
+        assertEquals("", snapshot.getString(12 + 4 + 4 + 4));
+        assertEquals(0x7F, snapshot.getByte(snapshot.size() - 1));
+    }
+
+    @Test
+    public void slicesWithoutCopy() throws IOException {
+        ZVSnapshotFile snapshot = write();
+        ByteBuffer slice = snapshot.slice(4, 8);
+        assertTrue(slice.isReadOnly());
+        assertEquals(0, slice.position());
+        assertEquals(8, slice.remaining());
+        assertEquals(0x0102030405060708L, slice.getLong());
+        assertEquals(0, snapshot.slice(snapshot.size(), 0).remaining());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsReadsPastTheEnd() throws IOException {
+        ZVSnapshotFile snapshot = write();
+        snapshot.getInt(snapshot.size() - 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsStringsPastTheEnd() throws IOException {
+        ZVSnapshotFile snapshot = write();
+        // The length of the path, read one byte early
+        snapshot.getString(11);
+    }
+}
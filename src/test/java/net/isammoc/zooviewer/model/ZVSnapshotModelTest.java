@@ -0,0 +1,131 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.model;
+
+import net.isammoc.zooviewer.node.ZVNode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.server.DataTree;
+import org.apache.zookeeper.server.persistence.FileSnap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the model of a snapshot written by the ZooKeeper server.
+ */
+public class ZVSnapshotModelTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File snapshot;
+    private ZVSnapshotModel model;
+
+    @Before
+    public void writeSnapshot() throws Exception {
+        DataTree tree = new DataTree();
+        tree.createNode("/a", "A".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 0, 10, 1000);
+        tree.createNode("/a/b", "B".getBytes("UTF-8"), ZooDefs.Ids.READ_ACL_UNSAFE, 0, 0, 11, 1001);
+        tree.createNode("/a/b/c", null, ZooDefs.Ids.OPEN_ACL_UNSAFE, 42, 0, 12, 1002);
+        tree.createNode("/a/d", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 1, 13, 1003);
+        tree.createNode("/e", "E".getBytes("UTF-8"), ZooDefs.Ids.OPEN_ACL_UNSAFE, 0, 0, 14, 1004);
+        snapshot = new File(folder.getRoot(), "snapshot.e");
+        new FileSnap(folder.getRoot()).serialize(tree, new HashMap<>(), snapshot, false);
+        model = new ZVSnapshotModel(snapshot);
+    }
+
+    @After
+    public void close() {
+        if (model != null) {
+            model.close();
+        }
+    }
+
+    private List<String> childNames(String path) {
+        List<String> names = new ArrayList<>();
+        for (ZVNode child : model.getChildren(model.getNode(path))) {
+            names.add(child.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void readsTheTree() {
+        assertTrue(childNames("/").containsAll(Arrays.asList("a", "e", "zookeeper")));
+        List<String> children = childNames("/a");
+        assertEquals(2, children.size());
+        assertTrue(children.containsAll(Arrays.asList("b", "d")));
+        assertEquals(1, model.getChildCount(model.getNode("/a/b")));
+        assertTrue(model.getChildren(model.getNode("/e")).isEmpty());
+        assertNull(model.getNode("/a/x"));
+        assertNull(model.getNode("/a/b/c/d"));
+    }
+
+    @Test
+    public void readsDataAndStat() throws IOException {
+        ZVNode node = model.getNode("/a/b");
+        assertArrayEquals("B".getBytes("UTF-8"), node.getData());
+        assertEquals(11, node.getCzxid());
+        assertEquals(11, node.getMzxid());
+        assertEquals(1001, node.getCtime());
+        assertEquals(1, node.getDataLength());
+
+        ZVNode ephemeral = model.getNode("/a/b/c");
+        assertNull(ephemeral.getData());
+        assertEquals(42, ephemeral.getEphemeralOwner());
+        assertEquals(0, model.getNode("/a/d").getData().length);
+        assertEquals(1, model.getNode("/e").getData().length);
+    }
+
+    @Test
+    public void rejectsATruncatedSnapshot() throws IOException {
+        model.close();
+        model = null;
+        File truncated = new File(folder.getRoot(), "snapshot.truncated");
+        try (RandomAccessFile in = new RandomAccessFile(snapshot, "r");
+                RandomAccessFile out = new RandomAccessFile(truncated, "rw")) {
+            byte[] head = new byte[(int) in.length() / 2];
+            in.readFully(head);
+            out.write(head);
+        }
+        try {
+            new ZVSnapshotModel(truncated).close();
+            fail("Truncated snapshot opened");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("is truncated"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new ZVSnapshotModel(folder.newFile("empty")).close();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.isammoc.zooviewer.node;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the off-heap payload store: reads, releases, compaction of the
+ * sparse chunks and payloads over the limit.
+ */
+public class ZVArenaPayloadStoreTest {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int PAYLOAD_SIZE = 256;
+
+    private static byte[] payload(int seed) {
+        byte[] data = new byte[PAYLOAD_SIZE];
+        Arrays.fill(data, (byte) seed);
+        return data;
+    }
+
+    private static byte[] read(ZVPayloadStore store, int handle) {
+        return bytes(store.get(handle));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    @Test
+    public void storesPayloads() {
+        ZVArenaPayloadStore store = new ZVArenaPayloadStore(false, 1 << 20, CHUNK_SIZE);
+        assertEquals(ZVPayloadStore.NO_DATA, store.store(null));
+        assertNull(store.get(ZVPayloadStore.NO_DATA));
+        assertEquals(-1, store.length(ZVPayloadStore.NO_DATA));
+
+        int empty = store.store(new byte[0]);
+        int full = store.store(payload(1));
+        assertEquals(0, store.get(empty).remaining());
+        assertArrayEquals(payload(1), read(store, full));
+        assertTrue(store.get(full).isReadOnly());
+        assertEquals(PAYLOAD_SIZE, store.length(full));
+        assertEquals(PAYLOAD_SIZE, store.getStoredBytes());
+        assertEquals(CHUNK_SIZE, store.getReservedBytes());
+
+        store.release(full);
+        store.release(full);
+        assertNull(store.get(full));
+        assertEquals(0, store.getStoredBytes());
+        store.close();
+        assertNull(store.get(empty));
+    }
+
+    @Test
+    public void keepsViewsAfterRelease() {
+        ZVArenaPayloadStore store = new ZVArenaPayloadStore(false, 1 << 20, CHUNK_SIZE);
+        int handle = store.store(payload(7));
+        ByteBuffer view = store.get(handle);
+        store.release(handle);
+        // The freed slot is reused
+        assertEquals(handle, store.store(payload(8)));
+        assertArrayEquals(payload(7), bytes(view));
+        assertArrayEquals(payload(8), read(store, handle));
+    }
+
+    @Test
+    public void compactsSparseChunks() {
+        ZVArenaPayloadStore store = new ZVArenaPayloadStore(false, 1 << 20, CHUNK_SIZE);
+        int perChunk = CHUNK_SIZE / PAYLOAD_SIZE;
+        int[] handles = new int[3 * perChunk];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = store.store(payload(i));
+        }
+        assertEquals(3 * CHUNK_SIZE, store.getReservedBytes());
+        ByteBuffer[] views = new ByteBuffer[handles.length];
+        for (int i = 0; i < handles.length; i++) {
+            views[i] = store.get(handles[i]);
+        }
+
+        // Keeps one payload in each chunk
+        for (int i = 0; i < handles.length; i++) {
+            if (i % perChunk != 0) {
+                store.release(handles[i]);
+            }
+        }
+        assertEquals(3 * PAYLOAD_SIZE, store.getStoredBytes());
+        assertTrue("reserved " + store.getReservedBytes(), store.getReservedBytes() <= 2 * CHUNK_SIZE);
+        for (int i = 0; i < handles.length; i += perChunk) {
+            assertArrayEquals(payload(i), read(store, handles[i]));
+            assertArrayEquals(payload(i), bytes(views[i]));
+        }
+    }
+
+    @Test
+    public void keepsPayloadsOverTheLimitOnTheHeap() {
+        ZVArenaPayloadStore store = new ZVArenaPayloadStore(false, 2 * CHUNK_SIZE, CHUNK_SIZE);
+        int perChunk = CHUNK_SIZE / PAYLOAD_SIZE;
+        int[] handles = new int[2 * perChunk + 1];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = store.store(payload(i));
+        }
+        assertEquals(2 * CHUNK_SIZE, store.getReservedBytes());
+        assertEquals(handles.length * PAYLOAD_SIZE, store.getStoredBytes());
+        for (int i = 0; i < handles.length; i++) {
+            assertArrayEquals(payload(i), read(store, handles[i]));
+        }
+
+        // Once a chunk is emptied, the next payloads fit again
+        for (int i = 0; i < perChunk; i++) {
+            store.release(handles[i]);
+        }
+        assertEquals(CHUNK_SIZE, store.getReservedBytes());
+        int handle = store.store(payload(99));
+        assertEquals(2 * CHUNK_SIZE, store.getReservedBytes());
+        assertArrayEquals(payload(99), read(store, handle));
+        assertArrayEquals(payload(2 * perChunk), read(store, handles[2 * perChunk]));
+    }
+}